@@ -28,6 +28,7 @@ import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayerFromClipboardAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayerFromFileAction;
+import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayersFromArchiveAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.MovePictureAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.RotatePictureAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.ScaleXPictureAction;
@@ -41,20 +42,28 @@ import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.AutoCalibra
 import org.openstreetmap.josm.plugins.piclayer.io.session.FileSessionExporter;
 import org.openstreetmap.josm.plugins.piclayer.io.session.KMLSessionExporter;
 import org.openstreetmap.josm.plugins.piclayer.io.session.PicLayerSessionImporter;
+import org.openstreetmap.josm.plugins.piclayer.layer.ImageMemoryManager;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromKML;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImagePyramid;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.WarpRenderer;
+import org.openstreetmap.josm.tools.Destroyable;
 
 /**
  * Main Plugin class.
  */
-public class PicLayerPlugin extends Plugin implements LayerChangeListener, ActiveLayerChangeListener {
+public class PicLayerPlugin extends Plugin implements LayerChangeListener, ActiveLayerChangeListener, Destroyable {
 
     public static List<IconToggleButton> buttonList = null;
 
+    // Memory budget of the pictures of all layers
+    private static final ImageMemoryManager memoryManager = new ImageMemoryManager();
+
     // Plugin menu
     JosmAction newLayerFromFileAction = new NewLayerFromFileAction();
     JosmAction newLayerFromClipboardAction = new NewLayerFromClipboardAction();
+    JosmAction newLayersFromArchiveAction = new NewLayersFromArchiveAction();
 
     /**
      * Constructor.
@@ -69,6 +78,7 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
         // Add menu items
         MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayerFromFileAction);
         MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayerFromClipboardAction);
+        MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayersFromArchiveAction);
         updateEnabledState();
         // Listen to layers
         MainApplication.getLayerManager().addLayerChangeListener(this);
@@ -82,6 +92,26 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
         SessionReader.registerSessionLayerImporter("piclayerImage", PicLayerSessionImporter.class);
     }
 
+    /**
+     * Returns the manager keeping the memory used by the pictures of all PicLayers within a budget.
+     *
+     * @return the memory manager
+     */
+    public static ImageMemoryManager getMemoryManager() {
+        return memoryManager;
+    }
+
+    /**
+     * Called when the plugin is unloaded. Stops the background threads of the pictures.
+     */
+    @Override
+    public void destroy() {
+        MainApplication.getLayerManager().removeActiveLayerChangeListener(this);
+        MainApplication.getLayerManager().removeLayerChangeListener(this);
+        ImagePyramid.shutdown();
+        WarpRenderer.shutdown();
+    }
+
     /**
      * Called when the map is created. Creates the toolbar buttons.
      */
@@ -160,6 +190,7 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
     public void layerAdded(LayerAddEvent e) {
         newLayerFromFileAction.setEnabled(true);
         newLayerFromClipboardAction.setEnabled(true);
+        newLayersFromArchiveAction.setEnabled(true);
     }
 
     /**
@@ -181,5 +212,6 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
         boolean enable = !MainApplication.getLayerManager().getLayers().isEmpty();
         newLayerFromFileAction.setEnabled(enable);
         newLayerFromClipboardAction.setEnabled(enable);
+        newLayersFromArchiveAction.setEnabled(enable);
     }
 }
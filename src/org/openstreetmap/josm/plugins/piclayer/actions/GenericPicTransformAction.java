@@ -53,6 +53,10 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
         super.exitMode();
         MainApplication.getMap().mapView.removeMouseListener(this);
         MainApplication.getMap().mapView.removeMouseMotionListener(this);
+        // a drag interrupted by leaving the mode ends here, the release event will not come
+        if (isDragging) {
+            endDrag();
+        }
     }
 
     @Override
@@ -69,6 +73,7 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
                 // try to find and fill selected point if possible
                 selectedPoint = currentLayer.findSelectedPoint(e.getPoint());
                 currentCommand = new TransformCommand(currentLayer, actionName);
+                currentLayer.setInteracting(true);
             }
         }
     }
@@ -89,7 +94,13 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
     @Override
     public void mouseReleased(MouseEvent e) {
         // End action
+        endDrag();
+    }
+
+    private void endDrag() {
         isDragging = false;
+        if (currentLayer != null)
+            currentLayer.setInteracting(false);
         if (currentCommand != null)
             currentCommand.addIfChanged();
     }
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Locale;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -34,6 +35,12 @@ public class SavePictureCalibrationToWorldAction extends JosmAction {
 
     @Override
     public void actionPerformed(ActionEvent arg0) {
+        if (m_owner.getTransformer().getWarp() != null) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    tr("A world file can only store an affine calibration, the {0} correction of the picture is not exported.",
+                            m_owner.getTransformer().getWarp().getModel().name().toLowerCase(Locale.ROOT)),
+                    tr("Export World file Calibration"), JOptionPane.WARNING_MESSAGE);
+        }
         double[] values = new double[6];
         m_owner.saveWorldFile(values);
 
@@ -0,0 +1,193 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.ChamferAligner;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.DistanceField;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.GrayImage;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.ReferenceRaster;
+import org.openstreetmap.josm.plugins.piclayer.command.TransformCommand;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureTransform;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Action to refine the calibration of a roughly placed picture, like a cadastral sheet, by aligning
+ * the edges in the picture with the ways of the OSM data.
+ * <p>
+ * The ways are rendered in the pixel frame of the picture at its current calibration and the affine
+ * correction is searched which brings most edges of the picture onto them, see {@link ChamferAligner}.
+ */
+public class AutoAlignAction extends JosmAction {
+
+    // Preferences for the working size, the edge detection and the maximum translation as a fraction of the picture
+    private static final String SIZE_PREF = "piclayer.align.size";
+    private static final String EDGE_THRESHOLD_PREF = "piclayer.align.edge-threshold";
+    private static final String SEARCH_RADIUS_PREF = "piclayer.align.search-radius";
+    // luminance below which a pixel of the rendered data belongs to a way
+    private static final float WAY_LUMINANCE = 128;
+
+    private final PicLayerAbstract layer;
+
+    public AutoAlignAction(PicLayerAbstract layer) {
+        super(tr("Align with OSM data..."), null,
+                tr("Refines the calibration by aligning the edges of the picture with the OSM ways"), null, false);
+        this.layer = layer;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (layer.getImage() == null) {
+            return;
+        }
+        DataSet data = MainApplication.getLayerManager().getEditDataSet();
+        if (data == null) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    tr("There is no data layer to align the picture with."),
+                    tr("Align with OSM data"), JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        // the data is rendered here, it must not change meanwhile
+        ReferenceRaster raster = new ReferenceRaster(layer, Config.getPref().getInt(SIZE_PREF, 1024));
+        BufferedImage referenceImage = raster.renderData(data, ProjectionRegistry.getProjection());
+        if (referenceImage == null)
+            return;
+        MainApplication.worker.submit(new AlignTask(layer, raster, referenceImage));
+    }
+
+    /**
+     * Detects the edges and searches the alignment in the background.
+     */
+    private static class AlignTask extends PleaseWaitRunnable {
+
+        private final PicLayerAbstract layer;
+        private final ReferenceRaster raster;
+        private final BufferedImage referenceImage;
+        private ExecutorService pool;
+        private volatile boolean canceled;
+        private boolean noWays;
+        private ChamferAligner.Result result;
+
+        AlignTask(PicLayerAbstract layer, ReferenceRaster raster, BufferedImage referenceImage) {
+            super(tr("Aligning with OSM data"));
+            this.layer = layer;
+            this.raster = raster;
+            this.referenceImage = referenceImage;
+        }
+
+        @Override
+        protected void realRun() {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, Utils.newThreadFactory("piclayer-align-%d", Thread.NORM_PRIORITY));
+            // the task of the monitor is started by PleaseWaitRunnable
+            progressMonitor.setTicksCount(2);
+            try {
+                progressMonitor.subTask(tr("Finding edges in the picture"));
+                float threshold = (float) Config.getPref().getDouble(EDGE_THRESHOLD_PREF, 32);
+                double[] edges = GrayImage.of(raster.renderTarget()).boxBlur(1).edgePoints(threshold);
+                // the data is rendered in the space the affine calibration applies to
+                raster.warpTargetPoints(edges);
+                progressMonitor.worked(1);
+                if (canceled)
+                    return;
+                progressMonitor.subTask(tr("Measuring distances to the ways"));
+                DistanceField field = DistanceField.of(GrayImage.of(referenceImage), WAY_LUMINANCE, pool);
+                progressMonitor.worked(1);
+                if (field == null) {
+                    noWays = true;
+                    return;
+                }
+                if (canceled)
+                    return;
+                ChamferAligner aligner = new ChamferAligner(edges, field);
+                progressMonitor.setTicksCount(2 + aligner.getLevelCount());
+                progressMonitor.subTask(tr("Searching the best alignment"));
+                double radius = Config.getPref().getDouble(SEARCH_RADIUS_PREF, 0.1) * Math.max(raster.getWidth(), raster.getHeight());
+                result = aligner.align(radius, pool, progressMonitor);
+                if (result != null) {
+                    Logging.info("PicLayer: {0} edge pixels, mean distance to the ways {1} before and {2} after the alignment",
+                            edges.length / 2, result.getInitialCost(), result.getCost());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                Logging.trace(e);
+            } catch (ExecutionException e) {
+                Logging.error(e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        @Override
+        protected void finish() {
+            if (canceled)
+                return;
+            GuiHelper.runInEDT(() -> {
+                if (noWays || result == null) {
+                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                            noWays ? tr("There are no ways of the data layer over the picture.")
+                                    : tr("There are too few edges in the picture."),
+                            tr("Align with OSM data"), JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                if (result.getCost() >= result.getInitialCost()) {
+                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                            tr("No better alignment found, the mean distance of the edges to the ways is {0} pixels.",
+                                    String.format(Locale.getDefault(), "%.1f", result.getInitialCost() / raster.getScale())),
+                            tr("Align with OSM data"), JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                apply(result.getTransform());
+            });
+        }
+
+        /**
+         * Concatenates the alignment to the affine calibration, the control points and the warp stay as they are.
+         */
+        private void apply(AffineTransform alignment) {
+            TransformCommand command = new TransformCommand(layer, tr("Align with OSM data"));
+            PictureTransform transformer = layer.getTransformer();
+            AffineTransform transform = new AffineTransform(transformer.getTransform());
+            transform.concatenate(raster.toPicture(alignment));
+            transformer.setTransform(transform);
+            transformer.setModified();
+            command.addIfChanged();
+            layer.invalidate();
+        }
+
+        @Override
+        protected void cancel() {
+            canceled = true;
+            if (pool != null) {
+                // tasks still queued must be canceled, or the search would wait for them forever
+                for (Runnable r : pool.shutdownNow()) {
+                    if (r instanceof Future) {
+                        ((Future<?>) r).cancel(false);
+                    }
+                }
+            }
+        }
+    }
+}
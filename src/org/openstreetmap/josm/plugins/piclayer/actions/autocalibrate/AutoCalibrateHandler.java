@@ -3,6 +3,7 @@ package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate;
 
 import static org.openstreetmap.josm.gui.help.HelpUtil.ht;
 
+import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
@@ -29,9 +30,12 @@ import org.openstreetmap.josm.data.coor.conversion.ICoordinateFormat;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.gui.help.HelpBrowser;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.GeoLine;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.NodeSnapper;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.ObservableArrayList;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.affine.MovePointAction;
 import org.openstreetmap.josm.plugins.piclayer.gui.autocalibrate.CalibrationErrorView;
@@ -48,6 +52,8 @@ import org.openstreetmap.josm.tools.Logging;
 public class AutoCalibrateHandler {
 
     private static final Logger logger = Logger.getLogger(AutoCalibratePictureAction.class.getName());
+    // time between two updates of the reference point preview, about one frame
+    private static final int FRAME_MILLIS = 16;
 
     private PicLayerAbstract currentPicLayer;
     private CalibrationWindow mainWindow;
@@ -409,8 +415,12 @@ public class AutoCalibrateHandler {
                 return;
             }
 
-            LatLon latLonPoint = MainApplication.getMap().mapView.getLatLon(e.getPoint().getX(), e.getPoint().getY());
-            Point2D llPoint = latLonToPoint2D(latLonPoint);
+            // the first point snaps to a node like in the preview, the others are placed by their distance
+            Point2D llPoint = getSnappedPoint(e.getPoint());
+            if (llPoint == null) {
+                LatLon latLonPoint = MainApplication.getMap().mapView.getLatLon(e.getPoint().getX(), e.getPoint().getY());
+                llPoint = latLonToPoint2D(latLonPoint);
+            }
 
             if (referencePointList == null) {
                 JOptionPane.showMessageDialog(null, "An error has occurred while handling the reference points.",
@@ -463,9 +473,17 @@ public class AutoCalibrateHandler {
     }
 
     /**
-     * Mouse motion listener for manual reference selection option
+     * Mouse motion listener for manual reference selection option.
+     * Mouse moves are coalesced to one update per frame, which previews the node the next point snaps to.
      */
     private class RefManualPointsMouseMotionListener implements MouseMotionListener {
+        private final Timer throttle = new Timer(FRAME_MILLIS, e -> update());
+        private Point lastPoint;
+
+        RefManualPointsMouseMotionListener() {
+            throttle.setRepeats(false);
+        }
+
         @Override
         public void mouseDragged(MouseEvent e) {
             // do nothing
@@ -473,34 +491,45 @@ public class AutoCalibrateHandler {
 
         @Override
         public void mouseMoved(MouseEvent e) {
+            lastPoint = e.getPoint();
+            if (!throttle.isRunning()) {
+                throttle.start();
+            }
+        }
+
+        private void update() {
             if (referenceFile == null && referenceLayer == null) {
                 // AutoCalibration inactive or something went wrong - remove listener
                 MainApplication.getMap().mapView.removeMouseMotionListener(this);
                 return;
             }
 
-            // get mouse position
-            LatLon latLonPoint = MainApplication.getMap().mapView.getLatLon(e.getPoint().getX(), e.getPoint().getY());
-
             if (referencePointList == null) {
                 JOptionPane.showMessageDialog(null, "An error has occurred while handling the reference points.",
                         "AutoCalibration Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
 
+            // snap the mouse position to the closest node, if any
+            Point2D snapped = referencePointList.size() < 3 ? getSnappedPoint(lastPoint) : null;
+            currentPicLayer.setSnapPreview(snapped);
+            Point2D target = snapped != null ? snapped
+                    : latLonToPoint2D(MainApplication.getMap().mapView.getLatLon(lastPoint.getX(), lastPoint.getY()));
+
             if (referencePointList.size() == 1) {
                 // Show line between point 1 and possible points 2
-                GeoLine line = new GeoLine(referencePointList.get(0), latLonToPoint2D(latLonPoint));
+                GeoLine line = new GeoLine(referencePointList.get(0), target);
                 Point2D trStart = referencePointList.get(0);
                 Point2D trEnd = line.pointOnLine(distance1To2);
                 currentPicLayer.setDrawRef1To2Line(trStart, trEnd);
             } else if (referencePointList.size() == 2) {
                 // Show line between point 2 and possible points 3
-                GeoLine line = new GeoLine(referencePointList.get(1), latLonToPoint2D(latLonPoint));
+                GeoLine line = new GeoLine(referencePointList.get(1), target);
                 Point2D trStart = referencePointList.get(1);
                 Point2D trEnd = line.pointOnLine(distance2To3);
                 currentPicLayer.setDrawRef2To3Line(trStart, trEnd);
                 currentPicLayer.unsetDrawRef1ToRef2Line();
-            } else {
+            } else if (referencePointList.size() > 2) {
                 currentPicLayer.unsetDrawRef1ToRef2Line();
                 currentPicLayer.unsetDrawRef2ToRef3Line();
             }
@@ -508,6 +537,18 @@ public class AutoCalibrateHandler {
         }
     }
 
+    /**
+     * Returns the node of the current data set to snap to.
+     *
+     * @param viewPoint the mouse position
+     * @return the node, x is the longitude and y the latitude, {@code null} if no node is close enough
+     */
+    private static Point2D getSnappedPoint(Point2D viewPoint) {
+        Node node = NodeSnapper.findNearest(MainApplication.getMap().mapView,
+                MainApplication.getLayerManager().getEditDataSet(), viewPoint);
+        return node != null ? new Point2D.Double(node.lon(), node.lat()) : null;
+    }
+
     /**
      * Mouse listener for defined reference selection option
      */
@@ -526,34 +567,26 @@ public class AutoCalibrateHandler {
             }
 
             if (referencePointList.size() < 3) {
-                // get point in lat/lon
-                LatLon latLonPoint = MainApplication.getMap().mapView.getLatLon(e.getPoint().getX(), e.getPoint().getY());
-                double latY = latLonPoint.getY();
-                double lonX = latLonPoint.getX();
-                Point2D llPoint = new Point2D.Double(lonX, latY);
-
-                // get current data set and find the closest point
-                Point2D closestPoint = null;
-                double shortestDistance = 1000000.0;    // default value
-                double tmpDistance;
+                // find the closest node of the current data set, by its spatial index, in a box growing
+                // up to the size of the map view if none is within the snapping distance
                 DataSet data = MainApplication.getLayerManager().getEditDataSet();
+                MapView mapView = MainApplication.getMap().mapView;
+                Node closest = NodeSnapper.findNearestAround(mapView, data, e.getPoint(),
+                        Math.max(mapView.getWidth(), mapView.getHeight()));
 
-                for (Node node : data.getNodes()) {
-                    tmpDistance = llPoint.distance(node.lon(), node.lat());
-
-                    if (tmpDistance < shortestDistance) {
-                        closestPoint = new Point2D.Double(node.lon(), node.lat());
-                        shortestDistance = tmpDistance;
-                    }
-                }
-
-                if (closestPoint != null) {
+                if (closest != null) {
+                    Point2D closestPoint = new Point2D.Double(closest.lon(), closest.lat());
                     // add closest point to reference list
                     referencePointList.add(closestPoint);
                     // draw point
                     currentPicLayer.setDrawReferencePoints(true);
                     currentPicLayer.getTransformer().addLatLonRefPoint(closestPoint);
                     currentPicLayer.invalidate();
+                } else {
+                    new Notification("There is no node of the data layer near the click to use as reference point.")
+                            .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                            .setDuration(Notification.TIME_SHORT)
+                            .show();
                 }
             }
         }
@@ -12,6 +12,7 @@ import org.openstreetmap.josm.gui.MapViewState.MapViewPoint;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.GeoLine;
 import org.openstreetmap.josm.plugins.piclayer.gui.autocalibrate.CalibrationErrorView;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.transform.AffineFit;
 import org.openstreetmap.josm.tools.Logging;
 
 
@@ -79,17 +80,19 @@ public class AutoCalibration {
             return;
         }
 
-        // calibrate
-        Point2D tsPoint;        // transformed start point
-        Point2D tePoint;        // transformed end point
-        int index;
-
-        // move all points to final state position
+        // move all points to final state position at once
+        List<Point2D> desiredPoints = new ArrayList<>(endPointList.size());
         for (Point2D endPos : endPointList) {
-            index = endPointList.indexOf(endPos);
-            tsPoint = startPointList.get(index);
-            tePoint = translatePointToCurrentScale(endPos);
-            currentLayer.getTransformer().updatePair(tsPoint, tePoint);
+            Point2D tePoint = translatePointToCurrentScale(endPos);
+            if (tePoint == null) {
+                showErrorView(CalibrationErrorView.CALIBRATION_ERROR);
+                return;
+            }
+            desiredPoints.add(tePoint);
+        }
+        AffineFit fit = currentLayer.getTransformer().fitOriginPoints(desiredPoints);
+        if (fit != null) {
+            Logging.info("PicLayer: calibrated with {0} points, RMS error {1} pixels", fit.getPointCount(), fit.getRms());
         }
 
         // check if image got distorted after calibration, if true reset and show error.
@@ -145,15 +148,10 @@ public class AutoCalibration {
             // add point 0 - anchor
             correctedList.add(points.get(0));
             // add point on line12 at distance12
-            correctedList.add(line12.pointOnLine(distance12));
-            // get lat/lon offset of line12 point to origin point2
-            double lonOffset = line12.pointOnLine(distance12).getX() - points.get(1).getX();
-            double latOffset = line12.pointOnLine(distance12).getY() - points.get(1).getY();
-            // get point on line23, add offset
-            Point2D pointOnLine23 = line23.pointOnLine(distance23);
-            Point2D correctedPointOnLine23 = new Point2D.Double(pointOnLine23.getX() + lonOffset, pointOnLine23.getY() + latOffset);
-            // add point on line23 at distance23 corrected with offset from point on line12
-            correctedList.add(correctedPointOnLine23);
+            Point2D pointOnLine12 = line12.pointOnLine(distance12);
+            correctedList.add(pointOnLine12);
+            // add point at distance23 from the corrected point 2, in the direction of line23
+            correctedList.add(GeoLine.destination(pointOnLine12, line23.getAzimuth(), distance23));
 
             return correctedList;
         }
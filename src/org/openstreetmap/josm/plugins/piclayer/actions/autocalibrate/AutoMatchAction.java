@@ -0,0 +1,263 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.FeatureDetector;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.FeatureMatcher;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.GrayImage;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.Keypoint;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.Ransac;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching.ReferenceRaster;
+import org.openstreetmap.josm.plugins.piclayer.command.TransformCommand;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureTransform;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Action to calibrate a roughly placed picture automatically, by matching corners found in it with
+ * corners of a reference: another picture layer or the OSM data.
+ * <p>
+ * Both are rendered in the pixel frame of the picture at its current calibration, the corners are
+ * matched by their descriptors and the consistent pairs are selected by RANSAC. The best spread of
+ * them become the origin points of the picture, which is then fitted to them like to control points
+ * set by hand.
+ */
+public class AutoMatchAction extends JosmAction {
+
+    // Preferences for the working size, the number of corners and the number of control points kept
+    private static final String SIZE_PREF = "piclayer.auto-match.size";
+    private static final String FEATURES_PREF = "piclayer.auto-match.features";
+    private static final String THRESHOLD_PREF = "piclayer.auto-match.fast-threshold";
+    private static final String MAX_POINTS_PREF = "piclayer.auto-match.max-points";
+    // the picture is expected to be placed within this fraction of its size already
+    private static final double SEARCH_RADIUS = 0.25;
+    // maximum error of a consistent pair in working pixels
+    private static final double INLIER_THRESHOLD = 3;
+
+    private final PicLayerAbstract layer;
+
+    public AutoMatchAction(PicLayerAbstract layer) {
+        super(tr("Match control points automatically..."), null,
+                tr("Finds control points by matching the picture with another layer"), null, false);
+        this.layer = layer;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (layer.getImage() == null) {
+            return;
+        }
+        List<Object> references = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (Layer l : MainApplication.getLayerManager().getLayers()) {
+            if (l != layer && l instanceof PicLayerAbstract && ((PicLayerAbstract) l).getImage() != null) {
+                references.add(l);
+                names.add(l.getName());
+            }
+        }
+        DataSet data = MainApplication.getLayerManager().getEditDataSet();
+        if (data != null) {
+            references.add(data);
+            names.add(tr("OSM data"));
+        }
+        if (references.isEmpty()) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                    tr("There is no other picture layer or data layer to match the picture with."),
+                    tr("Automatic matching"), JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        Object choice = JOptionPane.showInputDialog(MainApplication.getMainFrame(),
+                tr("Match the picture with:"), tr("Automatic matching"), JOptionPane.QUESTION_MESSAGE,
+                null, names.toArray(), names.get(0));
+        if (choice == null)
+            return;
+        Object reference = references.get(names.indexOf(choice));
+
+        // the reference is rendered here, the data must not change meanwhile
+        ReferenceRaster raster = new ReferenceRaster(layer, Config.getPref().getInt(SIZE_PREF, 2048));
+        BufferedImage referenceImage = reference instanceof DataSet
+                ? raster.renderData((DataSet) reference, ProjectionRegistry.getProjection())
+                : raster.renderPicture((PicLayerAbstract) reference);
+        if (referenceImage == null)
+            return;
+        MainApplication.worker.submit(new MatchTask(layer, raster, referenceImage));
+    }
+
+    /**
+     * Finds and matches the corners in the background.
+     */
+    private static class MatchTask extends PleaseWaitRunnable {
+
+        private final PicLayerAbstract layer;
+        private final ReferenceRaster raster;
+        private final BufferedImage referenceImage;
+        private ExecutorService pool;
+        private volatile boolean canceled;
+        private final List<Point2D> origins = new ArrayList<>();
+        private final List<Point2D> desired = new ArrayList<>();
+        private int matchCount;
+
+        MatchTask(PicLayerAbstract layer, ReferenceRaster raster, BufferedImage referenceImage) {
+            super(tr("Matching control points"));
+            this.layer = layer;
+            this.raster = raster;
+            this.referenceImage = referenceImage;
+        }
+
+        @Override
+        protected void realRun() {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, Utils.newThreadFactory("piclayer-match-%d", Thread.NORM_PRIORITY));
+            // the task of the monitor is started by PleaseWaitRunnable
+            progressMonitor.setTicksCount(4);
+            try {
+                FeatureDetector detector = new FeatureDetector(Config.getPref().getInt(THRESHOLD_PREF, 20),
+                        Config.getPref().getInt(FEATURES_PREF, 2000));
+                progressMonitor.subTask(tr("Finding corners in the picture"));
+                List<Keypoint> pictureKeypoints = detector.detect(GrayImage.of(raster.renderTarget()), pool);
+                progressMonitor.worked(1);
+                if (canceled)
+                    return;
+                progressMonitor.subTask(tr("Finding corners in the reference"));
+                List<Keypoint> referenceKeypoints = detector.detect(GrayImage.of(referenceImage), pool);
+                progressMonitor.worked(1);
+                if (canceled)
+                    return;
+                progressMonitor.subTask(tr("Matching corners"));
+                double radius = SEARCH_RADIUS * Math.max(raster.getWidth(), raster.getHeight());
+                List<FeatureMatcher.Match> matches = FeatureMatcher.match(pictureKeypoints, referenceKeypoints, radius);
+                matchCount = matches.size();
+                progressMonitor.worked(1);
+                if (canceled)
+                    return;
+                selectControlPoints(matches);
+                progressMonitor.worked(1);
+                Logging.info("PicLayer: {0} and {1} corners, {2} matches, {3} control points",
+                        pictureKeypoints.size(), referenceKeypoints.size(), matchCount, origins.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                Logging.trace(e);
+            } catch (ExecutionException e) {
+                Logging.error(e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        /**
+         * Keeps the consistent matches, the best ones first, not closer to each other than a twentieth of the picture.
+         */
+        private void selectControlPoints(List<FeatureMatcher.Match> matches) {
+            int n = matches.size();
+            double[] src = new double[2 * n];
+            double[] dst = new double[2 * n];
+            for (int i = 0; i < n; i++) {
+                FeatureMatcher.Match m = matches.get(i);
+                src[2 * i] = m.getFirst().getX();
+                src[2 * i + 1] = m.getFirst().getY();
+                dst[2 * i] = m.getSecond().getX();
+                dst[2 * i + 1] = m.getSecond().getY();
+            }
+            boolean[] inliers = Ransac.findInliers(src, dst, n, INLIER_THRESHOLD, new Random(42));
+            if (inliers == null)
+                return;
+            List<FeatureMatcher.Match> consistent = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (inliers[i]) {
+                    consistent.add(matches.get(i));
+                }
+            }
+            consistent.sort(Comparator.comparingInt(FeatureMatcher.Match::getDistance));
+
+            int maxPoints = Math.max(3, Config.getPref().getInt(MAX_POINTS_PREF, 30));
+            double spacing = Math.max(raster.getWidth(), raster.getHeight()) / 20.0;
+            List<FeatureMatcher.Match> selected = new ArrayList<>();
+            for (FeatureMatcher.Match m : consistent) {
+                if (selected.size() >= maxPoints)
+                    break;
+                boolean free = true;
+                for (FeatureMatcher.Match s : selected) {
+                    if (Math.hypot(s.getFirst().getX() - m.getFirst().getX(), s.getFirst().getY() - m.getFirst().getY()) < spacing) {
+                        free = false;
+                        break;
+                    }
+                }
+                if (free) {
+                    selected.add(m);
+                }
+            }
+            // fewer than three spread points do not determine the calibration
+            if (selected.size() < 3)
+                return;
+            for (FeatureMatcher.Match m : selected) {
+                origins.add(raster.toPicture(m.getFirst().getX(), m.getFirst().getY()));
+                desired.add(raster.toPicture(m.getSecond().getX(), m.getSecond().getY()));
+            }
+        }
+
+        @Override
+        protected void finish() {
+            if (canceled)
+                return;
+            GuiHelper.runInEDT(() -> {
+                if (origins.isEmpty()) {
+                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                            tr("No consistent control points found ({0} matching corners). "
+                                    + "Place the picture closer to the reference and try again.", matchCount),
+                            tr("Automatic matching"), JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                TransformCommand command = new TransformCommand(layer, tr("Automatic matching"));
+                PictureTransform transformer = layer.getTransformer();
+                // the reference was rendered in the space the affine calibration applies to
+                List<Point2D> desiredPictureCoordinates = new ArrayList<>(desired.size());
+                for (Point2D p : desired) {
+                    desiredPictureCoordinates.add(transformer.unwarpPoint(p));
+                }
+                transformer.setOriginPoints(origins);
+                transformer.fitOriginPoints(desiredPictureCoordinates);
+                command.addIfChanged();
+                layer.invalidate();
+            });
+        }
+
+        @Override
+        protected void cancel() {
+            canceled = true;
+            if (pool != null) {
+                // tasks still queued must be canceled, or the detection would wait for them forever
+                for (Runnable r : pool.shutdownNow()) {
+                    if (r instanceof Future) {
+                        ((Future<?>) r).cancel(false);
+                    }
+                }
+            }
+        }
+    }
+}
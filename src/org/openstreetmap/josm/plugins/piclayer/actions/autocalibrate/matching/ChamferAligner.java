@@ -0,0 +1,332 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Aligns the edges of a picture with a reference by chamfer matching: the affine transform is searched
+ * which minimizes the mean distance of the transformed edge pixels to the reference lines, read from
+ * a {@link DistanceField}. Distances are truncated, so that edges without counterpart do not dominate.
+ * <p>
+ * The search runs coarse to fine over a pyramid of distance fields. On the coarsest level every
+ * translation within the search radius is tried for a range of rotations and scales, in parallel.
+ * The best candidates are then refined by a pattern search over all six parameters, on each level
+ * down to the full resolution.
+ */
+public final class ChamferAligner {
+
+    // size of the coarsest level and the number of edge pixels used there and on the finer levels
+    private static final int COARSE_SIZE = 160;
+    private static final int COARSE_POINTS = 1000;
+    private static final int FINE_POINTS = 5000;
+    // distances are truncated at this number of pixels of the level
+    private static final float TRUNCATE = 6;
+    // bounds of the rotation, the logarithm of the scale, the aspect ratio and the shear
+    private static final double MAX_ROTATION = Math.toRadians(5);
+    private static final double MAX_SCALE = 0.05;
+    private static final double MAX_DISTORTION = 0.03;
+    private static final int CANDIDATES = 3;
+    private static final int MAX_ITERATIONS = 500;
+    // the pattern search starts with steps of one pixel of the level and halves them this often
+    private static final int REFINEMENTS = 3;
+
+    private final double[] points;
+    private final int count;
+    private final DistanceField[] levels;
+    private final double cx;
+    private final double cy;
+
+    /**
+     * Constructor
+     *
+     * @param edges     edge pixels of the picture x0, y0, x1, y1, ...
+     * @param reference distances to the reference lines, in the same frame and resolution as the edges
+     */
+    public ChamferAligner(double[] edges, DistanceField reference) {
+        this.count = edges.length / 2;
+        // shuffled, so that the first points of the list are a fair sample of the edges
+        this.points = edges.clone();
+        Random random = new Random(count);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double x = points[2 * i];
+            double y = points[2 * i + 1];
+            points[2 * i] = points[2 * j];
+            points[2 * i + 1] = points[2 * j + 1];
+            points[2 * j] = x;
+            points[2 * j + 1] = y;
+        }
+        List<DistanceField> pyramid = new ArrayList<>();
+        DistanceField level = reference;
+        pyramid.add(level);
+        while (Math.max(level.getWidth(), level.getHeight()) > COARSE_SIZE) {
+            level = level.half();
+            pyramid.add(level);
+        }
+        this.levels = pyramid.toArray(new DistanceField[0]);
+        this.cx = reference.getWidth() / 2.0;
+        this.cy = reference.getHeight() / 2.0;
+    }
+
+    /**
+     * Result of an alignment.
+     */
+    public static final class Result {
+        private final AffineTransform transform;
+        private final double initialCost;
+        private final double cost;
+
+        Result(AffineTransform transform, double initialCost, double cost) {
+            this.transform = transform;
+            this.initialCost = initialCost;
+            this.cost = cost;
+        }
+
+        /**
+         * @return the transform from the pixels of the picture to the pixels of the reference
+         */
+        public AffineTransform getTransform() {
+            return transform;
+        }
+
+        /**
+         * @return the mean truncated distance of the edges to the reference lines before the alignment, in pixels
+         */
+        public double getInitialCost() {
+            return initialCost;
+        }
+
+        /**
+         * @return the mean truncated distance of the edges to the reference lines after the alignment, in pixels
+         */
+        public double getCost() {
+            return cost;
+        }
+    }
+
+    /**
+     * @return the number of levels of the search, for the progress
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Searches the best alignment. One tick of the progress monitor is worked per level.
+     *
+     * @param searchRadius maximum translation in pixels
+     * @param pool         threads for the search on the coarsest level
+     * @param monitor      progress monitor, the search stops when canceled
+     * @return the result, {@code null} if there are too few edges or the search was canceled
+     * @throws InterruptedException if interrupted while waiting for the search
+     * @throws ExecutionException   if the search failed
+     */
+    public Result align(double searchRadius, ExecutorService pool, ProgressMonitor monitor)
+            throws InterruptedException, ExecutionException {
+        if (count < 3)
+            return null;
+        int n = Math.min(count, FINE_POINTS);
+        double initialCost = cost(new double[6], 0, n, Double.MAX_VALUE);
+
+        int top = levels.length - 1;
+        List<double[]> candidates = searchCoarse(searchRadius, top, pool);
+        if (monitor.isCanceled())
+            return null;
+        double[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (double[] candidate : candidates) {
+            double c = refine(candidate, top, searchRadius, monitor);
+            if (c < bestCost) {
+                best = candidate;
+                bestCost = c;
+            }
+        }
+        monitor.worked(1);
+        for (int level = top - 1; level >= 0 && best != null; level--) {
+            if (monitor.isCanceled())
+                return null;
+            refine(best, level, searchRadius, monitor);
+            monitor.worked(1);
+        }
+        if (best == null || monitor.isCanceled())
+            return null;
+        return new Result(toTransform(best), initialCost, cost(best, 0, n, Double.MAX_VALUE));
+    }
+
+    /**
+     * Tries all translations for rotations and scales in steps of about one pixel of the coarsest level.
+     *
+     * @return the best parameters
+     */
+    private List<double[]> searchCoarse(double searchRadius, int level, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        double f = factor(level);
+        double step = angularStep(level);
+        int rotations = (int) (MAX_ROTATION / step);
+        int scales = (int) (MAX_SCALE / step);
+        int radius = (int) Math.ceil(searchRadius * f);
+        int n = Math.min(count, COARSE_POINTS);
+
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (int r = -rotations; r <= rotations; r++) {
+            for (int s = -scales; s <= scales; s++) {
+                double[] p = {0, 0, r * step, s * step, 0, 0};
+                tasks.add(() -> searchTranslation(p, level, radius, n));
+            }
+        }
+        List<double[]> results = new ArrayList<>(tasks.size());
+        for (Future<double[]> future : pool.invokeAll(tasks)) {
+            results.add(future.get());
+        }
+        // the cost is stored behind the parameters
+        results.sort((a, b) -> Double.compare(a[6], b[6]));
+        List<double[]> best = new ArrayList<>(CANDIDATES);
+        for (int i = 0; i < CANDIDATES && i < results.size(); i++) {
+            best.add(results.get(i));
+        }
+        return best;
+    }
+
+    /**
+     * Finds the best translation in whole pixels of the level for the rotation and scale of the parameters.
+     *
+     * @return the parameters with the best translation and its cost appended
+     */
+    private double[] searchTranslation(double[] p, int level, int radius, int n) {
+        DistanceField field = levels[level];
+        double f = factor(level);
+        // the linear part is the same for all translations, transform the points once
+        double[] m = linearPart(p);
+        double lx = cx * f;
+        double ly = cy * f;
+        double[] q = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            double x = points[2 * i] * f - lx;
+            double y = points[2 * i + 1] * f - ly;
+            q[2 * i] = lx + m[0] * x + m[1] * y;
+            q[2 * i + 1] = ly + m[2] * x + m[3] * y;
+        }
+        double bestSum = Double.MAX_VALUE;
+        int bestX = 0;
+        int bestY = 0;
+        for (int ty = -radius; ty <= radius && !Thread.currentThread().isInterrupted(); ty++) {
+            for (int tx = -radius; tx <= radius; tx++) {
+                double sum = 0;
+                for (int i = 0; i < n && sum < bestSum; i++) {
+                    sum += field.get(q[2 * i] + tx, q[2 * i + 1] + ty, TRUNCATE);
+                }
+                // closer translations win ties, the picture is roughly placed already
+                if (sum < bestSum || (sum == bestSum && tx * tx + ty * ty < bestX * bestX + bestY * bestY)) {
+                    bestSum = sum;
+                    bestX = tx;
+                    bestY = ty;
+                }
+            }
+        }
+        return new double[]{bestX / f, bestY / f, p[2], p[3], p[4], p[5], bestSum / n};
+    }
+
+    /**
+     * Improves the parameters by a pattern search on one level, starting with steps of one pixel.
+     *
+     * @return the cost of the improved parameters
+     */
+    private double refine(double[] p, int level, double searchRadius, ProgressMonitor monitor) {
+        int n = Math.min(count, level == levels.length - 1 ? COARSE_POINTS : FINE_POINTS);
+        double angular = angularStep(level);
+        double linear = 1 / factor(level);
+        double[] steps = {linear, linear, angular, angular, angular, angular};
+        double[] bounds = {searchRadius + linear, searchRadius + linear, MAX_ROTATION, MAX_SCALE, MAX_DISTORTION, MAX_DISTORTION};
+        double best = cost(p, level, n, Double.MAX_VALUE);
+        int refinements = 0;
+        for (int it = 0; it < MAX_ITERATIONS && refinements <= REFINEMENTS && !monitor.isCanceled(); it++) {
+            boolean improved = false;
+            for (int j = 0; j < 6; j++) {
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    double old = p[j];
+                    double v = old + sign * steps[j];
+                    if (Math.abs(v) > bounds[j])
+                        continue;
+                    p[j] = v;
+                    double c = cost(p, level, n, best);
+                    if (c < best) {
+                        best = c;
+                        improved = true;
+                        break;
+                    }
+                    p[j] = old;
+                }
+            }
+            if (!improved) {
+                for (int j = 0; j < 6; j++) {
+                    steps[j] /= 2;
+                }
+                refinements++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Mean truncated distance of the first {@code n} edge pixels on a level.
+     *
+     * @param limit the evaluation stops early once the cost exceeds this value
+     */
+    private double cost(double[] p, int level, int n, double limit) {
+        DistanceField field = levels[level];
+        double f = factor(level);
+        double[] m = linearPart(p);
+        double lx = cx * f;
+        double ly = cy * f;
+        double ox = lx + p[0] * f;
+        double oy = ly + p[1] * f;
+        double max = limit * n;
+        double sum = 0;
+        for (int i = 0; i < n && sum <= max; i++) {
+            double x = points[2 * i] * f - lx;
+            double y = points[2 * i + 1] * f - ly;
+            sum += field.get(ox + m[0] * x + m[1] * y, oy + m[2] * x + m[3] * y, TRUNCATE);
+        }
+        return sum / n;
+    }
+
+    /**
+     * Linear part: rotation times the upper triangular matrix of scale, aspect ratio and shear.
+     *
+     * @return m00, m01, m10, m11
+     */
+    private static double[] linearPart(double[] p) {
+        double cos = Math.cos(p[2]);
+        double sin = Math.sin(p[2]);
+        double a = Math.exp(p[3] + p[4]);
+        double d = Math.exp(p[3] - p[4]);
+        double k = p[5];
+        return new double[]{cos * a, cos * k - sin * d, sin * a, sin * k + cos * d};
+    }
+
+    private AffineTransform toTransform(double[] p) {
+        double[] m = linearPart(p);
+        return new AffineTransform(m[0], m[2], m[1], m[3],
+                cx + p[0] - m[0] * cx - m[1] * cy, cy + p[1] - m[2] * cx - m[3] * cy);
+    }
+
+    private static double factor(int level) {
+        return 1.0 / (1 << level);
+    }
+
+    /**
+     * Angle, or relative change of the scale, which moves the border of the picture by about one pixel of the level.
+     */
+    private double angularStep(int level) {
+        return 2.0 / Math.max(levels[level].getWidth(), levels[level].getHeight());
+    }
+}
@@ -0,0 +1,210 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Distance of each pixel to the nearest dark pixel of a picture, the cost function of the chamfer matching.
+ * <p>
+ * The exact Euclidean distance transform of Felzenszwalb and Huttenlocher is used: lower envelopes of
+ * parabolas, first along the columns and then along the rows, each in bands in parallel.
+ */
+public final class DistanceField {
+
+    // distance of pixels without any dark pixel in reach, squared
+    private static final double FAR = 1e20;
+    private static final int BAND = 64;
+
+    private final int width;
+    private final int height;
+    private final float[] data;
+
+    private DistanceField(int width, int height, float[] data) {
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    /**
+     * Computes the distances to the dark pixels of a picture.
+     *
+     * @param image     the picture
+     * @param darkerThan maximum luminance of a dark pixel
+     * @param pool      threads for the bands
+     * @return the distance field, {@code null} if there are no dark pixels
+     * @throws InterruptedException if interrupted while waiting for the bands
+     * @throws ExecutionException   if a band failed
+     */
+    public static DistanceField of(GrayImage image, float darkerThan, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        double[] squared = new double[w * h];
+        boolean any = false;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                boolean dark = image.get(x, y) < darkerThan;
+                squared[y * w + x] = dark ? 0 : FAR;
+                any |= dark;
+            }
+        }
+        if (!any)
+            return null;
+
+        List<Callable<Void>> columns = new ArrayList<>();
+        for (int x0 = 0; x0 < w; x0 += BAND) {
+            int from = x0;
+            int to = Math.min(x0 + BAND, w);
+            columns.add(() -> {
+                double[] f = new double[h];
+                Envelope envelope = new Envelope(h);
+                for (int x = from; x < to; x++) {
+                    for (int y = 0; y < h; y++) {
+                        f[y] = squared[y * w + x];
+                    }
+                    envelope.transform(f, h);
+                    for (int y = 0; y < h; y++) {
+                        squared[y * w + x] = f[y];
+                    }
+                }
+                return null;
+            });
+        }
+        invokeAll(pool, columns);
+
+        float[] data = new float[w * h];
+        List<Callable<Void>> rows = new ArrayList<>();
+        for (int y0 = 0; y0 < h; y0 += BAND) {
+            int from = y0;
+            int to = Math.min(y0 + BAND, h);
+            rows.add(() -> {
+                double[] f = new double[w];
+                Envelope envelope = new Envelope(w);
+                for (int y = from; y < to; y++) {
+                    System.arraycopy(squared, y * w, f, 0, w);
+                    envelope.transform(f, w);
+                    for (int x = 0; x < w; x++) {
+                        data[y * w + x] = (float) Math.sqrt(f[x]);
+                    }
+                }
+                return null;
+            });
+        }
+        invokeAll(pool, rows);
+        return new DistanceField(w, h, data);
+    }
+
+    private static void invokeAll(ExecutorService pool, List<Callable<Void>> tasks)
+            throws InterruptedException, ExecutionException {
+        for (Future<Void> f : pool.invokeAll(tasks)) {
+            f.get();
+        }
+    }
+
+    /**
+     * One dimensional squared distance transform, reusing its buffers for all lines of a band.
+     */
+    private static final class Envelope {
+        private final int[] v;
+        private final double[] z;
+        private final double[] d;
+
+        Envelope(int n) {
+            v = new int[n];
+            z = new double[n + 1];
+            d = new double[n];
+        }
+
+        void transform(double[] f, int n) {
+            int k = 0;
+            v[0] = 0;
+            z[0] = -FAR;
+            z[1] = FAR;
+            for (int q = 1; q < n; q++) {
+                // intersections are always right of z[0], as all values are at most FAR
+                double s = intersection(f, q, v[k]);
+                while (s <= z[k]) {
+                    k--;
+                    s = intersection(f, q, v[k]);
+                }
+                k++;
+                v[k] = q;
+                z[k] = s;
+                z[k + 1] = FAR;
+            }
+            k = 0;
+            for (int q = 0; q < n; q++) {
+                while (z[k + 1] < q) {
+                    k++;
+                }
+                int p = v[k];
+                d[q] = (double) (q - p) * (q - p) + f[p];
+            }
+            System.arraycopy(d, 0, f, 0, n);
+        }
+
+        private static double intersection(double[] f, int q, int p) {
+            return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+        }
+    }
+
+    /**
+     * Halves the resolution, for the coarser levels of the search. A pixel takes the smallest
+     * distance of the four it covers, so that thin lines are not lost.
+     *
+     * @return the distance field at half the resolution, in its own pixels
+     */
+    public DistanceField half() {
+        int w = (width + 1) / 2;
+        int h = (height + 1) / 2;
+        float[] out = new float[w * h];
+        for (int y = 0; y < h; y++) {
+            int y0 = 2 * y;
+            int y1 = Math.min(y0 + 1, height - 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float m = Math.min(Math.min(data[y0 * width + x0], data[y0 * width + x1]),
+                        Math.min(data[y1 * width + x0], data[y1 * width + x1]));
+                out[y * w + x] = m / 2;
+            }
+        }
+        return new DistanceField(w, h, out);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Interpolates the distance bilinearly.
+     *
+     * @param x        column
+     * @param y        row
+     * @param truncate the largest distance returned, also the distance outside of the field
+     * @return the distance to the nearest dark pixel, at most {@code truncate}
+     */
+    public float get(double x, double y, float truncate) {
+        if (!(x >= 0 && y >= 0 && x <= width - 1 && y <= height - 1))
+            return truncate;
+        int x0 = Math.min((int) x, width - 2);
+        int y0 = Math.min((int) y, height - 2);
+        if (x0 < 0 || y0 < 0)
+            return Math.min(data[(int) y * width + (int) x], truncate);
+        float fx = (float) (x - x0);
+        float fy = (float) (y - y0);
+        int i = y0 * width + x0;
+        float top = data[i] + (data[i + 1] - data[i]) * fx;
+        float bottom = data[i + width] + (data[i + width + 1] - data[i + width]) * fx;
+        return Math.min(top + (bottom - top) * fy, truncate);
+    }
+}
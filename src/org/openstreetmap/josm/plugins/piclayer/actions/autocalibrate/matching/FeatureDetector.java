@@ -0,0 +1,218 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds corners in a picture and describes their surroundings, in the manner of ORB:
+ * FAST corners ranked by the Harris response, oriented by the intensity centroid and
+ * described by 256 rotated pixel comparisons (rotated BRIEF).
+ * <p>
+ * The picture is processed in tiles of {@link #TILE} pixels in parallel. Each tile keeps its
+ * share of the strongest corners, which spreads the corners over the whole picture.
+ */
+public final class FeatureDetector {
+
+    private static final int TILE = 256;
+    // radius of the patch for the orientation, the descriptor pattern and the margin at the border
+    private static final int PATCH_RADIUS = 15;
+    private static final int PATTERN_RADIUS = 13;
+    private static final int BORDER = 20;
+    private static final int HARRIS_RADIUS = 3;
+    private static final double HARRIS_K = 0.04;
+    private static final int DESCRIPTOR_BITS = 256;
+    // Bresenham circle of radius 3 around the candidate pixel
+    private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+    private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+    // pixel pairs of the descriptor, x1, y1, x2, y2 for each bit
+    private static final int[] PATTERN = new int[4 * DESCRIPTOR_BITS];
+
+    static {
+        // fixed seed, descriptors of different runs must be comparable
+        Random random = new Random(0x5EED);
+        for (int i = 0; i < PATTERN.length; i++) {
+            int v = (int) Math.round(random.nextGaussian() * PATTERN_RADIUS / 2.5);
+            PATTERN[i] = Math.max(-PATTERN_RADIUS, Math.min(PATTERN_RADIUS, v));
+        }
+    }
+
+    private final int threshold;
+    private final int maxFeatures;
+
+    /**
+     * Constructor
+     *
+     * @param threshold   minimum luminance difference of the FAST test
+     * @param maxFeatures maximum number of keypoints for the whole picture
+     */
+    public FeatureDetector(int threshold, int maxFeatures) {
+        this.threshold = threshold;
+        this.maxFeatures = maxFeatures;
+    }
+
+    /**
+     * Detects the keypoints of a picture.
+     *
+     * @param image the picture
+     * @param pool  threads for the tiles
+     * @return the keypoints, strongest first
+     * @throws InterruptedException if interrupted while waiting for the tiles
+     * @throws ExecutionException   if a tile failed
+     */
+    public List<Keypoint> detect(GrayImage image, ExecutorService pool) throws InterruptedException, ExecutionException {
+        GrayImage smooth = image.boxBlur(2);
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int tiles = ((w + TILE - 1) / TILE) * ((h + TILE - 1) / TILE);
+        // twice the fair share, tiles without structure leave theirs to the others
+        int perTile = Math.max(8, 2 * maxFeatures / Math.max(1, tiles));
+
+        List<Callable<List<Keypoint>>> tasks = new ArrayList<>(tiles);
+        for (int y = 0; y < h; y += TILE) {
+            for (int x = 0; x < w; x += TILE) {
+                int x0 = x;
+                int y0 = y;
+                tasks.add(() -> detectTile(image, smooth, x0, y0, Math.min(x0 + TILE, w), Math.min(y0 + TILE, h), perTile));
+            }
+        }
+        List<Keypoint> keypoints = new ArrayList<>();
+        for (Future<List<Keypoint>> f : pool.invokeAll(tasks)) {
+            keypoints.addAll(f.get());
+        }
+        keypoints.sort(Comparator.comparingDouble(Keypoint::getScore).reversed());
+        return keypoints.size() > maxFeatures ? new ArrayList<>(keypoints.subList(0, maxFeatures)) : keypoints;
+    }
+
+    private List<Keypoint> detectTile(GrayImage image, GrayImage smooth, int x0, int y0, int x1, int y1, int limit) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        // corner responses of the tile and a margin of one pixel, for the non-maximum suppression
+        int sx = x0 - 1;
+        int sy = y0 - 1;
+        int sw = x1 - x0 + 2;
+        int sh = y1 - y0 + 2;
+        float[] scores = new float[sw * sh];
+        for (int y = Math.max(sy, BORDER); y < Math.min(sy + sh, h - BORDER); y++) {
+            for (int x = Math.max(sx, BORDER); x < Math.min(sx + sw, w - BORDER); x++) {
+                if (isCorner(image, x, y)) {
+                    scores[(y - sy) * sw + x - sx] = (float) Math.max(harris(image, x, y), Float.MIN_VALUE);
+                }
+            }
+        }
+
+        List<int[]> candidates = new ArrayList<>();
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int i = (y - sy) * sw + x - sx;
+                float s = scores[i];
+                if (s > 0 && s >= scores[i - 1] && s > scores[i + 1] && s >= scores[i - sw] && s > scores[i + sw]
+                        && s >= scores[i - sw - 1] && s > scores[i + sw + 1] && s >= scores[i - sw + 1] && s > scores[i + sw - 1]) {
+                    candidates.add(new int[]{x, y, i});
+                }
+            }
+        }
+        candidates.sort((a, b) -> Float.compare(scores[b[2]], scores[a[2]]));
+
+        List<Keypoint> keypoints = new ArrayList<>(Math.min(limit, candidates.size()));
+        for (int k = 0; k < candidates.size() && k < limit; k++) {
+            int[] c = candidates.get(k);
+            double angle = orientation(image, c[0], c[1]);
+            keypoints.add(new Keypoint(c[0], c[1], scores[c[2]], angle, describe(smooth, c[0], c[1], angle)));
+        }
+        return keypoints;
+    }
+
+    /**
+     * FAST-9: nine contiguous pixels of the circle are all brighter or all darker than the center.
+     */
+    private boolean isCorner(GrayImage image, int x, int y) {
+        float p = image.get(x, y);
+        float hi = p + threshold;
+        float lo = p - threshold;
+        // any arc of nine pixels contains at least two of the four compass points
+        int brighter = 0;
+        int darker = 0;
+        for (int i = 0; i < 16; i += 4) {
+            float v = image.get(x + CIRCLE_X[i], y + CIRCLE_Y[i]);
+            if (v > hi) brighter++;
+            else if (v < lo) darker++;
+        }
+        if (brighter < 2 && darker < 2)
+            return false;
+        int brightMask = 0;
+        int darkMask = 0;
+        for (int i = 0; i < 16; i++) {
+            float v = image.get(x + CIRCLE_X[i], y + CIRCLE_Y[i]);
+            if (v > hi) brightMask |= 1 << i;
+            else if (v < lo) darkMask |= 1 << i;
+        }
+        return hasArc(brightMask) || hasArc(darkMask);
+    }
+
+    private static boolean hasArc(int mask) {
+        if (Integer.bitCount(mask) < 9)
+            return false;
+        int ring = mask | (mask << 16);
+        for (int i = 0; i < 16; i++) {
+            if (((ring >> i) & 0x1FF) == 0x1FF)
+                return true;
+        }
+        return false;
+    }
+
+    private static double harris(GrayImage image, int x, int y) {
+        double xx = 0, xy = 0, yy = 0;
+        for (int dy = -HARRIS_RADIUS; dy <= HARRIS_RADIUS; dy++) {
+            for (int dx = -HARRIS_RADIUS; dx <= HARRIS_RADIUS; dx++) {
+                double gx = image.get(x + dx + 1, y + dy) - image.get(x + dx - 1, y + dy);
+                double gy = image.get(x + dx, y + dy + 1) - image.get(x + dx, y + dy - 1);
+                xx += gx * gx;
+                xy += gx * gy;
+                yy += gy * gy;
+            }
+        }
+        double trace = xx + yy;
+        return xx * yy - xy * xy - HARRIS_K * trace * trace;
+    }
+
+    /**
+     * Direction from the keypoint to the intensity centroid of its patch.
+     */
+    private static double orientation(GrayImage image, int x, int y) {
+        double m10 = 0;
+        double m01 = 0;
+        for (int dy = -PATCH_RADIUS; dy <= PATCH_RADIUS; dy++) {
+            int dxMax = (int) Math.sqrt(PATCH_RADIUS * PATCH_RADIUS - dy * dy);
+            for (int dx = -dxMax; dx <= dxMax; dx++) {
+                float v = image.get(x + dx, y + dy);
+                m10 += dx * v;
+                m01 += dy * v;
+            }
+        }
+        return Math.atan2(m01, m10);
+    }
+
+    private static long[] describe(GrayImage smooth, int x, int y, double angle) {
+        double c = Math.cos(angle);
+        double s = Math.sin(angle);
+        long[] d = new long[DESCRIPTOR_BITS / 64];
+        for (int i = 0; i < DESCRIPTOR_BITS; i++) {
+            int p = 4 * i;
+            int x1 = x + (int) Math.round(c * PATTERN[p] - s * PATTERN[p + 1]);
+            int y1 = y + (int) Math.round(s * PATTERN[p] + c * PATTERN[p + 1]);
+            int x2 = x + (int) Math.round(c * PATTERN[p + 2] - s * PATTERN[p + 3]);
+            int y2 = y + (int) Math.round(s * PATTERN[p + 2] + c * PATTERN[p + 3]);
+            if (smooth.get(x1, y1) < smooth.get(x2, y2)) {
+                d[i >> 6] |= 1L << (i & 63);
+            }
+        }
+        return d;
+    }
+}
@@ -0,0 +1,106 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Pairs the keypoints of two pictures by their descriptors.
+ * <p>
+ * A pair is kept if both keypoints are each other's best match, the best match is clearly
+ * better than the second best (ratio test) and, as the picture is roughly placed already,
+ * the keypoints are not farther apart than a given radius.
+ */
+public final class FeatureMatcher {
+
+    private static final int MAX_DISTANCE = 64;
+    private static final double RATIO = 0.8;
+
+    private FeatureMatcher() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * A pair of matching keypoints.
+     */
+    public static final class Match {
+        private final Keypoint first;
+        private final Keypoint second;
+        private final int distance;
+
+        Match(Keypoint first, Keypoint second, int distance) {
+            this.first = first;
+            this.second = second;
+            this.distance = distance;
+        }
+
+        public Keypoint getFirst() {
+            return first;
+        }
+
+        public Keypoint getSecond() {
+            return second;
+        }
+
+        /**
+         * @return the Hamming distance of the descriptors
+         */
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    /**
+     * Matches two sets of keypoints.
+     *
+     * @param first  keypoints of the first picture
+     * @param second keypoints of the second picture
+     * @param radius maximum distance of matching keypoints in pixels
+     * @return the matches
+     */
+    public static List<Match> match(List<Keypoint> first, List<Keypoint> second, double radius) {
+        int[] forward = bestMatches(first, second, radius, true);
+        int[] backward = bestMatches(second, first, radius, false);
+        List<Match> matches = new ArrayList<>();
+        for (int i = 0; i < forward.length; i++) {
+            int j = forward[i];
+            if (j >= 0 && backward[j] == i) {
+                matches.add(new Match(first.get(i), second.get(j), first.get(i).distance(second.get(j))));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the best match of each keypoint, -1 where there is none.
+     */
+    private static int[] bestMatches(List<Keypoint> from, List<Keypoint> to, double radius, boolean ratioTest) {
+        double r2 = radius * radius;
+        int[] result = new int[from.size()];
+        IntStream.range(0, from.size()).parallel().forEach(i -> {
+            Keypoint k = from.get(i);
+            int best = Integer.MAX_VALUE;
+            int secondBest = Integer.MAX_VALUE;
+            int bestIndex = -1;
+            for (int j = 0; j < to.size(); j++) {
+                Keypoint o = to.get(j);
+                double dx = o.getX() - k.getX();
+                double dy = o.getY() - k.getY();
+                if (dx * dx + dy * dy > r2)
+                    continue;
+                int d = k.distance(o);
+                if (d < best) {
+                    secondBest = best;
+                    best = d;
+                    bestIndex = j;
+                } else if (d < secondBest) {
+                    secondBest = d;
+                }
+            }
+            boolean distinct = !ratioTest || secondBest == Integer.MAX_VALUE || best < RATIO * secondBest;
+            result[i] = best <= MAX_DISTANCE && distinct ? bestIndex : -1;
+        });
+        return result;
+    }
+}
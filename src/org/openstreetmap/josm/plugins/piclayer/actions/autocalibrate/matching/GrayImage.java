@@ -0,0 +1,143 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Luminance of a picture, 0 to 255, as the input of the feature detection and the alignment.
+ */
+public final class GrayImage {
+
+    private final int width;
+    private final int height;
+    private final float[] data;
+
+    private GrayImage(int width, int height, float[] data) {
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    /**
+     * Converts a picture. Transparent pixels are taken as white, like paper.
+     *
+     * @param image the picture
+     * @return the luminance
+     */
+    public static GrayImage of(BufferedImage image) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        float[] data = new float[w * h];
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                int c = row[x];
+                float a = (c >>> 24) / 255f;
+                float lum = 0.299f * ((c >> 16) & 0xFF) + 0.587f * ((c >> 8) & 0xFF) + 0.114f * (c & 0xFF);
+                data[y * w + x] = lum * a + 255 * (1 - a);
+            }
+        }
+        return new GrayImage(w, h, data);
+    }
+
+    /**
+     * Smooths the picture by a box filter, separately in both directions.
+     *
+     * @param radius radius of the box
+     * @return the smoothed picture
+     */
+    public GrayImage boxBlur(int radius) {
+        float[] tmp = new float[data.length];
+        float[] out = new float[data.length];
+        float norm = 1f / (2 * radius + 1);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += data[row + clamp(x + k, width)];
+                }
+                tmp[row + x] = sum * norm;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float sum = 0;
+                for (int k = -radius; k <= radius; k++) {
+                    sum += tmp[clamp(y + k, height) * width + x];
+                }
+                out[y * width + x] = sum * norm;
+            }
+        }
+        return new GrayImage(width, height, out);
+    }
+
+    /**
+     * Finds the edge pixels: the gradient of the Sobel filter exceeds the threshold and is
+     * largest across the edge, which thins the edges to a width of one pixel.
+     *
+     * @param threshold minimum luminance difference across the edge
+     * @return the edge pixels x0, y0, x1, y1, ...
+     */
+    public double[] edgePoints(float threshold) {
+        float[] magnitude = new float[data.length];
+        byte[] direction = new byte[data.length];
+        for (int y = 1; y < height - 1; y++) {
+            for (int x = 1; x < width - 1; x++) {
+                int i = y * width + x;
+                float gx = data[i - width + 1] + 2 * data[i + 1] + data[i + width + 1]
+                        - data[i - width - 1] - 2 * data[i - 1] - data[i + width - 1];
+                float gy = data[i + width - 1] + 2 * data[i + width] + data[i + width + 1]
+                        - data[i - width - 1] - 2 * data[i - width] - data[i - width + 1];
+                // the Sobel kernels weigh the difference by four
+                magnitude[i] = (float) Math.hypot(gx, gy) / 4;
+                float ax = Math.abs(gx);
+                float ay = Math.abs(gy);
+                // neighbours across the edge: 0 horizontal, 1 vertical, 2 and 3 diagonal
+                direction[i] = (byte) (ax > 2.414f * ay ? 0 : ay > 2.414f * ax ? 1 : gx * gy > 0 ? 2 : 3);
+            }
+        }
+        int[] offsets = {1, width, width + 1, width - 1};
+        double[] points = new double[256];
+        int n = 0;
+        for (int y = 2; y < height - 2; y++) {
+            for (int x = 2; x < width - 2; x++) {
+                int i = y * width + x;
+                float m = magnitude[i];
+                int o = offsets[direction[i]];
+                if (m < threshold || m < magnitude[i - o] || m <= magnitude[i + o])
+                    continue;
+                if (2 * n + 2 > points.length) {
+                    points = Arrays.copyOf(points, 2 * points.length);
+                }
+                points[2 * n] = x;
+                points[2 * n + 1] = y;
+                n++;
+            }
+        }
+        return Arrays.copyOf(points, 2 * n);
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x column, must be inside the picture
+     * @param y row, must be inside the picture
+     * @return the luminance of the pixel
+     */
+    public float get(int x, int y) {
+        return data[y * width + x];
+    }
+}
@@ -0,0 +1,64 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+/**
+ * A corner found by the {@link FeatureDetector}, with its binary descriptor.
+ */
+public final class Keypoint {
+
+    private final double x;
+    private final double y;
+    private final double score;
+    private final double angle;
+    private final long[] descriptor;
+
+    Keypoint(double x, double y, double score, double angle, long[] descriptor) {
+        this.x = x;
+        this.y = y;
+        this.score = score;
+        this.angle = angle;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @return the column in pixels
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * @return the row in pixels
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * @return the corner response, higher is more distinct
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return the orientation of the surroundings in radians
+     */
+    public double getAngle() {
+        return angle;
+    }
+
+    /**
+     * Returns the number of differing bits of two descriptors.
+     *
+     * @param other the other keypoint
+     * @return the Hamming distance
+     */
+    public int distance(Keypoint other) {
+        int d = 0;
+        for (int i = 0; i < descriptor.length; i++) {
+            d += Long.bitCount(descriptor[i] ^ other.descriptor[i]);
+        }
+        return d;
+    }
+}
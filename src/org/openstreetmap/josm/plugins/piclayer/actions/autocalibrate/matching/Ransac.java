@@ -0,0 +1,107 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.awt.geom.AffineTransform;
+import java.util.Random;
+
+import org.openstreetmap.josm.plugins.piclayer.transform.AffineFit;
+
+/**
+ * Separates correct point pairs from wrong ones by random sample consensus:
+ * affine transforms through three random pairs are tried, the one most pairs agree with wins.
+ */
+public final class Ransac {
+
+    private static final int MAX_ITERATIONS = 5000;
+    private static final double CONFIDENCE = 0.99;
+
+    private Ransac() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Finds the pairs consistent with one affine transform.
+     *
+     * @param src       source points x0, y0, x1, y1, ...
+     * @param dst       destination points, in the same order
+     * @param n         number of pairs
+     * @param threshold maximum distance of a transformed source point to its destination for an inlier
+     * @param random    random numbers, seeded for reproducible results
+     * @return which pairs are inliers, {@code null} if there are fewer than three or no transform was found
+     */
+    public static boolean[] findInliers(double[] src, double[] dst, int n, double threshold, Random random) {
+        if (n < 3)
+            return null;
+        double t2 = threshold * threshold;
+        double[] s = new double[6];
+        double[] d = new double[6];
+        boolean[] best = null;
+        int bestCount = 3;
+        long iterations = MAX_ITERATIONS;
+        for (int it = 0; it < iterations; it++) {
+            int a = random.nextInt(n);
+            int b = random.nextInt(n);
+            int c = random.nextInt(n);
+            if (a == b || b == c || a == c)
+                continue;
+            copy(src, a, s, 0);
+            copy(src, b, s, 1);
+            copy(src, c, s, 2);
+            copy(dst, a, d, 0);
+            copy(dst, b, d, 1);
+            copy(dst, c, d, 2);
+            AffineFit fit = AffineFit.fit(s, d, 3);
+            if (fit.getModel() != AffineFit.Model.AFFINE)
+                continue;
+            boolean[] inliers = new boolean[n];
+            int count = countInliers(fit.getTransform(), src, dst, n, t2, inliers);
+            if (count > bestCount) {
+                best = inliers;
+                bestCount = count;
+                // enough iterations to draw one sample of inliers with the given confidence
+                double w = (double) count / n;
+                double p = Math.max(1 - w * w * w, 1e-12);
+                iterations = Math.min(MAX_ITERATIONS, (long) Math.ceil(Math.log(1 - CONFIDENCE) / Math.log(p)));
+            }
+        }
+        if (best == null)
+            return null;
+
+        // refine with all inliers
+        double[] is = new double[2 * bestCount];
+        double[] id = new double[2 * bestCount];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (best[i]) {
+                copy(src, i, is, k);
+                copy(dst, i, id, k);
+                k++;
+            }
+        }
+        AffineFit refined = AffineFit.fit(is, id, k);
+        boolean[] inliers = new boolean[n];
+        if (countInliers(refined.getTransform(), src, dst, n, t2, inliers) >= bestCount)
+            return inliers;
+        return best;
+    }
+
+    private static void copy(double[] from, int i, double[] to, int j) {
+        to[2 * j] = from[2 * i];
+        to[2 * j + 1] = from[2 * i + 1];
+    }
+
+    private static int countInliers(AffineTransform t, double[] src, double[] dst, int n, double t2, boolean[] inliers) {
+        double[] p = new double[2];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            t.transform(src, 2 * i, p, 0, 1);
+            double dx = p[0] - dst[2 * i];
+            double dy = p[1] - dst[2 * i + 1];
+            inliers[i] = dx * dx + dy * dy <= t2;
+            if (inliers[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
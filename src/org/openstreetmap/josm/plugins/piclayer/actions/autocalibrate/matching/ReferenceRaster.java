@@ -0,0 +1,255 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.matching;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureWarp;
+
+/**
+ * Renders a picture and a reference for matching, both in the pixel frame of the picture at its
+ * current calibration, scaled down to a working size. The reference is either another picture layer
+ * or the OSM data, drawn as black lines on white.
+ * <p>
+ * Working pixel {@code u} corresponds to picture coordinate {@code u / scale - width / 2}, the picture
+ * coordinates being centered as in {@link PicLayerAbstract#getEastNorthTransform()}.
+ */
+public final class ReferenceRaster {
+
+    private static final float LINE_WIDTH = 2f;
+
+    private final PicLayerAbstract target;
+    private final double scale;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructor
+     *
+     * @param target  the picture to match
+     * @param maxSize maximum width and height of the working rasters
+     */
+    public ReferenceRaster(PicLayerAbstract target, int maxSize) {
+        this.target = target;
+        int w = target.getImageWidth();
+        int h = target.getImageHeight();
+        this.scale = Math.min(1, (double) maxSize / Math.max(w, h));
+        this.width = Math.max(1, (int) Math.ceil(w * scale));
+        this.height = Math.max(1, (int) Math.ceil(h * scale));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return pixels of the working rasters per pixel of the picture
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Converts a working pixel position to picture coordinates.
+     *
+     * @param u column of the working raster
+     * @param v row of the working raster
+     * @return the centered picture coordinates
+     */
+    public Point2D toPicture(double u, double v) {
+        return new Point2D.Double(u / scale - target.getImageWidth() / 2, v / scale - target.getImageHeight() / 2);
+    }
+
+    /**
+     * Converts a transform of the working rasters to picture coordinates, e.g. a correction found by matching
+     * which can then be concatenated to the affine calibration.
+     *
+     * @param workTransform transform of working pixel positions
+     * @return the same transform of centered picture coordinates
+     */
+    public AffineTransform toPicture(AffineTransform workTransform) {
+        AffineTransform pictureToWork = getPictureToWork();
+        AffineTransform t = AffineTransform.getTranslateInstance(-(target.getImageWidth() / 2), -(target.getImageHeight() / 2));
+        t.scale(1 / scale, 1 / scale);
+        t.concatenate(workTransform);
+        t.concatenate(pictureToWork);
+        return t;
+    }
+
+    /**
+     * Maps positions in the raster of {@link #renderTarget()}, which shows the picture without its warp,
+     * to the warped space the affine calibration and the references are rendered in.
+     *
+     * @param points x0, y0, x1, y1, ... of the positions, mapped in place
+     */
+    public void warpTargetPoints(double[] points) {
+        PictureWarp warp = target.getTransformer().getWarp();
+        if (warp == null)
+            return;
+        double dx = target.getImageWidth() / 2;
+        double dy = target.getImageHeight() / 2;
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = points[i] / scale - dx;
+            points[i + 1] = points[i + 1] / scale - dy;
+        }
+        warp.transform(points, 0, points, 0, points.length / 2);
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = (points[i] + dx) * scale;
+            points[i + 1] = (points[i + 1] + dy) * scale;
+        }
+    }
+
+    private AffineTransform getPictureToWork() {
+        AffineTransform t = AffineTransform.getScaleInstance(scale, scale);
+        t.translate(target.getImageWidth() / 2, target.getImageHeight() / 2);
+        return t;
+    }
+
+    private AffineTransform getEastNorthToWork() throws NoninvertibleTransformException {
+        AffineTransform t = getPictureToWork();
+        t.concatenate(target.getEastNorthTransform().createInverse());
+        return t;
+    }
+
+    private BufferedImage createRaster() {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Creates the graphics of a working raster, cleared to white.
+     */
+    private static Graphics2D createGraphics(BufferedImage raster) {
+        Graphics2D g = raster.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, raster.getWidth(), raster.getHeight());
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        return g;
+    }
+
+    /**
+     * Renders the picture itself, without its warp, see {@link #warpTargetPoints(double[])}.
+     *
+     * @return the working raster of the picture
+     */
+    public BufferedImage renderTarget() {
+        BufferedImage raster = createRaster();
+        Graphics2D g = createGraphics(raster);
+        try {
+            g.scale(scale, scale);
+            g.drawImage(target.getImage(), 0, 0, target.getImageWidth(), target.getImageHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return raster;
+    }
+
+    /**
+     * Renders another picture layer by its calibration. A non-affine correction of it is not applied.
+     *
+     * @param reference the other layer
+     * @return the working raster of the reference, {@code null} if the calibration of the picture is degenerated
+     */
+    public BufferedImage renderPicture(PicLayerAbstract reference) {
+        Image image = reference.getImage();
+        AffineTransform enToWork;
+        try {
+            enToWork = getEastNorthToWork();
+        } catch (NoninvertibleTransformException e) {
+            return null;
+        }
+        BufferedImage raster = createRaster();
+        Graphics2D g = createGraphics(raster);
+        try {
+            if (image != null) {
+                g.transform(enToWork);
+                g.transform(reference.getEastNorthTransform());
+                int w = reference.getImageWidth();
+                int h = reference.getImageHeight();
+                g.drawImage(image, -(w / 2), -(h / 2), w, h, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return raster;
+    }
+
+    /**
+     * Renders the ways of a data set.
+     *
+     * @param data       the data set
+     * @param projection the current projection
+     * @return the working raster of the data, {@code null} if the calibration of the picture is degenerated
+     */
+    public BufferedImage renderData(DataSet data, Projection projection) {
+        ProjectionBounds bounds = target.getEastNorthBounds();
+        AffineTransform enToWork;
+        try {
+            enToWork = getEastNorthToWork();
+        } catch (NoninvertibleTransformException e) {
+            return null;
+        }
+        BufferedImage raster = createRaster();
+        Graphics2D g = createGraphics(raster);
+        try {
+            if (bounds == null)
+                return raster;
+            LatLon corner = projection.eastNorth2latlon(bounds.getMin());
+            BBox box = new BBox(corner.lon(), corner.lat(), corner.lon(), corner.lat());
+            for (EastNorth en : new EastNorth[]{bounds.getMax(), new EastNorth(bounds.minEast, bounds.maxNorth),
+                    new EastNorth(bounds.maxEast, bounds.minNorth)}) {
+                corner = projection.eastNorth2latlon(en);
+                box.add(corner.lon(), corner.lat());
+            }
+
+            g.setColor(Color.BLACK);
+            g.setStroke(new BasicStroke(LINE_WIDTH, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            double[] p = new double[2];
+            for (Way way : data.searchWays(box)) {
+                if (!way.isUsable() || way.getNodesCount() < 2)
+                    continue;
+                Path2D.Double path = new Path2D.Double();
+                boolean first = true;
+                for (Node node : way.getNodes()) {
+                    EastNorth en = node.isLatLonKnown() ? node.getEastNorth() : null;
+                    if (en == null)
+                        continue;
+                    p[0] = en.east();
+                    p[1] = en.north();
+                    enToWork.transform(p, 0, p, 0, 1);
+                    if (first) {
+                        path.moveTo(p[0], p[1]);
+                        first = false;
+                    } else {
+                        path.lineTo(p[0], p[1]);
+                    }
+                }
+                g.draw(path);
+            }
+        } finally {
+            g.dispose();
+        }
+        return raster;
+    }
+}
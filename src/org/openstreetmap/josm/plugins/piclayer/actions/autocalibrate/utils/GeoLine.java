@@ -1,27 +1,76 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils;
 
-import org.openstreetmap.gui.jmapviewer.OsmMercator;
-
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Ellipsoid;
 
 /**
- * Class representing a GeoLine
+ * Class representing a GeoLine: the geodesic between two points on the WGS84 ellipsoid.
+ * Points are given as {@code Point2D} with the longitude as x and the latitude as y, in degrees.
+ * <p>
+ * Distance and azimuth are solved with the formulae of Vincenty when the line is created. The terms
+ * which only depend on the line are kept, so that points on the line are cheap to compute.
  */
 public class GeoLine {
 
+    private static final Ellipsoid ELLIPSOID = Ellipsoid.WGS84;
+    private static final int MAX_ITERATIONS = 200;
+    // convergence of the iterations in radians, far below a millimeter on the ground
+    private static final double EPSILON = 1e-12;
+
     private final double lat1;
     private final double lon1;
     private final double lat2;
     private final double lon2;
     private final double distance;    // in meter
+    private final double azimuth;     // at the start point, in radians clockwise from north
+
+    // terms of the direct problem which only depend on the start point and the azimuth
+    private final double sinAlpha1;
+    private final double cosAlpha1;
+    private final double sinU1;
+    private final double cosU1;
+    private final double sigma1;
+    private final double sinAlpha;
+    private final double cos2Alpha;
+    private final double coefficientA;
+    private final double coefficientB;
+    private final double coefficientC;
 
     public GeoLine(Point2D startPoint, Point2D endPoint) {
-        this.lat1 = startPoint.getY();
-        this.lon1 = startPoint.getX();
-        this.lat2 = endPoint.getY();
-        this.lon2 = endPoint.getX();
-        this.distance = getDistance();
+        this(startPoint.getY(), startPoint.getX(), endPoint.getY(), endPoint.getX(),
+                inverse(startPoint.getY(), startPoint.getX(), endPoint.getY(), endPoint.getX()));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param inverse distance in meter and azimuth at the start point in radians
+     */
+    private GeoLine(double lat1, double lon1, double lat2, double lon2, double[] inverse) {
+        this.lat1 = lat1;
+        this.lon1 = lon1;
+        this.lat2 = lat2;
+        this.lon2 = lon2;
+        this.distance = inverse[0];
+        this.azimuth = inverse[1];
+
+        this.sinAlpha1 = Math.sin(azimuth);
+        this.cosAlpha1 = Math.cos(azimuth);
+        double tanU1 = (1 - ELLIPSOID.f) * Math.tan(Math.toRadians(lat1));
+        this.cosU1 = 1 / Math.sqrt(1 + tanU1 * tanU1);
+        this.sinU1 = tanU1 * cosU1;
+        this.sigma1 = Math.atan2(tanU1, cosAlpha1);
+        this.sinAlpha = cosU1 * sinAlpha1;
+        this.cos2Alpha = 1 - sinAlpha * sinAlpha;
+        double u2 = cos2Alpha * secondEccentricitySquared();
+        this.coefficientA = 1 + u2 / 16384 * (4096 + u2 * (-768 + u2 * (320 - 175 * u2)));
+        this.coefficientB = u2 / 1024 * (256 + u2 * (-128 + u2 * (74 - 47 * u2)));
+        this.coefficientC = ELLIPSOID.f / 16 * cos2Alpha * (4 + ELLIPSOID.f * (4 - 3 * cos2Alpha));
     }
 
     public Point2D getStartPoint() {
@@ -34,22 +83,157 @@ public class GeoLine {
 
     /**
      * Method to get point on line at given distance from start point on.
+     * Distances beyond the end point or negative ones extend the line.
      *
      * @param distanceFromStart distance from start point on. Distance in meter.
      * @return new point on line.
      */
     public Point2D pointOnLine(double distanceFromStart) {
-        double newLat = lat1 + (lat2 - lat1) * (distanceFromStart / distance);
-        double newLon = lon1 + (lon2 - lon1) * (distanceFromStart / distance);
-        return new Point2D.Double(newLon, newLat);
+        if (distance == 0)
+            return getStartPoint();
+        double[] p = direct(distanceFromStart);
+        return new Point2D.Double(p[1], p[0]);
+    }
+
+    /**
+     * Method to get many points on the line at once.
+     *
+     * @param distancesFromStart distances from start point on. Distances in meter.
+     * @return new points on line, in the order of the distances.
+     */
+    public List<Point2D> pointsOnLine(double... distancesFromStart) {
+        List<Point2D> points = new ArrayList<>(distancesFromStart.length);
+        for (double d : distancesFromStart) {
+            points.add(pointOnLine(d));
+        }
+        return points;
     }
 
     /**
-     * Haversine formula
+     * Geodesic distance between start and end point.
      *
      * @return distance in meter
      */
     public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Direction of the line at the start point.
+     *
+     * @return azimuth in degrees clockwise from north, from -180 to 180
+     */
+    public double getAzimuth() {
+        return Math.toDegrees(azimuth);
+    }
+
+    /**
+     * Method to get the point at given distance and direction from a start point.
+     *
+     * @param startPoint start point
+     * @param azimuth    direction at the start point in degrees clockwise from north
+     * @param distance   distance from start point on. Distance in meter.
+     * @return new point
+     */
+    public static Point2D destination(Point2D startPoint, double azimuth, double distance) {
+        if (distance == 0)
+            return new Point2D.Double(startPoint.getX(), startPoint.getY());
+        double lat = startPoint.getY();
+        double lon = startPoint.getX();
+        double[] p = new GeoLine(lat, lon, lat, lon, new double[]{distance, Math.toRadians(azimuth)}).direct(distance);
+        return new Point2D.Double(p[1], p[0]);
+    }
+
+    private static double secondEccentricitySquared() {
+        double a2 = ELLIPSOID.a * ELLIPSOID.a;
+        double b2 = ELLIPSOID.b * ELLIPSOID.b;
+        return (a2 - b2) / b2;
+    }
+
+    /**
+     * Solves the direct problem from the cached terms.
+     *
+     * @return latitude and longitude in degrees, the longitude wrapped to -180 to 180
+     */
+    private double[] direct(double s) {
+        double sigma0 = s / (ELLIPSOID.b * coefficientA);
+        double sigma = sigma0;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double next = sigma0 + deltaSigma(coefficientB, Math.sin(sigma), Math.cos(sigma), Math.cos(2 * sigma1 + sigma));
+            boolean converged = Math.abs(next - sigma) < EPSILON;
+            sigma = next;
+            if (converged)
+                break;
+        }
+        double sinSigma = Math.sin(sigma);
+        double cosSigma = Math.cos(sigma);
+        double cos2SigmaM = Math.cos(2 * sigma1 + sigma);
+        double tmp = sinU1 * sinSigma - cosU1 * cosSigma * cosAlpha1;
+        double phi2 = Math.atan2(sinU1 * cosSigma + cosU1 * sinSigma * cosAlpha1,
+                (1 - ELLIPSOID.f) * Math.sqrt(sinAlpha * sinAlpha + tmp * tmp));
+        double lambda = Math.atan2(sinSigma * sinAlpha1, cosU1 * cosSigma - sinU1 * sinSigma * cosAlpha1);
+        double l = lambda - (1 - coefficientC) * ELLIPSOID.f * sinAlpha
+                * (sigma + coefficientC * sinSigma * (cos2SigmaM + coefficientC * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+        return new double[]{Math.toDegrees(phi2), LatLon.toIntervalLon(lon1 + Math.toDegrees(l))};
+    }
+
+    /**
+     * Solves the inverse problem. Nearly antipodal points, for which the iteration does not converge,
+     * get the spherical solution.
+     *
+     * @return distance in meter and azimuth at the first point in radians
+     */
+    private static double[] inverse(double lat1, double lon1, double lat2, double lon2) {
+        if (lat1 == lat2 && lon1 == lon2)
+            return new double[]{0, 0};
+        double f = ELLIPSOID.f;
+        double l = Math.toRadians(lon2 - lon1);
+        double u1 = Math.atan((1 - f) * Math.tan(Math.toRadians(lat1)));
+        double u2 = Math.atan((1 - f) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(u1);
+        double cosU1 = Math.cos(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU2 = Math.cos(u2);
+
+        double lambda = l;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+            double x = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSigma = Math.sqrt(cosU2 * sinLambda * cosU2 * sinLambda + x * x);
+            if (sinSigma == 0)
+                return new double[]{0, 0};
+            double cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            double sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            double cos2Alpha = 1 - sinAlpha * sinAlpha;
+            // on the equator cos2Alpha is 0
+            double cos2SigmaM = cos2Alpha != 0 ? cosSigma - 2 * sinU1 * sinU2 / cos2Alpha : 0;
+            double c = f / 16 * cos2Alpha * (4 + f * (4 - 3 * cos2Alpha));
+            double previous = lambda;
+            lambda = l + (1 - c) * f * sinAlpha
+                    * (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previous) < EPSILON) {
+                double uu = cos2Alpha * secondEccentricitySquared();
+                double a = 1 + uu / 16384 * (4096 + uu * (-768 + uu * (320 - 175 * uu)));
+                double b = uu / 1024 * (256 + uu * (-128 + uu * (74 - 47 * uu)));
+                double s = ELLIPSOID.b * a * (sigma - deltaSigma(b, sinSigma, cosSigma, cos2SigmaM));
+                double alpha1 = Math.atan2(cosU2 * Math.sin(lambda), cosU1 * sinU2 - sinU1 * cosU2 * Math.cos(lambda));
+                return new double[]{s, alpha1};
+            }
+        }
+        return sphericalInverse(lat1, lon1, lat2, lon2);
+    }
+
+    private static double deltaSigma(double b, double sinSigma, double cosSigma, double cos2SigmaM) {
+        return b * sinSigma * (cos2SigmaM + b / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+                - b / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+    }
+
+    /**
+     * Haversine formula and initial bearing on the sphere of the mean radius.
+     */
+    private static double[] sphericalInverse(double lat1, double lon1, double lat2, double lon2) {
         double phi1 = Math.toRadians(lat1);
         double phi2 = Math.toRadians(lat2);
         double deltaPhi = Math.toRadians(lat2 - lat1);
@@ -57,10 +241,10 @@ public class GeoLine {
 
         double a = Math.sin(deltaPhi / 2.0) * Math.sin(deltaPhi / 2.0)
                 + Math.cos(phi1) * Math.cos(phi2) * Math.sin(deltaLambda / 2.0) * Math.sin(deltaLambda / 2.0);
-
         double c = 2.0 * Math.atan2(Math.sqrt(a), Math.sqrt(1.0 - a));
-
-        return OsmMercator.EARTH_RADIUS * c;
+        double radius = (2 * ELLIPSOID.a + ELLIPSOID.b) / 3;
+        double bearing = Math.atan2(Math.sin(deltaLambda) * Math.cos(phi2),
+                Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(deltaLambda));
+        return new double[]{radius * c, bearing};
     }
-
 }
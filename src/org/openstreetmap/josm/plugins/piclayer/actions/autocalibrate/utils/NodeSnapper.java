@@ -0,0 +1,123 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Finds the nodes next to a point of the map view, for snapping reference points to them.
+ * <p>
+ * A data set keeps its nodes in a spatial index which is updated with every change of the data,
+ * so only the nodes in a small box around the point are looked at, however big the data set is.
+ * Distances are measured in screen pixels, i.e. in projected coordinates.
+ */
+public final class NodeSnapper {
+
+    // Preference for the snapping tolerance in screen pixels
+    private static final String SNAP_DISTANCE_PREF = "piclayer.snap-distance";
+
+    private NodeSnapper() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * @return the snapping tolerance in screen pixels
+     */
+    public static int getSnapDistance() {
+        return Math.max(1, Config.getPref().getInt(SNAP_DISTANCE_PREF, 10));
+    }
+
+    /**
+     * Returns the nodes closest to a point, within the given tolerance.
+     *
+     * @param mv        the map view
+     * @param data      the data set to search, may be {@code null}
+     * @param point     the point in view coordinates
+     * @param k         maximum number of nodes to return
+     * @param tolerance maximum distance in screen pixels
+     * @return the nodes, closest first
+     */
+    public static List<Node> findNearest(MapView mv, DataSet data, Point2D point, int k, double tolerance) {
+        if (data == null || k < 1)
+            return Collections.emptyList();
+        double x = point.getX();
+        double y = point.getY();
+        LatLon ll = mv.getLatLon(x - tolerance, y - tolerance);
+        BBox box = new BBox(ll.lon(), ll.lat(), ll.lon(), ll.lat());
+        ll = mv.getLatLon(x + tolerance, y - tolerance);
+        box.add(ll.lon(), ll.lat());
+        ll = mv.getLatLon(x + tolerance, y + tolerance);
+        box.add(ll.lon(), ll.lat());
+        ll = mv.getLatLon(x - tolerance, y + tolerance);
+        box.add(ll.lon(), ll.lat());
+
+        List<Node> nearest = new ArrayList<>(k + 1);
+        List<Double> distances = new ArrayList<>(k + 1);
+        double limit = tolerance * tolerance;
+        for (Node node : data.searchNodes(box)) {
+            if (!node.isUsable() || !node.isLatLonKnown())
+                continue;
+            double d = mv.getPoint2D(node).distanceSq(x, y);
+            if (d > limit)
+                continue;
+            // insertion into the k best so far
+            int i = distances.size();
+            while (i > 0 && distances.get(i - 1) > d) {
+                i--;
+            }
+            if (i < k) {
+                distances.add(i, d);
+                nearest.add(i, node);
+                if (nearest.size() > k) {
+                    distances.remove(k);
+                    nearest.remove(k);
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Returns the node closest to a point within the snapping tolerance.
+     *
+     * @param mv    the map view
+     * @param data  the data set to search, may be {@code null}
+     * @param point the point in view coordinates
+     * @return the node, {@code null} if there is none close enough
+     */
+    public static Node findNearest(MapView mv, DataSet data, Point2D point) {
+        List<Node> nodes = findNearest(mv, data, point, 1, getSnapDistance());
+        return nodes.isEmpty() ? null : nodes.get(0);
+    }
+
+    /**
+     * Returns the node closest to a point. The search starts within the snapping tolerance and
+     * the box is doubled until a node is found, so that a click next to a sparse area still picks one.
+     *
+     * @param mv           the map view
+     * @param data         the data set to search, may be {@code null}
+     * @param point        the point in view coordinates
+     * @param maxTolerance largest distance in screen pixels to search
+     * @return the node, {@code null} if there is none within the largest distance
+     */
+    public static Node findNearestAround(MapView mv, DataSet data, Point2D point, double maxTolerance) {
+        double tolerance = getSnapDistance();
+        while (true) {
+            List<Node> nodes = findNearest(mv, data, point, 1, Math.min(tolerance, maxTolerance));
+            if (!nodes.isEmpty())
+                return nodes.get(0);
+            if (tolerance >= maxTolerance)
+                return null;
+            tolerance *= 2;
+        }
+    }
+}
@@ -21,9 +21,11 @@ import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromKML;
+import org.openstreetmap.josm.plugins.piclayer.layer.ZipImageIndex;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLGroundOverlay;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLReader;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
 
 /**
  * Action responsible for creation of new layers based on image files.
@@ -106,8 +108,6 @@ public class NewLayerFromFileAction extends JosmAction {
             }
 
             for (File file : fc.getSelectedFiles()) {
-                // TODO: we need a progress bar here, it can take quite some time
-
                 Config.getPref().put(m_lastdirprefname, file.getParent());
 
                 // Create layer from file
@@ -122,18 +122,51 @@ public class NewLayerFromFileAction extends JosmAction {
                         addNewLayerFromKML(file, overlay, newLayerPos);
                     }
                 } else {
-                    addNewLayerFromFile(file, newLayerPos, fc.getSelectedFiles().length == 1);
+                    String imgNameInZip = null;
+                    if ("zip".equalsIgnoreCase(PicLayerFromFile.getFileExtension(file))) {
+                        try {
+                            imgNameInZip = selectImageInZip(file);
+                        } catch (IOException e) {
+                            Logging.warn(e);
+                            JOptionPane.showMessageDialog(null, e.getMessage(), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+                        }
+                        if (imgNameInZip == null) continue;
+                    }
+                    addNewLayerFromFile(file, imgNameInZip, newLayerPos, fc.getSelectedFiles().length == 1);
                 }
             }
         }
     }
 
-    private void addNewLayerFromFile(File file, int newLayerPos, boolean isZoomToLayer) {
+    /**
+     * Lets the user choose the picture if a zip archive contains more than one.
+     *
+     * @param file the zip archive
+     * @return name of the chosen picture, {@code null} if canceled or the archive contains no picture
+     * @throws IOException if the archive cannot be read
+     */
+    private String selectImageInZip(File file) throws IOException {
+        List<ZipImageIndex.Picture> pictures = ZipImageIndex.of(file).getPictures();
+        if (pictures.isEmpty()) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), tr("No picture found in {0}", file.getName()),
+                    tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            return null;
+        }
+        if (pictures.size() == 1)
+            return pictures.get(0).getName();
+        Object[] names = pictures.stream().map(ZipImageIndex.Picture::getName).toArray();
+        return (String) JOptionPane.showInputDialog(MainApplication.getMainFrame(),
+                tr("The archive {0} contains several pictures.\nWhich one do you want to load?", file.getName()),
+                tr("Select a picture"), JOptionPane.QUESTION_MESSAGE, null, names, names[0]);
+    }
+
+    private void addNewLayerFromFile(File file, String imgNameInZip, int newLayerPos, boolean isZoomToLayer) {
         try {
-            PicLayerFromFile layer = new PicLayerFromFile(file);
-            layer.initialize();
+            PicLayerFromFile layer = new PicLayerFromFile(file, imgNameInZip);
+            // the image is decoded in the background, the layer shows a placeholder meanwhile
+            layer.initializeInBackground(() -> zoomToLayer(layer, isZoomToLayer));
 
-            placeLayer(layer, newLayerPos, isZoomToLayer);
+            placeLayer(layer, newLayerPos);
         } catch (IOException e) {
             // Failed
             System.out.println("NewLayerFromFileAction::actionPerformed - " + e.getMessage());
@@ -141,12 +174,14 @@ public class NewLayerFromFileAction extends JosmAction {
         }
     }
 
-    private void placeLayer(PicLayerAbstract layer, int newLayerPos, boolean isZoomToLayer) throws IOException {
+    private void placeLayer(PicLayerAbstract layer, int newLayerPos) {
         // Add layer only if successfully initialized
 
         MainApplication.getLayerManager().addLayer(layer);
-        MainApplication.getMap().mapView.moveLayer(layer, newLayerPos++);
+        MainApplication.getMap().mapView.moveLayer(layer, newLayerPos);
+    }
 
+    private void zoomToLayer(PicLayerAbstract layer, boolean isZoomToLayer) {
         if (isZoomToLayer && Config.getPref().getInt("piclayer.zoom-on-load", 1) != 0) {
             // if we are loading a single picture file, zoom on it, so that the user can see something
             BoundingXYVisitor v = new BoundingXYVisitor();
@@ -158,9 +193,9 @@ public class NewLayerFromFileAction extends JosmAction {
     private void addNewLayerFromKML(File root, KMLGroundOverlay overlay, int newLayerPos) {
         try {
             PicLayerFromKML layer = new PicLayerFromKML(root, overlay);
-            layer.initialize();
+            layer.initializeInBackground(() -> zoomToLayer(layer, true));
 
-            placeLayer(layer, newLayerPos, true);
+            placeLayer(layer, newLayerPos);
         } catch (IOException e) {
             // Failed
             System.out.println("NewLayerFromFileAction::actionPerformed - " + e.getMessage());
@@ -0,0 +1,276 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.newlayer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.filechooser.FileFilter;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerMosaic;
+import org.openstreetmap.josm.plugins.piclayer.layer.ZipImageIndex;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Action creating one layer for each picture of a zip archive or a folder, or a single {@link PicLayerMosaic}.
+ * <p>
+ * The pictures are decoded in parallel by a bounded pool of threads, each one together with its
+ * calibration or world file. The layers are added in the order of the pictures as soon as they are ready.
+ */
+public class NewLayersFromArchiveAction extends JosmAction {
+
+    private static final String LASTDIR_PREF = "piclayer.lastdir";
+    // Preference for the number of pictures decoded at the same time
+    private static final String THREADS_PREF = "piclayer.import-threads";
+
+    /**
+     * Accepts zip archives and folders.
+     */
+    private static class ArchiveFileFilter extends FileFilter {
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() || "zip".equalsIgnoreCase(PicLayerFromFile.getFileExtension(f));
+        }
+
+        @Override
+        public String getDescription() {
+            return tr("Folders, *.zip");
+        }
+    }
+
+    /**
+     * Constructor...
+     */
+    public NewLayersFromArchiveAction() {
+        super(tr("New picture layers from archive or folder..."), "layericon24", null, null, false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        JFileChooser fc = new JFileChooser(Config.getPref().get(LASTDIR_PREF));
+        fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fc.setAcceptAllFileFilterUsed(false);
+        fc.setFileFilter(new ArchiveFileFilter());
+        if (fc.showOpenDialog(MainApplication.getMainFrame()) != JFileChooser.APPROVE_OPTION)
+            return;
+        File file = fc.getSelectedFile();
+        Config.getPref().put(LASTDIR_PREF, file.getParent());
+
+        List<PicLayerFromFile> layers = new ArrayList<>();
+        try {
+            if (file.isDirectory()) {
+                for (File picture : listPictures(file)) {
+                    layers.add(new PicLayerFromFile(picture));
+                }
+            } else {
+                for (ZipImageIndex.Picture picture : ZipImageIndex.of(file).getPictures()) {
+                    layers.add(new PicLayerFromFile(file, picture.getName()));
+                }
+            }
+            for (PicLayerFromFile layer : layers) {
+                layer.initializeForLoading();
+            }
+        } catch (IOException ex) {
+            Logging.warn(ex);
+            JOptionPane.showMessageDialog(null, ex.getMessage(), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (layers.isEmpty()) {
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), tr("No picture found in {0}", file.getName()),
+                    tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        int mode = 0;
+        if (layers.size() > 1) {
+            Object[] options = {tr("One layer per picture"), tr("One mosaic layer"), tr("Cancel")};
+            mode = JOptionPane.showOptionDialog(MainApplication.getMainFrame(),
+                    tr("{0} pictures found in {1}.\nHow do you want to load them?", layers.size(), file.getName()),
+                    tr("Load pictures"), JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+        }
+        if (mode == 0) {
+            MainApplication.worker.submit(new BulkLoadTask(layers, getNewLayerPosition()));
+        } else if (mode == 1) {
+            // the pictures of a mosaic are decoded when they get visible, only their placement is needed now
+            PicLayerMosaic mosaic = new PicLayerMosaic(file.getName(), layers);
+            int pos = getNewLayerPosition();
+            MainApplication.getLayerManager().addLayer(mosaic);
+            MainApplication.getMap().mapView.moveLayer(mosaic, pos);
+            MainApplication.worker.submit(new MosaicPlacementTask(mosaic));
+        }
+    }
+
+    /**
+     * The first layer is placed on top of the other picture layers, or at the bottom of the stack if there is none yet.
+     */
+    private static int getNewLayerPosition() {
+        int newLayerPos = MainApplication.getLayerManager().getLayers().size();
+        for (Layer l : MainApplication.getLayerManager().getLayersOfType(PicLayerAbstract.class)) {
+            int pos = MainApplication.getLayerManager().getLayers().indexOf(l);
+            if (pos < newLayerPos) newLayerPos = pos;
+        }
+        return newLayerPos;
+    }
+
+    /**
+     * Lists the pictures of a folder which can be decoded, sorted by name.
+     */
+    private static List<File> listPictures(File dir) {
+        Set<String> suffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        File[] files = dir.listFiles(f -> f.isFile() && suffixes.contains(PicLayerFromFile.getFileExtension(f).toLowerCase(Locale.ROOT)));
+        if (files == null)
+            return new ArrayList<>();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Places the pictures of a mosaic layer.
+     */
+    private static class MosaicPlacementTask extends PleaseWaitRunnable {
+
+        private final PicLayerMosaic mosaic;
+
+        MosaicPlacementTask(PicLayerMosaic mosaic) {
+            super(tr("Placing pictures"));
+            this.mosaic = mosaic;
+        }
+
+        @Override
+        protected void realRun() {
+            // the task of the monitor is started by PleaseWaitRunnable
+            mosaic.readImageSizes(progressMonitor.createSubTaskMonitor(ProgressMonitor.ALL_TICKS, false));
+        }
+
+        @Override
+        protected void finish() {
+            GuiHelper.runInEDT(() -> {
+                mosaic.loadCalibrations();
+                if (Config.getPref().getInt("piclayer.zoom-on-load", 1) != 0) {
+                    BoundingXYVisitor v = new BoundingXYVisitor();
+                    mosaic.visitBoundingBox(v);
+                    MainApplication.getMap().mapView.zoomTo(v);
+                }
+            });
+        }
+
+        @Override
+        protected void cancel() {
+            // readImageSizes stops when the monitor is canceled
+        }
+    }
+
+    /**
+     * Decodes the pictures of all layers in parallel and adds the layers in order.
+     */
+    private static class BulkLoadTask extends PleaseWaitRunnable {
+
+        private final List<PicLayerFromFile> layers;
+        private final int newLayerPos;
+        private final List<PicLayerAbstract> added = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        private ExecutorService pool;
+
+        BulkLoadTask(List<PicLayerFromFile> layers, int newLayerPos) {
+            super(trn("Loading {0} picture", "Loading {0} pictures", layers.size(), layers.size()));
+            this.layers = layers;
+            this.newLayerPos = newLayerPos;
+        }
+
+        @Override
+        protected void realRun() {
+            int threads = Config.getPref().getInt(THREADS_PREF, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            pool = Executors.newFixedThreadPool(Math.max(1, threads), Utils.newThreadFactory("piclayer-import-%d", Thread.NORM_PRIORITY));
+            // the task of the monitor is started by PleaseWaitRunnable
+            progressMonitor.setTicksCount(layers.size());
+            progressMonitor.subTask(tr("Decoding pictures"));
+            try {
+                List<Future<Boolean>> futures = new ArrayList<>(layers.size());
+                for (PicLayerFromFile layer : layers) {
+                    ProgressMonitor monitor = progressMonitor.createSubTaskMonitor(1, false);
+                    futures.add(pool.submit(() -> !progressMonitor.isCanceled() && layer.loadImage(monitor)));
+                }
+                // the layers are placed one after the other, in the order of the pictures
+                for (int i = 0; i < layers.size() && !progressMonitor.isCanceled(); i++) {
+                    PicLayerFromFile layer = layers.get(i);
+                    try {
+                        if (futures.get(i).get()) {
+                            int pos = newLayerPos + added.size();
+                            GuiHelper.runInEDT(() -> {
+                                MainApplication.getLayerManager().addLayer(layer);
+                                MainApplication.getMap().mapView.moveLayer(layer, pos);
+                                layer.finishLoading();
+                            });
+                            added.add(layer);
+                        }
+                    } catch (ExecutionException e) {
+                        Logging.warn(e);
+                        errors.add(layer.getName() + ": " + e.getCause().getMessage());
+                    } catch (CancellationException e) {
+                        Logging.trace(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        @Override
+        protected void finish() {
+            GuiHelper.runInEDT(() -> {
+                if (!added.isEmpty() && Config.getPref().getInt("piclayer.zoom-on-load", 1) != 0) {
+                    BoundingXYVisitor v = new BoundingXYVisitor();
+                    for (PicLayerAbstract layer : added) {
+                        layer.visitBoundingBox(v);
+                    }
+                    MainApplication.getMap().mapView.zoomTo(v);
+                }
+                if (!errors.isEmpty()) {
+                    JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                            tr("Some pictures could not be loaded:") + "\n" + String.join("\n", errors),
+                            tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+                }
+            });
+        }
+
+        @Override
+        protected void cancel() {
+            // decoding is aborted by ImageDecoder when the monitor is canceled
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+}
@@ -16,6 +16,9 @@ import org.openstreetmap.josm.tools.Logging;
  */
 public class TransformPointAction extends GenericPicTransformAction {
 
+    // the transformed point is only read by updatePair, it is reused for every mouse event of a drag
+    private final Point2D pressed = new Point2D.Double();
+
     public TransformPointAction() {
         super(tr("PicLayer Transform point"), tr("Point transformed"), "transformpoint", tr("Transform point on the picture"),
                 ImageProvider.getCursor("crosshair", null));
@@ -24,7 +27,7 @@ public class TransformPointAction extends GenericPicTransformAction {
     @Override
     protected void doAction(MouseEvent e) {
         try {
-            Point2D pressed = currentLayer.transformPoint(e.getPoint());
+            currentLayer.transformPoint(e.getPoint(), pressed);
             if (selectedPoint != null) {
                 /*if (currentLayer.getTransformer().getOriginPoints().size() < 3)
                     JOptionPane.showMessageDialog(null,
@@ -34,13 +37,19 @@ public class TransformPointAction extends GenericPicTransformAction {
                 currentLayer.getTransformer().updatePair(selectedPoint, pressed);
                 //}
             }
-
-            currentCommand.addIfChanged();
         } catch (NoninvertibleTransformException e1) {
             Logging.error(e1);
         }
     }
 
+    @Override
+    public void mousePressed(MouseEvent e) {
+        super.mousePressed(e);
+        if (currentLayer != null) {
+            currentLayer.getTransformer().startUpdatePairs();
+        }
+    }
+
     @Override
     public void enterMode() {
         super.enterMode();
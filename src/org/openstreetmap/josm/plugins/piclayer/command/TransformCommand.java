@@ -11,6 +11,7 @@ import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.data.UndoRedoHandler;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.projection.Projection;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
 import org.openstreetmap.josm.plugins.piclayer.transform.PictureTransform;
 import org.openstreetmap.josm.tools.ImageProvider;
@@ -20,6 +21,9 @@ public class TransformCommand extends Command {
     private PicLayerAbstract layer;
     private PictureTransform beforeTransform;
     private PictureTransform afterTransform;
+    // the transforms are relative to the initial image scale, which e.g. loading a world file changes
+    private double beforeScale;
+    private double afterScale;
     private String actionName;
 
     public TransformCommand(PicLayerAbstract layer, String actionName) {
@@ -27,6 +31,24 @@ public class TransformCommand extends Command {
         this.layer = layer;
         this.actionName = actionName;
         beforeTransform = extractTransform();
+        beforeScale = layer.getInitialImageScale();
+    }
+
+    public PicLayerAbstract getLayer() {
+        return layer;
+    }
+
+    /**
+     * Moves the stored calibrations into a new projection, like the layer moves its own.
+     *
+     * @param oldProjection the projection the calibrations are in
+     * @param newProjection the new projection
+     */
+    public void reproject(Projection oldProjection, Projection newProjection) {
+        layer.reprojectCalibration(beforeTransform, beforeScale, oldProjection, newProjection);
+        if (afterTransform != null) {
+            layer.reprojectCalibration(afterTransform, afterScale, oldProjection, newProjection);
+        }
     }
 
     @Override
@@ -36,19 +58,21 @@ public class TransformCommand extends Command {
 
     @Override
     public boolean executeCommand() {
-        placeTransform(afterTransform);
+        placeTransform(afterTransform, afterScale);
         layer.invalidate();
         return true;
     }
 
     @Override
     public void undoCommand() {
-        placeTransform(beforeTransform);
+        placeTransform(beforeTransform, beforeScale);
         layer.invalidate();
     }
 
-    private void placeTransform(PictureTransform transform) {
+    private void placeTransform(PictureTransform transform, double scale) {
+        layer.setInitialImageScale(scale);
         layer.getTransformer().setTransform(transform.getTransform());
+        layer.getTransformer().setWarp(transform.getWarp());
         layer.getTransformer().setOriginPoints(transform.getOriginPoints());
         layer.getTransformer().setImagePosition(transform.getImagePosition());
     }
@@ -57,6 +81,7 @@ public class TransformCommand extends Command {
         PictureTransform transform = new PictureTransform();
         transform.setOriginPoints(layer.getTransformer().getOriginPoints());
         transform.setTransform(layer.getTransformer().getTransform());
+        transform.setWarp(layer.getTransformer().getWarp());
         transform.setImagePosition(layer.getTransformer().getImagePosition());
         return transform;
     }
@@ -76,10 +101,14 @@ public class TransformCommand extends Command {
     public void addIfChanged() {
 
         afterTransform = extractTransform();
+        afterScale = layer.getInitialImageScale();
 
+        // warps are immutable, a changed warp is a different object
         boolean changed = !beforeTransform.getTransform().equals(afterTransform.getTransform()) ||
+                beforeTransform.getWarp() != afterTransform.getWarp() ||
                 !beforeTransform.getOriginPoints().equals(afterTransform.getOriginPoints()) ||
-                !beforeTransform.getImagePosition().equals(afterTransform.getImagePosition());
+                !beforeTransform.getImagePosition().equals(afterTransform.getImagePosition()) ||
+                beforeScale != afterScale;
         if (changed && !alreadyAdded) {
             UndoRedoHandler.getInstance().add(this);
             alreadyAdded = true;
@@ -1,11 +1,20 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.io.session;
 
+import org.openstreetmap.josm.io.session.SessionWriter;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
+import org.w3c.dom.Element;
 
 public class FileSessionExporter extends PicLayerAbstractSessionExporter<PicLayerFromFile> {
 
     public FileSessionExporter(PicLayerFromFile layer) {
         super(layer);
     }
+
+    @Override
+    protected void addImageAttrs(Element imgElem, SessionWriter.ExportSupport support) {
+        if (layer.getImageNameInZip() != null) {
+            addAttr("zipEntry", layer.getImageNameInZip(), imgElem, support);
+        }
+    }
 }
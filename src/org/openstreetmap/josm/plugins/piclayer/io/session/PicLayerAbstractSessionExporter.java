@@ -61,6 +61,7 @@ public abstract class PicLayerAbstractSessionExporter<T extends PicLayerAbstract
             // FIXME: relative filenames as option
 
             addAttr("thumbnail", Boolean.toString(entry.hasThumbnail()), imgElem, support);
+            addImageAttrs(imgElem, support);
             if (entry.getPos() != null) {
                 Element posElem = support.createElement("position");
                 posElem.setAttribute("lat", Double.toString(entry.getPos().lat()));
@@ -73,6 +74,15 @@ public abstract class PicLayerAbstractSessionExporter<T extends PicLayerAbstract
         return layerElem;
     }
 
+    /**
+     * Adds layer specific attributes of the picture. The default adds none.
+     *
+     * @param imgElem the element of the picture
+     * @param support the export support
+     */
+    protected void addImageAttrs(Element imgElem, SessionWriter.ExportSupport support) {
+    }
+
     protected static void addAttr(String name, String value, Element element, SessionWriter.ExportSupport support) {
         Element attrElem = support.createElement(name);
         attrElem.appendChild(support.createTextNode(value));
@@ -46,6 +46,7 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
         }
 
         List<ImageEntry> entries = new ArrayList<>();
+        String zipEntry = null;
         NodeList imgNodes = elem.getChildNodes();
         for (int i = 0; i < imgNodes.getLength(); ++i) {
             Node imgNode = imgNodes.item(i);
@@ -57,7 +58,11 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
                     for (int j = 0; j < attrNodes.getLength(); ++j) {
                         Node attrNode = attrNodes.item(j);
                         if (attrNode.getNodeType() == Node.ELEMENT_NODE) {
-                            handleElement(entry, (Element) attrNode);
+                            if ("zipEntry".equals(((Element) attrNode).getTagName())) {
+                                zipEntry = attrNode.getTextContent();
+                            } else {
+                                handleElement(entry, (Element) attrNode);
+                            }
                         }
                     }
                     entries.add(entry);
@@ -84,7 +89,7 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
                 layer.initialize();
             }
         } else {
-            layer = new PicLayerFromFile(file);
+            layer = new PicLayerFromFile(file, zipEntry);
             layer.initialize();
         }
 
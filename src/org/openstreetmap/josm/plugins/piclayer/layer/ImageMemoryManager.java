@@ -0,0 +1,144 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Keeps the memory used by the pictures of all PicLayers within a budget.
+ * <p>
+ * Layers report the memory of their decoded picture whenever it changes and when they are painted.
+ * If the sum exceeds the budget, the full resolution of hidden layers and then of the least
+ * recently painted layers is dropped. Those layers keep a thumbnail and decode the picture
+ * again when they are painted at a scale which needs it.
+ * <p>
+ * Layers painted in the current repaint of the map view are never dropped, otherwise layers on
+ * screen which need more than the budget together would drop and decode each other forever.
+ */
+public class ImageMemoryManager {
+
+    // Preference for the memory budget of all pictures in MB, 0 for a quarter of the maximum heap
+    private static final String BUDGET_PREF = "piclayer.memory-budget-mb";
+    // pictures are dropped until this fraction of the budget is used, so that the next paint does not drop again
+    private static final double LOW_WATER_MARK = 0.8;
+
+    // decoded bytes per layer, in the order of the last paint
+    private final LinkedHashMap<PicLayerAbstract, Long> layers = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+    private volatile long budget = readBudget();
+    // layers painted since the current repaint of the map view started, only accessed in the EDT
+    private final Set<PicLayerAbstract> paintedInCycle = new HashSet<>();
+
+    /**
+     * Constructor
+     */
+    public ImageMemoryManager() {
+        Config.getPref().addKeyPreferenceChangeListener(BUDGET_PREF, e -> budget = readBudget());
+    }
+
+    /**
+     * Records the memory used by the picture of a layer, e.g. after a new picture was set.
+     *
+     * @param layer the layer
+     * @param bytes memory used by its picture
+     */
+    public synchronized void update(PicLayerAbstract layer, long bytes) {
+        Long old = layers.put(layer, bytes);
+        usedBytes += bytes - (old != null ? old : 0);
+    }
+
+    /**
+     * Records that a layer was painted and drops pictures of other layers if the budget is exceeded.
+     * Must be called in the EDT.
+     *
+     * @param layer the painted layer
+     * @param bytes memory used by its picture
+     */
+    public void painted(PicLayerAbstract layer, long bytes) {
+        if (paintedInCycle.isEmpty()) {
+            // all layers are painted within one event, the cycle ends after it
+            SwingUtilities.invokeLater(paintedInCycle::clear);
+        }
+        paintedInCycle.add(layer);
+        List<PicLayerAbstract> candidates;
+        long limit = budget;
+        synchronized (this) {
+            update(layer, bytes);
+            if (usedBytes <= limit)
+                return;
+            // hidden layers first, then the least recently painted ones
+            candidates = new ArrayList<>(layers.size());
+            for (PicLayerAbstract l : layers.keySet()) {
+                if (!l.isVisible() && !paintedInCycle.contains(l)) {
+                    candidates.add(l);
+                }
+            }
+            for (PicLayerAbstract l : layers.keySet()) {
+                if (l.isVisible() && !paintedInCycle.contains(l)) {
+                    candidates.add(l);
+                }
+            }
+        }
+        // releasing calls update(), so iterate outside of the lock on the map
+        for (PicLayerAbstract l : candidates) {
+            if (getUsedBytes() <= limit * LOW_WATER_MARK)
+                break;
+            if (l.releaseImage()) {
+                Logging.debug("PicLayer: released the picture of {0}, {1} bytes used", l.getName(), getUsedBytes());
+            }
+        }
+    }
+
+    /**
+     * Forgets a layer, to be called when it is destroyed.
+     *
+     * @param layer the layer
+     */
+    public synchronized void remove(PicLayerAbstract layer) {
+        Long old = layers.remove(layer);
+        if (old != null) {
+            usedBytes -= old;
+        }
+    }
+
+    /**
+     * Returns the memory budget of all pictures, see the {@code piclayer.memory-budget-mb} preference.
+     *
+     * @return the budget in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    private static long readBudget() {
+        long budget = Config.getPref().getInt(BUDGET_PREF, 0) * 1_048_576L;
+        return budget > 0 ? budget : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Returns the memory used by the pictures of all layers.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the memory used by the picture of each layer, for diagnostics.
+     *
+     * @return the size in bytes per layer, in the order of the last paint
+     */
+    public synchronized Map<PicLayerAbstract, Long> getUsage() {
+        return new LinkedHashMap<>(layers);
+    }
+}
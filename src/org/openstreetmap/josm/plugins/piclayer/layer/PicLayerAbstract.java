@@ -6,7 +6,10 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -15,15 +18,22 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import org.openstreetmap.josm.actions.RenameLayerAction;
+import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.UndoRedoHandler;
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
@@ -32,17 +42,37 @@ import org.openstreetmap.josm.data.projection.ProjectionRegistry;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.MapViewState;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.layer.geoimage.ImageEntry;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.PicLayerPlugin;
 import org.openstreetmap.josm.plugins.piclayer.actions.LoadPictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.LoadPictureCalibrationFromWorldAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.ResetCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationToWorldAction;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.AutoAlignAction;
+import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.AutoMatchAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.GeoLine;
+import org.openstreetmap.josm.plugins.piclayer.command.TransformCommand;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.CompatibleImage;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImagePyramid;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.MappedImage;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.RegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.RenderCache;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.TileCache;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.WarpRenderer;
+import org.openstreetmap.josm.plugins.piclayer.transform.FitModel;
 import org.openstreetmap.josm.plugins.piclayer.transform.PictureTransform;
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureWarp;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.JosmDecimalFormatSymbolsProvider;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 /**
  * Base class for layers showing images. Actually it does all the showing. The
@@ -68,6 +98,27 @@ public abstract class PicLayerAbstract extends Layer {
     private static final String MATRIXm11 = "M11";
     private static final String MATRIXm02 = "M02";
     private static final String MATRIXm12 = "M12";
+    // non-affine part of the calibration, see PictureTransform.getWarp()
+    private static final String WARP = "WARP";
+    private static final String WARP_PARAMETERS = "WARP_PARAMETERS";
+
+    // Preferences for the rendering quality while the picture is dragged: high, fast or auto
+    private static final String DRAG_QUALITY_PREF = "piclayer.drag-quality";
+    private static final String DRAG_FRAME_TIME_PREF = "piclayer.drag-frame-ms";
+    // Preference for the maximum size of the preview decoded first for big pictures, 0 to disable previews
+    private static final String PREVIEW_SIZE_PREF = "piclayer.preview-size";
+    // Preferences for decoding only the visible regions of pictures larger than the given megapixels
+    private static final String REGION_DECODING_PREF = "piclayer.region-decoding-megapixels";
+    private static final String TILE_CACHE_PREF = "piclayer.tile-cache-mb";
+    // Preference for where to store big decoded pictures: heap or mapped (memory-mapped temporary file)
+    private static final String RASTER_STORAGE_PREF = "piclayer.raster-storage";
+    private static final long MAPPED_MIN_BYTES = 16L << 20;
+    // Preference to convert decoded pictures to the pixel format of the screen
+    private static final String CONVERT_IMAGES_PREF = "piclayer.convert-images";
+    // Maximum size of the picture kept when the memory manager releases it
+    private static final int THUMBNAIL_SIZE = 512;
+    // Preference to keep the rendered picture of each layer for repaints caused by other layers
+    private static final String RENDER_CACHE_PREF = "piclayer.render-cache";
 
     // Counter - just for naming of layers
     private static int imageCounter = 0;
@@ -75,6 +126,46 @@ public abstract class PicLayerAbstract extends Layer {
     // This is the main image to be displayed
     protected Image image = null;
 
+    // Size of the main image, known before the image itself when it is loaded in the background
+    protected int imageWidth = 0;
+    protected int imageHeight = 0;
+    // Whether the image is being loaded by a background task
+    private volatile boolean loading = false;
+    // Image decoded by loadImage(), to be shown by finishLoading()
+    private volatile Image loadedImage = null;
+    private volatile int loadedLevel = 0;
+    // Pyramid level of the main image, > 0 if it is a subsampled preview
+    private int imageLevel = 0;
+    // Whether a finer version of a preview image is being decoded
+    private boolean refining = false;
+    private boolean refinable = true;
+    // Decodes the visible regions of pictures too big to be decoded at once
+    private RegionDecoder regionDecoder = null;
+    private boolean regionDecodingChecked = false;
+
+    // Time needed to convert the picture to the format of the screen, -1 if not converted
+    private volatile long conversionMillis = -1;
+    // Average time needed to paint the picture
+    private double paintMillis = 0;
+
+    // Meters per east/north unit at the last position asked for, see getMetersPerEasting
+    private volatile ScaleFactors scaleFactors;
+
+    // Bounding box of the transformed picture and the state it was computed for
+    private ProjectionBounds cachedBounds;
+    private long boundsVersion;
+    private double boundsScale;
+    private int boundsWidth;
+    private int boundsHeight;
+
+    // Tile pyramid of the main image, used for painting
+    private ImagePyramid pyramid = null;
+
+    // Rendered picture for repaints which do not change the view
+    private final RenderCache renderCache = new RenderCache();
+    // Renderer for pictures with a non-affine calibration
+    private final WarpRenderer warpRenderer = new WarpRenderer();
+
     // Tiles of pin images
     private static Image pinTiledImage;
     private static Image pinTiledImageOrange;
@@ -95,7 +186,8 @@ public abstract class PicLayerAbstract extends Layer {
     // Layer icon / lines
     private Icon layerIcon = null;
 
-    protected final Projection projection;
+    // Projection of the image position, updated when the projection of the map changes
+    protected Projection projection;
 
     // pin images properties - tile anchors, width and offset
     // TODO: load these from properties file in images folder...
@@ -105,6 +197,7 @@ public abstract class PicLayerAbstract extends Layer {
     private static final int[] pinTileOffsetY = {0, 74, 74, 0};
     private static final int pinWidth = 64;
     private static final int pinHeight = 64;
+    private static final int SNAP_PREVIEW_RADIUS = 8;
 
     // markers and usability values
     private boolean drawOriginMarkers = true;
@@ -115,6 +208,17 @@ public abstract class PicLayerAbstract extends Layer {
     private boolean drawRef2To3Line = false;
     private GeoLine refLine1To2;
     private GeoLine refLine2To3;
+    // node a reference point would snap to, x is the longitude and y the latitude
+    private Point2D snapPreview;
+
+    // rendering quality while the picture is being transformed interactively
+    private boolean interacting = false;
+    private String dragQuality = "auto";
+    private long dragFrameTimeTarget = 30;
+    // 0 = bicubic, 1 = nearest neighbour, n = nearest neighbour n - 1 pyramid levels coarser
+    private int dragQualityStep = 0;
+    // scratch buffer of transformPoint, which is called for every mouse event while dragging
+    private final AffineTransform pointTransform = new AffineTransform();
 
     /**
      * Constructor
@@ -144,6 +248,49 @@ public abstract class PicLayerAbstract extends Layer {
      * @throws IOException in case of error
      */
     public void initialize() throws IOException {
+        initializePosition();
+
+        // Create image
+        Image created = createImage(NullProgressMonitor.INSTANCE);
+        if (created == null) {
+            throw new IOException(tr("PicLayer failed to load or import the image."));
+        }
+        // Load image completely
+        new ImageIcon(created).getImage();
+        setImage(storeImage(created));
+
+        lookForCalibration();
+    }
+
+    /**
+     * Initializes the layer without waiting for the image. The layer can be added to the map
+     * right away, it shows a placeholder until the image has been decoded by a background task.
+     * The calibration is looked for once the image is there.
+     *
+     * @param onLoaded called in the EDT after the image has been loaded and calibrated, may be {@code null}
+     * @throws IOException if the map does not exist or the picture cannot be read
+     */
+    public void initializeInBackground(Runnable onLoaded) throws IOException {
+        initializePosition();
+
+        // the size is enough to show a placeholder
+        readSize();
+        loading = true;
+        MainApplication.worker.submit(new ImageLoadTask(onLoaded));
+    }
+
+    /**
+     * Initializes the layer for loading the image by {@link #loadImage(ProgressMonitor)} and
+     * {@link #finishLoading()}, e.g. for importing many pictures at once.
+     *
+     * @throws IOException if the map does not exist
+     */
+    public void initializeForLoading() throws IOException {
+        initializePosition();
+        loading = true;
+    }
+
+    private void initializePosition() throws IOException {
         // First, we initialize the calibration, so that createImage() can rely on it
 
         if (transformer == null) transformer = new PictureTransform();
@@ -159,16 +306,147 @@ public abstract class PicLayerAbstract extends Layer {
         } else {
             throw new IOException(tr("Could not find the map object."));
         }
+    }
 
-        // Create image
-        image = createImage();
-        if (image == null) {
-            throw new IOException(tr("PicLayer failed to load or import the image."));
+    void readSize() throws IOException {
+        Dimension size = readImageSize();
+        if (size != null) {
+            imageWidth = size.width;
+            imageHeight = size.height;
         }
+    }
+
+    /**
+     * Decodes the image of a layer initialized by {@link #initializeInBackground(Runnable)} or
+     * {@link #initializeForLoading()}. May be called in any thread, the layer shows the image after
+     * {@link #finishLoading()} was called.
+     *
+     * @param progressMonitor the progress monitor, decoding is aborted when it gets canceled
+     * @return {@code true} if the image was decoded, {@code false} if loading was canceled
+     * @throws IOException if the image cannot be decoded
+     */
+    public boolean loadImage(ProgressMonitor progressMonitor) throws IOException {
+        return loadImage(0, progressMonitor);
+    }
+
+    /**
+     * Decodes the image like {@link #loadImage(ProgressMonitor)}, but not finer than a subsampling level,
+     * e.g. the one of {@link #getLevelForScale(double)} for a picture seen from far.
+     * Finer levels are decoded when the layer is painted at a scale which needs them.
+     *
+     * @param minLevel        the finest level to decode, 0 for no limit
+     * @param progressMonitor the progress monitor, decoding is aborted when it gets canceled
+     * @return {@code true} if the image was decoded, {@code false} if loading was canceled
+     * @throws IOException if the image cannot be decoded
+     */
+    public boolean loadImage(int minLevel, ProgressMonitor progressMonitor) throws IOException {
+        Image loaded = null;
+        int level = 0;
+        progressMonitor.beginTask(tr("Decoding picture"), 2);
+        try {
+            if (imageWidth == 0) {
+                readSize();
+            }
+            // decode a small preview first for big pictures, the full resolution follows when zooming in
+            int previewLevel = Math.max(minLevel, getPreviewLevel());
+            if (previewLevel > 0) {
+                loaded = createSubsampledImage(previewLevel, progressMonitor.createSubTaskMonitor(1, false));
+                level = previewLevel;
+            }
+            if (loaded == null && !progressMonitor.isCanceled()) {
+                loaded = createImage(progressMonitor.createSubTaskMonitor(ProgressMonitor.ALL_TICKS, false));
+                level = 0;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            progressMonitor.finishTask();
+        }
+        if (progressMonitor.isCanceled())
+            return false;
+        if (loaded == null)
+            throw new IOException(tr("PicLayer failed to load or import the image."));
         // Load image completely
-        new ImageIcon(image).getImage();
+        new ImageIcon(loaded).getImage();
+        loadedImage = storeImage(loaded);
+        loadedLevel = level;
+        return true;
+    }
 
-        lookForCalibration();
+    /**
+     * Shows the image decoded by {@link #loadImage(ProgressMonitor)} and looks for the calibration.
+     * Must be called in the EDT.
+     */
+    public void finishLoading() {
+        finishLoading(true);
+    }
+
+    void finishLoading(boolean calibrate) {
+        loading = false;
+        if (loadedImage == null)
+            return;
+        setImage(loadedImage, loadedLevel);
+        loadedImage = null;
+        if (calibrate) {
+            try {
+                lookForCalibration();
+            } catch (IOException e) {
+                Logging.warn(e);
+            }
+        }
+        invalidate();
+    }
+
+    /**
+     * Background task decoding the image of a layer initialized by {@link #initializeInBackground(Runnable)}.
+     */
+    private class ImageLoadTask extends PleaseWaitRunnable {
+
+        private final Runnable onLoaded;
+        private boolean loaded;
+        private IOException error;
+
+        ImageLoadTask(Runnable onLoaded) {
+            super(tr("Loading picture {0}", getName()));
+            this.onLoaded = onLoaded;
+        }
+
+        @Override
+        protected void realRun() {
+            try {
+                // the task of the monitor is started by PleaseWaitRunnable, decoding reports to a sub task
+                loaded = loadImage(progressMonitor.createSubTaskMonitor(ProgressMonitor.ALL_TICKS, false));
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        @Override
+        protected void finish() {
+            GuiHelper.runInEDT(() -> {
+                if (!loaded) {
+                    loading = false;
+                    if (error != null) {
+                        String msg = error.getMessage();
+                        Logging.warn(msg);
+                        JOptionPane.showMessageDialog(MainApplication.getMainFrame(), msg, tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+                    }
+                    if (MainApplication.getLayerManager().containsLayer(PicLayerAbstract.this)) {
+                        MainApplication.getLayerManager().removeLayer(PicLayerAbstract.this);
+                    }
+                    return;
+                }
+                finishLoading();
+                if (onLoaded != null) {
+                    onLoaded.run();
+                }
+            });
+        }
+
+        @Override
+        protected void cancel() {
+            // decoding is aborted by ImageDecoder when the monitor is canceled
+        }
     }
 
     /**
@@ -182,6 +460,217 @@ public abstract class PicLayerAbstract extends Layer {
      */
     protected abstract Image createImage() throws IOException;
 
+    /**
+     * Provides an image from an external source, reporting the progress.
+     * Subclasses decoding large files should override this, the default calls {@link #createImage()}.
+     *
+     * @param progressMonitor the progress monitor
+     * @return created image, {@code null} if it could not be created or loading was canceled
+     * @throws IOException in case of error
+     */
+    protected Image createImage(ProgressMonitor progressMonitor) throws IOException {
+        return createImage();
+    }
+
+    /**
+     * Provides the image subsampled by 2<sup>level</sup>, i.e. with the size of the {@link ImagePyramid}
+     * level {@code level}. Subclasses which can decode subsampled images cheaply should override this,
+     * the default does not support it.
+     *
+     * @param level           subsampling level, greater than 0
+     * @param progressMonitor the progress monitor
+     * @return created image, {@code null} if not supported or loading was canceled
+     * @throws IOException in case of error
+     */
+    protected Image createSubsampledImage(int level, ProgressMonitor progressMonitor) throws IOException {
+        return null;
+    }
+
+    /**
+     * Moves the pixels of a big decoded picture off the heap, if the {@code piclayer.raster-storage}
+     * preference says so, or converts it to the pixel format of the screen.
+     * Called by the background tasks, copying takes a while.
+     *
+     * @param image the decoded picture, may be {@code null}
+     * @return the picture to use
+     */
+    private Image storeImage(Image image) {
+        if (image instanceof BufferedImage && MappedImage.isMapped((BufferedImage) image))
+            return image;
+        if (image instanceof BufferedImage && TileCache.sizeOf(image) > MAPPED_MIN_BYTES
+                && "mapped".equals(Config.getPref().get(RASTER_STORAGE_PREF, "heap"))) {
+            try {
+                return MappedImage.copyOf((BufferedImage) image);
+            } catch (IOException e) {
+                Logging.warn(e);
+            }
+        }
+        if (image == null || !Config.getPref().getBoolean(CONVERT_IMAGES_PREF, true))
+            return image;
+        long start = System.nanoTime();
+        Image converted = CompatibleImage.convert(image);
+        if (converted != image) {
+            conversionMillis = (System.nanoTime() - start) / 1_000_000;
+            Logging.debug("PicLayer: converted the picture of {0} to the screen format in {1} ms", getName(), conversionMillis);
+        }
+        return converted;
+    }
+
+    /**
+     * Tells whether the picture should be decoded straight into a {@link MappedImage}, according to the
+     * {@code piclayer.raster-storage} preference. Subclasses decoding with {@link ImageDecoder} pass this on,
+     * other pictures are copied into the mapped storage after decoding.
+     *
+     * @param level subsampling level to decode
+     * @return {@code true} if the size of the picture is known and it is big enough for the mapped storage
+     */
+    protected boolean isMappedStorage(int level) {
+        long pixels = (long) (((imageWidth - 1) >> level) + 1) * (((imageHeight - 1) >> level) + 1);
+        return imageWidth > 0 && imageHeight > 0 && 4 * pixels > MAPPED_MIN_BYTES
+                && "mapped".equals(Config.getPref().get(RASTER_STORAGE_PREF, "heap"));
+    }
+
+    /**
+     * Called from background threads when a visible region is decoded or a pyramid level is computed.
+     */
+    private void detailAvailable() {
+        GuiHelper.runInEDT(() -> {
+            renderCache.invalidate();
+            invalidate();
+        });
+    }
+
+    /**
+     * Returns the subsampling level of the preview to decode first, so that it is not larger
+     * than the {@code piclayer.preview-size} preference.
+     *
+     * @return the level, 0 if the picture is small enough or its size is unknown
+     */
+    private int getPreviewLevel() {
+        int previewSize = Config.getPref().getInt(PREVIEW_SIZE_PREF, 2048);
+        if (previewSize <= 0 || imageWidth == 0)
+            return 0;
+        int level = 0;
+        while ((((imageWidth - 1) >> level) + 1) > previewSize || (((imageHeight - 1) >> level) + 1) > previewSize) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the subsampling level whose size fits into the thumbnail kept by {@link #releaseImage()}.
+     *
+     * @return the level, 0 if the picture is small enough or its size is unknown
+     */
+    private int getThumbnailLevel() {
+        int level = 0;
+        while ((((imageWidth - 1) >> level) + 1) > THUMBNAIL_SIZE || (((imageHeight - 1) >> level) + 1) > THUMBNAIL_SIZE) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Selects the coarsest subsampling level which still has at least one picture pixel per screen pixel,
+     * like {@link ImagePyramid#getLevelForScale(double)} does for the painted level.
+     *
+     * @param scale east/north units per screen pixel of the map view
+     * @return the level, not coarser than the thumbnail
+     */
+    public int getLevelForScale(double scale) {
+        double pixelsPerPixel = Math.sqrt(Math.abs(getEastNorthTransform().getDeterminant())) / scale;
+        int level = pixelsPerPixel > 0 ? (int) Math.floor(-Math.log(pixelsPerPixel) / Math.log(2)) : 0;
+        return Math.max(0, Math.min(getThumbnailLevel(), level));
+    }
+
+    /**
+     * Decodes a finer version of a preview image in the background and swaps it in.
+     *
+     * @param wanted the wanted level, 0 for the full resolution
+     */
+    private void refineImage(int wanted) {
+        if (refining || !refinable)
+            return;
+        // pictures of more than Integer.MAX_VALUE pixels cannot be held at once, the finest level which can stands in
+        int decodable = wanted;
+        while ((long) (((imageWidth - 1) >> decodable) + 1) * (((imageHeight - 1) >> decodable) + 1) > Integer.MAX_VALUE) {
+            decodable++;
+        }
+        if (decodable >= imageLevel)
+            return;
+        int level = decodable;
+        refining = true;
+        MainApplication.worker.submit(() -> {
+            Image refined = null;
+            try {
+                refined = level > 0
+                        ? createSubsampledImage(level, NullProgressMonitor.INSTANCE)
+                        : createImage(NullProgressMonitor.INSTANCE);
+            } catch (IOException | RuntimeException e) {
+                Logging.warn(e);
+            }
+            Image result = storeImage(refined);
+            GuiHelper.runInEDT(() -> {
+                refining = false;
+                if (result == null) {
+                    // do not try again on every repaint
+                    refinable = false;
+                } else if (level < imageLevel) {
+                    setImage(result, level);
+                    invalidate();
+                }
+            });
+        });
+    }
+
+    /**
+     * Creates a decoder for the visible regions of the picture at full resolution.
+     * Subclasses which read from a file with random access should override this, the default does not support it.
+     *
+     * @param cacheBytes memory the decoded regions may use at most
+     * @return the decoder, {@code null} if not supported
+     */
+    protected RegionDecoder createRegionDecoder(long cacheBytes) {
+        return null;
+    }
+
+    /**
+     * Returns the decoder for the visible regions if the picture is too big to be decoded at once.
+     *
+     * @return the decoder, {@code null} if the finer levels are decoded as a whole or decoding regions failed
+     */
+    private RegionDecoder getRegionDecoder() {
+        if (!regionDecodingChecked) {
+            regionDecodingChecked = true;
+            long threshold = Config.getPref().getInt(REGION_DECODING_PREF, 64) * 1_000_000L;
+            if (threshold > 0 && (long) imageWidth * imageHeight > threshold) {
+                regionDecoder = createRegionDecoder(Config.getPref().getInt(TILE_CACHE_PREF, 128) * 1_048_576L);
+            }
+        }
+        if (regionDecoder != null && regionDecoder.isFailed()) {
+            // the picture stays at the resolution of the pyramid, decoding it as a whole would fail as well
+            regionDecoder.close();
+            regionDecoder = null;
+            refinable = false;
+            String msg = tr("The picture {0} cannot be read in full resolution any more, it is shown at a lower resolution.", getName());
+            Logging.warn(msg);
+            // not while painting
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(MainApplication.getMainFrame(), msg,
+                    tr("Problem occurred"), JOptionPane.WARNING_MESSAGE));
+        }
+        return regionDecoder;
+    }
+
+    /**
+     * Reads the size of the image without loading it. The default does not know the size.
+     *
+     * @return the size of the image, {@code null} if unknown
+     * @throws IOException in case of error
+     */
+    protected Dimension readImageSize() throws IOException {
+        return null;
+    }
+
     protected abstract void lookForCalibration() throws IOException;
 
     @Override
@@ -193,6 +682,17 @@ public abstract class PicLayerAbstract extends Layer {
     public void mergeFrom(Layer arg0) {
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        if (regionDecoder != null) {
+            regionDecoder.close();
+            regionDecoder = null;
+        }
+        warpRenderer.clear();
+        PicLayerPlugin.getMemoryManager().remove(this);
+    }
+
     /**
      * To be overridden by subclasses. Returns the user readable name of the layer.
      *
@@ -204,6 +704,126 @@ public abstract class PicLayerAbstract extends Layer {
         return this.image;
     }
 
+    /**
+     * Replaces the displayed image and drops everything derived from the old one.
+     *
+     * @param image the new image
+     */
+    protected void setImage(Image image) {
+        setImage(image, 0);
+    }
+
+    /**
+     * Replaces the displayed image by a subsampled version of the picture.
+     * The size of the full resolution picture must be known already for a level greater than 0.
+     *
+     * @param image the new image
+     * @param level subsampling level of the image, 0 for the full resolution
+     */
+    protected void setImage(Image image, int level) {
+        this.image = image;
+        if (level == 0) {
+            imageWidth = image.getWidth(null);
+            imageHeight = image.getHeight(null);
+        }
+        imageLevel = level;
+        pyramid = null;
+        renderCache.clear();
+        warpRenderer.clear();
+        if (level == 0 && regionDecoder != null) {
+            regionDecoder.close();
+            regionDecoder = null;
+        }
+        PicLayerPlugin.getMemoryManager().update(this, getImageBytes());
+    }
+
+    /**
+     * Returns the memory used by the picture, its pyramid and its rendering.
+     *
+     * @return the size in bytes
+     */
+    public long getImageBytes() {
+        ImagePyramid p = pyramid;
+        long bytes = p != null ? p.getBytes() : (image != null ? TileCache.sizeOf(image) : 0);
+        bytes += renderCache.getBytes();
+        bytes += warpRenderer.getBytes();
+        RegionDecoder decoder = regionDecoder;
+        if (decoder != null) {
+            bytes += decoder.getCachedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Tells whether the picture can be decoded again after {@link #releaseImage()}.
+     * To be overridden by subclasses reading the picture from a source which does not change.
+     *
+     * @return {@code true} if {@link #createImage(ProgressMonitor)} returns the same picture each time
+     */
+    protected boolean canReloadImage() {
+        return false;
+    }
+
+    /**
+     * Drops everything but a thumbnail of the picture to free memory.
+     * The picture is decoded again when the layer is painted at a scale which needs it.
+     *
+     * @return {@code true} if memory was released
+     */
+    public boolean releaseImage() {
+        if (image == null || loading || refining || !canReloadImage())
+            return false;
+        long before = getImageBytes();
+        int level = Math.max(imageLevel, getThumbnailLevel());
+        if (level > imageLevel) {
+            // straight from the current image, the levels in between are not needed
+            setImage(ImagePyramid.scale(image, ((imageWidth - 1) >> level) + 1, ((imageHeight - 1) >> level) + 1), level);
+        } else {
+            renderCache.clear();
+            warpRenderer.clear();
+        }
+        if (regionDecoder != null) {
+            regionDecoder.close();
+            regionDecoder = null;
+            regionDecodingChecked = false;
+        }
+        refinable = true;
+        long after = getImageBytes();
+        PicLayerPlugin.getMemoryManager().update(this, after);
+        return after < before;
+    }
+
+    /**
+     * Returns the width of the picture in pixels, which is known as soon as loading starts.
+     *
+     * @return the width of the picture, 0 if unknown
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    /**
+     * Returns the height of the picture in pixels, which is known as soon as loading starts.
+     *
+     * @return the height of the picture, 0 if unknown
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * Returns the tile pyramid of the current image, (re)building it if the image has been replaced.
+     *
+     * @return the pyramid, or {@code null} if there is no image
+     */
+    protected ImagePyramid getPyramid() {
+        if (image == null)
+            return null;
+        if (pyramid == null || pyramid.getLevel(pyramid.getBaseLevel()) != image)
+            pyramid = new ImagePyramid(image, imageWidth, imageHeight, imageLevel);
+        return pyramid;
+    }
+
     @Override
     public Icon getIcon() {
         return layerIcon;
@@ -211,7 +831,33 @@ public abstract class PicLayerAbstract extends Layer {
 
     @Override
     public Object getInfoComponent() {
-        return null;
+        ImageMemoryManager memoryManager = PicLayerPlugin.getMemoryManager();
+        return tr("Picture: {0} x {1} pixels, memory used: {2}", imageWidth, imageHeight,
+                Utils.getSizeString(getImageBytes(), Locale.getDefault())) + "\n"
+                + tr("All PicLayers: {0} of {1}", Utils.getSizeString(memoryManager.getUsedBytes(), Locale.getDefault()),
+                Utils.getSizeString(memoryManager.getBudget(), Locale.getDefault())) + "\n"
+                + (conversionMillis >= 0 ? tr("Conversion to the screen format: {0} ms", conversionMillis) + "\n" : "")
+                + tr("Average paint time: {0} ms", Math.round(paintMillis))
+                + getFitInfo();
+    }
+
+    private String getFitInfo() {
+        if (transformer == null)
+            return "";
+        PictureWarp warp = transformer.getWarp();
+        String model = warp != null ? "\n" + tr("Calibration: {0}", warp.getModel().name().toLowerCase(Locale.ROOT)) : "";
+        double[] r = transformer.getResiduals();
+        if (r == null)
+            return model;
+        StringBuilder residuals = new StringBuilder();
+        double sum = 0;
+        for (double value : r) {
+            residuals.append(residuals.length() > 0 ? ", " : "").append(String.format(Locale.getDefault(), "%.1f", value));
+            sum += value * value;
+        }
+        return model + "\n" + tr("Control points: {0}, RMS error {1} pixels", r.length,
+                String.format(Locale.getDefault(), "%.2f", Math.sqrt(sum / r.length)))
+                + "\n" + tr("Residuals: {0}", residuals);
     }
 
     @Override
@@ -226,6 +872,9 @@ public abstract class PicLayerAbstract extends Layer {
                 new SavePictureCalibrationToWorldAction(this),
                 new LoadPictureCalibrationFromWorldAction(this),
                 SeparatorLayerAction.INSTANCE,
+                new AutoMatchAction(this),
+                new AutoAlignAction(this),
+                SeparatorLayerAction.INSTANCE,
                 new RenameLayerAction(null, this),
         };
     }
@@ -245,6 +894,19 @@ public abstract class PicLayerAbstract extends Layer {
         return transformer;
     }
 
+    /**
+     * Returns the scale of the picture at creation time, which the transform of the calibration is relative to.
+     *
+     * @return the scale in meter per 100 pixels
+     */
+    public double getInitialImageScale() {
+        return initialImageScale;
+    }
+
+    public void setInitialImageScale(double initialImageScale) {
+        this.initialImageScale = initialImageScale;
+    }
+
     public GeoLine getRefLine1To2() {
         return refLine1To2;
     }
@@ -287,9 +949,22 @@ public abstract class PicLayerAbstract extends Layer {
         drawRef2To3Line = false;
     }
 
+    /**
+     * Marks the node a reference point would snap to.
+     *
+     * @param point the node, x is the longitude and y the latitude, {@code null} for none
+     */
+    public void setSnapPreview(Point2D point) {
+        snapPreview = point;
+    }
+
+    public Point2D getSnapPreview() {
+        return snapPreview;
+    }
+
     @Override
     public void paint(Graphics2D g2, MapView mv, Bounds bounds) {
-        if (image != null) {
+        if (image != null || (loading && imageWidth > 0)) {
             // Position image at the right graphical place
             EastNorth center = mv.getCenter();
             EastNorth leftop = mv.getEastNorth(0, 0);
@@ -313,26 +988,95 @@ public abstract class PicLayerAbstract extends Layer {
 
             g.transform(transformer.getTransform());
 
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-
             // Draw picture
-            int width = image.getWidth(null);
-            int height = image.getHeight(null);
-            try {
-                g.drawImage(image, -width / 2, -height / 2, null);
-            } catch (RuntimeException e) {
-                Logging.error(e);
+            int width = imageWidth;
+            int height = imageHeight;
+            AffineTransform pictureToView = AffineTransform.getTranslateInstance(pic_offset_x, pic_offset_y);
+            pictureToView.scale(scalex, scaley);
+            pictureToView.concatenate(transformer.getTransform());
+            Rectangle viewRect = g2.getClipBounds();
+            if (viewRect == null) {
+                viewRect = new Rectangle(0, 0, mv.getWidth(), mv.getHeight());
+            }
+            PictureWarp warp = transformer.getWarp();
+            Path2D outline = warp != null ? WarpRenderer.getOutline(warp, width, height) : null;
+            Rectangle2D visible;
+            if (outline != null) {
+                visible = pictureToView.createTransformedShape(outline).intersects(viewRect) ? outline.getBounds2D() : null;
+            } else {
+                visible = getVisiblePictureRect(pictureToView, viewRect);
+            }
+            if (visible != null && image == null) {
+                // placeholder while the picture is loaded in the background
+                g.setColor(new Color(128, 128, 128, 96));
+                if (outline != null) {
+                    g.fill(outline);
+                } else {
+                    g.fillRect(-width / 2, -height / 2, width, height);
+                }
+            } else if (visible != null) {
+                int regionLevel = -1;
+                if (imageLevel > 0) {
+                    // zoomed in beyond the resolution of the preview?
+                    int wanted = getPyramid().getLevelForScale(Math.sqrt(Math.abs(g.getTransform().getDeterminant())));
+                    if (wanted < imageLevel) {
+                        if (getRegionDecoder() != null) {
+                            regionLevel = wanted;
+                        } else {
+                            refineImage(wanted);
+                        }
+                    }
+                }
+                int detailLevel = regionLevel;
+                int step = getDragQualityStep();
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, step == 0
+                        ? RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                long start = System.nanoTime();
+                try {
+                    if (warp != null) {
+                        // Graphics2D can only draw affine transforms, resample the picture
+                        warpRenderer.paint(g2, getPyramid(), warp, pictureToView, viewRect, Math.max(0, step - 1), step > 0,
+                                this::detailAvailable);
+                    } else if (step == 0 && !interacting && Config.getPref().getBoolean(RENDER_CACHE_PREF, true)) {
+                        // render the whole view into the cache, the clip may be just a part of it
+                        Rectangle2D viewVisible = getVisiblePictureRect(pictureToView, new Rectangle(0, 0, mv.getWidth(), mv.getHeight()));
+                        renderCache.paint(g2, pictureToView, mv.getWidth(), mv.getHeight(), image, transformer.getVersion(), gc -> {
+                            if (viewVisible != null) {
+                                gc.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                                getPyramid().paint(gc, viewVisible, 0, this::detailAvailable);
+                                if (detailLevel >= 0) {
+                                    regionDecoder.paint(gc, viewVisible, detailLevel, this::detailAvailable);
+                                }
+                            }
+                        });
+                    } else {
+                        getPyramid().paint(g, visible, Math.max(0, step - 1), this::detailAvailable);
+                        if (detailLevel >= 0 && !interacting) {
+                            regionDecoder.paint(g, visible, detailLevel, this::detailAvailable);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Logging.error(e);
+                }
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                paintMillis = paintMillis == 0 ? millis : 0.9 * paintMillis + 0.1 * millis;
+                adaptDragQuality(millis);
+                PicLayerPlugin.getMemoryManager().painted(this, getImageBytes());
             }
 
             // Draw additional rectangle for the active pic layer
             if (mv.getLayerManager().getActiveLayer() == this) {
                 g.setColor(new Color(0xFF0000));
-                g.drawRect(
-                        -width / 2,
-                        -height / 2,
-                        width,
-                        height
-                );
+                if (outline != null) {
+                    g.draw(outline);
+                } else {
+                    g.drawRect(
+                            -width / 2,
+                            -height / 2,
+                            width,
+                            height
+                    );
+                }
             }
 
             // AutoCalibration - Graphics setup for marker
@@ -348,48 +1092,117 @@ public abstract class PicLayerAbstract extends Layer {
                 List<Point2D> points = transformer.getOriginPoints();
 
                 for (int i = 0; i < points.size(); i++) {
-                    Point2D trP = tr.transform(transformer.getOriginPoints().get(i), null);
+                    Point2D trP = tr.transform(transformer.warpPoint(points.get(i)), null);
                     drawMarkerImage(gPoints, pinTiledImage, trP, i);
                 }
 
                 if (drawOrigin1To2Line && points.size() > 2) {
-                    drawLine(g, points.get(0), points.get(1));
+                    drawLine(g, transformer.warpPoint(points.get(0)), transformer.warpPoint(points.get(1)));
                 }
                 if (drawOrigin2To3Line && points.size() > 3) {
-                    drawLine(g, points.get(1), points.get(2));
+                    drawLine(g, transformer.warpPoint(points.get(1)), transformer.warpPoint(points.get(2)));
                 }
             }
             if (drawRefMarkers) {
                 // draw reference markers
                 for (int i = 0; i < transformer.getLatLonRefPoints().size(); i++) {
-                    Point2D trPLocal = transformPointToPicLayerScale(transformer.getLatLonRefPoints().get(i));
-                    Point2D trP = tr.transform(trPLocal, null);
+                    Point2D trP = getMarkerPosition(mv, transformer.getLatLonRefPoints().get(i), pic_offset_x, pic_offset_y);
                     drawMarkerImage(gPoints, pinTiledImageOrange, trP, i);
                 }
                 if (drawRef1To2Line && refLine1To2 != null) {
                     // draw line between reference point1 and point2
-                    Point2D trP1Local = transformPointToPicLayerScale(refLine1To2.getStartPoint());
-                    Point2D p1 = tr.transform(trP1Local, null);
-                    Point2D trP2Local = transformPointToPicLayerScale(refLine1To2.getEndPoint());
-                    Point2D p2 = tr.transform(trP2Local, null);
+                    Point2D p1 = getMarkerPosition(mv, refLine1To2.getStartPoint(), pic_offset_x, pic_offset_y);
+                    Point2D p2 = getMarkerPosition(mv, refLine1To2.getEndPoint(), pic_offset_x, pic_offset_y);
                     drawLine(gPoints, p1, p2);
                     drawMarkerImage(gPoints, pinTiledImageOrange, p2, 1);
                 }
                 if (drawRef2To3Line && refLine2To3 != null) {
                     // draw line between reference point2 and point3
-                    Point2D trP1Local = transformPointToPicLayerScale(refLine2To3.getStartPoint());
-                    Point2D p1 = tr.transform(trP1Local, null);
-                    Point2D trP2Local = transformPointToPicLayerScale(refLine2To3.getEndPoint());
-                    Point2D p2 = tr.transform(trP2Local, null);
+                    Point2D p1 = getMarkerPosition(mv, refLine2To3.getStartPoint(), pic_offset_x, pic_offset_y);
+                    Point2D p2 = getMarkerPosition(mv, refLine2To3.getEndPoint(), pic_offset_x, pic_offset_y);
                     drawLine(gPoints, p1, p2);
                     drawMarkerImage(gPoints, pinTiledImageOrange, p2, 2);
                 }
             }
-        } else {
+            if (snapPreview != null) {
+                Point2D p = getMarkerPosition(mv, snapPreview, pic_offset_x, pic_offset_y);
+                gPoints.setColor(Color.ORANGE);
+                gPoints.setStroke(new BasicStroke(3));
+                gPoints.drawOval((int) p.getX() - SNAP_PREVIEW_RADIUS, (int) p.getY() - SNAP_PREVIEW_RADIUS,
+                        2 * SNAP_PREVIEW_RADIUS, 2 * SNAP_PREVIEW_RADIUS);
+            }
+        } else if (!loading) {
             Logging.error("PicLayerAbstract::paint - general drawing error (image is null or Graphics not 2D");
         }
     }
 
+    /**
+     * Switches to the interaction rendering mode, used while the picture is dragged around.
+     * Every drag starts again in full quality, leaving the mode triggers a final repaint in full quality.
+     *
+     * @param interacting {@code true} when a drag starts, {@code false} when it ends
+     */
+    public void setInteracting(boolean interacting) {
+        if (interacting) {
+            dragQuality = Config.getPref().get(DRAG_QUALITY_PREF, "auto");
+            dragFrameTimeTarget = Config.getPref().getInt(DRAG_FRAME_TIME_PREF, 30);
+        }
+        dragQualityStep = 0;
+        boolean changed = this.interacting != interacting;
+        this.interacting = interacting;
+        if (changed && !interacting) {
+            invalidate();
+        }
+    }
+
+    private int getDragQualityStep() {
+        if (!interacting || "high".equals(dragQuality))
+            return 0;
+        if ("fast".equals(dragQuality))
+            return 2;
+        return dragQualityStep;
+    }
+
+    /**
+     * Adapts the rendering quality used while dragging in auto mode, so that drawing
+     * the picture stays within the configured frame time.
+     *
+     * @param millis time it took to draw the picture
+     */
+    private void adaptDragQuality(long millis) {
+        if (!interacting || !"auto".equals(dragQuality))
+            return;
+        if (millis > dragFrameTimeTarget && dragQualityStep <= getPyramid().getLevelCount()) {
+            dragQualityStep++;
+        } else if (millis < dragFrameTimeTarget / 2 && dragQualityStep > 0) {
+            dragQualityStep--;
+        }
+    }
+
+    /**
+     * Computes the part of the picture which is visible in the given view rectangle.
+     *
+     * @param pictureToView transform from picture pixel coordinates to view coordinates
+     * @param viewRect      visible rectangle of the view
+     * @return bounding box of the visible part in picture pixel coordinates,
+     * {@code null} if the picture is completely off screen
+     */
+    private Rectangle2D getVisiblePictureRect(AffineTransform pictureToView, Rectangle viewRect) {
+        int width = imageWidth;
+        int height = imageHeight;
+        Rectangle2D pictureRect = new Rectangle2D.Double(-(width / 2), -(height / 2), width, height);
+        Rectangle2D visible;
+        try {
+            visible = pictureToView.createInverse().createTransformedShape(viewRect).getBounds2D();
+        } catch (NoninvertibleTransformException e) {
+            // degenerated picture, nothing to see
+            return null;
+        }
+        if (!visible.intersects(pictureRect))
+            return null;
+        return visible.createIntersection(pictureRect);
+    }
+
     /**
      * Draw marker image
      *
@@ -412,8 +1225,10 @@ public abstract class PicLayerAbstract extends Layer {
         int y = (int) markerPosition.getY();
         int dstx = x - pinAnchorX;
         int dsty = y - pinAnchorY;
+        // there are pins for the first three points, all further points share the last one
+        int tile = Math.min(markerNumber, pinTileOffsetX.length - 1);
         g.drawImage(image, dstx, dsty, dstx + pinWidth, dsty + pinHeight,
-                pinTileOffsetX[markerNumber], pinTileOffsetY[markerNumber], pinTileOffsetX[markerNumber] + pinWidth, pinTileOffsetY[markerNumber] + pinHeight, null);
+                pinTileOffsetX[tile], pinTileOffsetY[tile], pinTileOffsetX[tile] + pinWidth, pinTileOffsetY[tile] + pinHeight, null);
     }
 
     /**
@@ -438,6 +1253,40 @@ public abstract class PicLayerAbstract extends Layer {
         g.drawLine((int) p1.getX(), (int) p1.getY(), (int) p2.getX(), (int) p2.getY());
     }
 
+    /**
+     * Meters per east/north unit at a position, for a projection.
+     */
+    private static final class ScaleFactors {
+        private final Projection projection;
+        private final EastNorth position;
+        private final double perEasting;
+        private final double perNorthing;
+
+        ScaleFactors(Projection projection, EastNorth position) {
+            this.projection = projection;
+            this.position = position;
+            this.perEasting = computeMetersPerEasting(projection, position);
+            this.perNorthing = computeMetersPerNorthing(projection, position);
+        }
+
+        boolean isFor(Projection projection, EastNorth position) {
+            return this.projection == projection && this.position.equals(position);
+        }
+    }
+
+    /**
+     * Returns the scale factors at a position. They are computed once for each image position and projection,
+     * as painting and every mouse event need them for the image position.
+     */
+    private ScaleFactors getScaleFactors(EastNorth en) {
+        ScaleFactors factors = scaleFactors;
+        if (factors == null || !factors.isFor(projection, en)) {
+            factors = new ScaleFactors(projection, en);
+            scaleFactors = factors;
+        }
+        return factors;
+    }
+
     /**
      * Returns the distance in meter, that corresponds to one unit in east north space.
      * For normal projections, it is about 1 (but usually changing with latitude).
@@ -447,6 +1296,15 @@ public abstract class PicLayerAbstract extends Layer {
      * @return the distance in meter, that corresponds to one unit in east north space
      */
     protected double getMetersPerEasting(EastNorth en) {
+        return getScaleFactors(en).perEasting;
+    }
+
+    /* see getMetersPerEasting */
+    private double getMetersPerNorthing(EastNorth en) {
+        return getScaleFactors(en).perNorthing;
+    }
+
+    private static double computeMetersPerEasting(Projection projection, EastNorth en) {
         /* Natural scale in east/north units per pixel.
          * This means, the projection should be able to handle
          * a shift of that size in east north space without
@@ -466,8 +1324,7 @@ public abstract class PicLayerAbstract extends Layer {
         return ll1.greatCircleDistance(ll2) / naturalScale / 2;
     }
 
-    /* see getMetersPerEasting */
-    private double getMetersPerNorthing(EastNorth en) {
+    private static double computeMetersPerNorthing(Projection projection, EastNorth en) {
         double naturalScale = projection.getDefaultZoomInPPD();
         naturalScale *= 0.01;
 
@@ -479,43 +1336,165 @@ public abstract class PicLayerAbstract extends Layer {
         return ll1.greatCircleDistance(ll2) / naturalScale / 2;
     }
 
-    @Override
     /**
-     * Computes the (rough) bounding box.
-     * We ignore the rotation, the resulting bounding box contains any possible
-     * rotation.
+     * Returns the transform from picture pixel coordinates, centered at the middle of the picture,
+     * to east/north coordinates. This is the transform used for painting, without the map view.
+     *
+     * @return the transform
      */
-    public void visitBoundingBox(BoundingXYVisitor arg0) {
-        if (image == null)
-            return;
-        String projcode = projection.toCode();
-
-        // TODO: bounding box only supported when coordinates are in meters
-        // The reason for that is that this .cal think makes us a hard time.
-        // The position is stored as a raw data (can be either in degrees or
-        // in meters, depending on the projection used at creation), but the
-        // initial scale is in m/100pix
-        // So for now, we support the bounding box only when everything is in meters
-        if (projcode.equals("EPSG:4326"))
-            return;
-
-        EastNorth center = transformer.getImagePosition();
-        double w = image.getWidth(null);
-        double h = image.getHeight(null);
-        double diag_pix = Math.sqrt(w * w + h * h);
+    public AffineTransform getEastNorthTransform() {
+        EastNorth imagePosition = transformer.getImagePosition();
+        AffineTransform at = AffineTransform.getTranslateInstance(imagePosition.east(), imagePosition.north());
+        // initialImageScale is the scale (unit: m/100pix) at creation time
+        at.scale(initialImageScale / 100 / getMetersPerEasting(imagePosition),
+                -initialImageScale / 100 / getMetersPerNorthing(imagePosition));
+        at.concatenate(transformer.getTransform());
+        return at;
+    }
 
-        // initialImageScale is a the scale (unit: m/100pix) at creation time
-        double diag_m = (diag_pix / 100) * initialImageScale;
+    /**
+     * Returns the exact bounding box of the transformed picture. It is cached until the calibration,
+     * the initial scale or the size of the picture change, so it is cheap to call e.g. for culling.
+     *
+     * @return the bounding box in east/north coordinates, {@code null} if the size of the picture is unknown
+     */
+    public ProjectionBounds getEastNorthBounds() {
+        if (imageWidth == 0 || imageHeight == 0)
+            return null;
+        if (cachedBounds == null || boundsVersion != transformer.getVersion() || boundsScale != initialImageScale
+                || boundsWidth != imageWidth || boundsHeight != imageHeight) {
+            // the corners of the picture as it is drawn by paint()
+            double x0 = -(imageWidth / 2);
+            double y0 = -(imageHeight / 2);
+            double x1 = x0 + imageWidth;
+            double y1 = y0 + imageHeight;
+            double[] corners = {x0, y0, x1, y0, x1, y1, x0, y1};
+            getEastNorthTransform().transform(corners, 0, corners, 0, 4);
+            double minEast = Double.POSITIVE_INFINITY;
+            double minNorth = Double.POSITIVE_INFINITY;
+            double maxEast = Double.NEGATIVE_INFINITY;
+            double maxNorth = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < corners.length; i += 2) {
+                minEast = Math.min(minEast, corners[i]);
+                maxEast = Math.max(maxEast, corners[i]);
+                minNorth = Math.min(minNorth, corners[i + 1]);
+                maxNorth = Math.max(maxNorth, corners[i + 1]);
+            }
+            PictureWarp warp = transformer.getWarp();
+            if (warp != null) {
+                // the edges of a warped picture are curved
+                Rectangle2D outline = getEastNorthTransform()
+                        .createTransformedShape(WarpRenderer.getOutline(warp, imageWidth, imageHeight)).getBounds2D();
+                minEast = outline.getMinX();
+                minNorth = outline.getMinY();
+                maxEast = outline.getMaxX();
+                maxNorth = outline.getMaxY();
+            }
+            cachedBounds = new ProjectionBounds(minEast, minNorth, maxEast, maxNorth);
+            boundsVersion = transformer.getVersion();
+            boundsScale = initialImageScale;
+            boundsWidth = imageWidth;
+            boundsHeight = imageHeight;
+        }
+        return cachedBounds;
+    }
 
-        AffineTransform trans = transformer.getTransform();
-        double factor = Math.max(trans.getScaleX(), trans.getScaleY());
+    /**
+     * Computes the bounding box from the corners of the transformed picture.
+     */
+    @Override
+    public void visitBoundingBox(BoundingXYVisitor arg0) {
+        ProjectionBounds bounds = getEastNorthBounds();
+        if (bounds == null)
+            return;
+        arg0.visit(bounds.getMin());
+        arg0.visit(bounds.getMax());
+    }
 
-        double offset = factor * diag_m / 2.0;
+    /**
+     * Moves the calibration into the new projection, so that the picture stays at the same place.
+     * <p>
+     * A grid of 3x3 points spanning the picture is mapped through the old projection and the new one,
+     * the least squares affine fit of the result becomes the new calibration. The origin and reference
+     * points of the calibration are in picture and lat/lon coordinates and are not affected.
+     * <p>
+     * The calibrations stored for undo and redo in the transform commands of this layer are moved as well.
+     */
+    @Override
+    public void projectionChanged(Projection oldValue, Projection newValue) {
+        super.projectionChanged(oldValue, newValue);
+        if (newValue == null || newValue == projection)
+            return;
+        Projection oldProjection = projection;
+        projection = newValue;
+        if (transformer == null || transformer.getImagePosition() == null)
+            return;
+        if (!reprojectCalibration(transformer, initialImageScale, oldProjection, newValue)) {
+            Logging.warn("PicLayer: cannot move the calibration of " + getName() + " into " + newValue.toCode());
+        }
+        UndoRedoHandler undoRedo = UndoRedoHandler.getInstance();
+        for (List<Command> commands : Arrays.asList(undoRedo.getUndoCommands(), undoRedo.getRedoCommands())) {
+            for (Command command : commands) {
+                if (command instanceof TransformCommand && ((TransformCommand) command).getLayer() == this) {
+                    ((TransformCommand) command).reproject(oldProjection, newValue);
+                }
+            }
+        }
+        renderCache.invalidate();
+        invalidate();
+    }
 
-        EastNorth topleft = center.add(-offset, -offset);
-        EastNorth bottomright = center.add(offset, offset);
-        arg0.visit(topleft);
-        arg0.visit(bottomright);
+    /**
+     * Moves a calibration of this picture from one projection into another, see {@link #projectionChanged}.
+     *
+     * @param calibration   the calibration, its transform and image position are changed
+     * @param scale         the initial image scale the calibration belongs to
+     * @param oldProjection the projection the calibration is in
+     * @param newProjection the projection to move it into
+     * @return {@code false} if the picture cannot be placed in the new projection, the calibration is unchanged then
+     */
+    public boolean reprojectCalibration(PictureTransform calibration, double scale,
+            Projection oldProjection, Projection newProjection) {
+        EastNorth oldPosition = calibration.getImagePosition();
+        AffineTransform oldTransform = AffineTransform.getTranslateInstance(oldPosition.east(), oldPosition.north());
+        oldTransform.scale(scale / 100 / computeMetersPerEasting(oldProjection, oldPosition),
+                -scale / 100 / computeMetersPerNorthing(oldProjection, oldPosition));
+        oldTransform.concatenate(calibration.getTransform());
+        // half the size of the grid, the grid is symmetric to the image position
+        double hw = imageWidth > 0 ? imageWidth / 2.0 : 50;
+        double hh = imageHeight > 0 ? imageHeight / 2.0 : 50;
+        double sumX = 0, sumY = 0;
+        double sumXE = 0, sumXN = 0, sumYE = 0, sumYN = 0, sumXX = 0, sumYY = 0;
+        int n = 0;
+        for (int i = -1; i <= 1; i++) {
+            for (int j = -1; j <= 1; j++) {
+                double x = i * hw;
+                double y = j * hh;
+                Point2D en = oldTransform.transform(new Point2D.Double(x, y), null);
+                EastNorth newEn = newProjection.latlon2eastNorth(oldProjection.eastNorth2latlon(new EastNorth(en.getX(), en.getY())));
+                if (newEn == null || !newEn.isValid())
+                    return false;
+                sumX += newEn.east();
+                sumY += newEn.north();
+                sumXE += x * newEn.east();
+                sumXN += x * newEn.north();
+                sumYE += y * newEn.east();
+                sumYN += y * newEn.north();
+                sumXX += x * x;
+                sumYY += y * y;
+                n++;
+            }
+        }
+        // the grid has zero mean and uncorrelated x and y, so the normal equations decouple
+        EastNorth newPosition = new EastNorth(sumX / n, sumY / n);
+        double qx = scale / 100 / computeMetersPerEasting(newProjection, newPosition);
+        double qy = -scale / 100 / computeMetersPerNorthing(newProjection, newPosition);
+        calibration.setImagePosition(newPosition);
+        calibration.setTransform(new AffineTransform(
+                sumXE / sumXX / qx, sumXN / sumXX / qy,
+                sumYE / sumYY / qx, sumYN / sumYY / qy,
+                0, 0));
+        return true;
     }
 
     /**
@@ -537,6 +1516,15 @@ public abstract class PicLayerAbstract extends Layer {
         props.put(POSITION_X, Double.toString(transformer.getImagePosition().getX()));
         props.put(POSITION_Y, Double.toString(transformer.getImagePosition().getY()));
         props.put(INITIAL_SCALE, Double.toString(initialImageScale));
+        PictureWarp warp = transformer.getWarp();
+        if (warp != null) {
+            StringBuilder parameters = new StringBuilder();
+            for (double value : warp.getParameters()) {
+                parameters.append(parameters.length() > 0 ? " " : "").append(value);
+            }
+            props.put(WARP, warp.getModel().name());
+            props.put(WARP_PARAMETERS, parameters.toString());
+        }
 
         transformer.resetModified();
     }
@@ -596,12 +1584,34 @@ public abstract class PicLayerAbstract extends Layer {
             transform = new AffineTransform(matrix);
         }
         transformer.resetCalibration();
-        transformer.getTransform().concatenate(transform);
+        transformer.setTransform(transform);
+        if (props.containsKey(WARP)) {
+            transformer.setWarp(loadWarp(props));
+        }
 
         // Refresh
         invalidate();
     }
 
+    private static PictureWarp loadWarp(Properties props) {
+        try {
+            FitModel model = FitModel.valueOf(props.getProperty(WARP));
+            String[] values = props.getProperty(WARP_PARAMETERS, "").trim().split("\\s+");
+            double[] parameters = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                parameters[i] = Double.parseDouble(values[i]);
+            }
+            PictureWarp warp = model.createWarp(parameters);
+            if (warp == null) {
+                Logging.warn("PicLayer: invalid parameters of the " + model + " calibration, ignored");
+            }
+            return warp;
+        } catch (IllegalArgumentException e) {
+            Logging.warn("PicLayer: cannot read the calibration " + props.getProperty(WARP) + ", ignored: " + e.getMessage());
+            return null;
+        }
+    }
+
     public void loadWorldFile(InputStream is) throws IOException {
 
         try (
@@ -617,8 +1627,8 @@ public abstract class PicLayerAbstract extends Layer {
                 e[i] = JosmDecimalFormatSymbolsProvider.parseDouble(line);
             }
             double sx = e[0], ry = e[1], rx = e[2], sy = e[3], dx = e[4], dy = e[5];
-            int w = image.getWidth(null);
-            int h = image.getHeight(null);
+            int w = imageWidth;
+            int h = imageHeight;
             EastNorth imagePosition = new EastNorth(
                     dx + w / 2 * sx + h / 2 * rx,
                     dy + w / 2 * ry + h / 2 * sy
@@ -630,9 +1640,9 @@ public abstract class PicLayerAbstract extends Layer {
 
             transformer.setImagePosition(imagePosition);
             transformer.resetCalibration();
-            AffineTransform tr = transformer.getTransform();
-            tr.scale(scalex, scaley);
+            AffineTransform tr = AffineTransform.getScaleInstance(scalex, scaley);
             tr.shear(shearx, sheary);
+            transformer.setTransform(tr);
 
             initialImageScale = 1;
             invalidate();
@@ -644,8 +1654,8 @@ public abstract class PicLayerAbstract extends Layer {
         transformer.getTransform().getMatrix(matrix);
         double a00 = matrix[0], a01 = matrix[2], a02 = matrix[4];
         double a10 = matrix[1], a11 = matrix[3], a12 = matrix[5];
-        int w = image.getWidth(null);
-        int h = image.getHeight(null);
+        int w = imageWidth;
+        int h = imageHeight;
         EastNorth imagePosition = transformer.getImagePosition();
         // piclayer calibration stores 9 parameters
         // worldfile has 6 parameters
@@ -668,20 +1678,36 @@ public abstract class PicLayerAbstract extends Layer {
     }
 
     public Point2D transformPoint(Point2D p) throws NoninvertibleTransformException {
+        return transformPoint(p, new Point2D.Double());
+    }
+
+    /**
+     * Converts a point of the map view to picture coordinates, without allocating for an affine calibration.
+     *
+     * @param p      point in the map view
+     * @param result receives the point in picture coordinates
+     * @return {@code result}
+     * @throws NoninvertibleTransformException if the calibration is degenerated
+     */
+    public Point2D transformPoint(Point2D p, Point2D result) throws NoninvertibleTransformException {
         // Position image at the right graphical place
 
-        EastNorth center = MainApplication.getMap().mapView.getCenter();
-        EastNorth leftop = MainApplication.getMap().mapView.getEastNorth(0, 0);
+        MapView mv = MainApplication.getMap().mapView;
+        EastNorth center = mv.getCenter();
         // Number of pixels for one unit in east north space.
         // This is the same in x- and y- direction.
-        double pixel_per_en = (MainApplication.getMap().mapView.getWidth() / 2.0) / (center.east() - leftop.east());
+        double pixel_per_en = 1 / mv.getScale();
+        // east/north of the top left corner of the view
+        double left = center.east() - mv.getWidth() / 2.0 / pixel_per_en;
+        double top = center.north() + mv.getHeight() / 2.0 / pixel_per_en;
 
         EastNorth imageCenter = transformer.getImagePosition();
         //     This is now the offset in screen pixels
-        double pic_offset_x = ((imageCenter.east() - leftop.east()) * pixel_per_en);
-        double pic_offset_y = ((leftop.north() - imageCenter.north()) * pixel_per_en); // something bad...
+        double pic_offset_x = ((imageCenter.east() - left) * pixel_per_en);
+        double pic_offset_y = ((top - imageCenter.north()) * pixel_per_en); // something bad...
 
-        AffineTransform pointTrans = AffineTransform.getTranslateInstance(pic_offset_x, pic_offset_y);
+        AffineTransform pointTrans = pointTransform;
+        pointTrans.setToTranslation(pic_offset_x, pic_offset_y);
 
         double scalex = initialImageScale * pixel_per_en / getMetersPerEasting(imageCenter) / 100;
         double scaley = initialImageScale * pixel_per_en / getMetersPerNorthing(imageCenter) / 100;
@@ -690,32 +1716,28 @@ public abstract class PicLayerAbstract extends Layer {
 
         pointTrans.concatenate(transformer.getTransform());
 
-        return pointTrans.inverseTransform(p, null);
+        pointTrans.inverseTransform(p, result);
+        // the affine transform applies to the warped picture
+        Point2D unwarped = transformer.unwarpPoint(result);
+        if (unwarped != result) {
+            result.setLocation(unwarped);
+        }
+        return result;
     }
 
     /**
-     * Method to transforms {@code Point2D} to {@link PicLayerAbstract} scale.
+     * Returns the position of a reference point for drawing its marker, relative to the image position on the screen.
+     * This is what transforming the point to the picture and back to the screen gives, without inverting the transform.
      *
-     * @param point to transform in LatLon
-     * @return transformed point in {@link PicLayerAbstract} scale
+     * @param mv          the map view
+     * @param point       reference point, x is the longitude and y the latitude
+     * @param picOffsetX  x coordinate of the image position on the screen
+     * @param picOffsetY  y coordinate of the image position on the screen
+     * @return the position of the marker
      */
-    private Point2D transformPointToPicLayerScale(Point2D point) {
-        Point2D translatedPoint = null;
-        LatLon ll;                // LatLon object from raw Point2D
-        MapViewState.MapViewPoint en;        // MapViewPoint object from LatLon(ll) scaled in EastNorth(en)
-
-        // put raw Point2D endPos into LatLon and transform LatLon into MapViewPoint (EastNorth)
-        ll = new LatLon(point.getY(), point.getX());
-        en = MainApplication.getMap().mapView.getState().getPointFor(ll);
-
-        // transform EastNorth into current layer scale
-        try {
-            translatedPoint = transformPoint(new Point2D.Double(en.getInViewX(), en.getInViewY()));
-        } catch (NoninvertibleTransformException e) {
-            Logging.error(e);
-        }
-
-        return translatedPoint;
+    private static Point2D getMarkerPosition(MapView mv, Point2D point, double picOffsetX, double picOffsetY) {
+        MapViewState.MapViewPoint p = mv.getState().getPointFor(new LatLon(point.getY(), point.getX()));
+        return new Point2D.Double(p.getInViewX() - picOffsetX, p.getInViewY() - picOffsetY);
     }
 
     /**
@@ -796,6 +1818,7 @@ public abstract class PicLayerAbstract extends Layer {
         drawRef2To3Line = false;
         refLine1To2 = null;
         refLine2To3 = null;
+        snapPreview = null;
     }
 
     public void resetMarkersAndUsabilityValues() {
@@ -3,20 +3,24 @@ package org.openstreetmap.josm.plugins.piclayer.layer;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.awt.Dimension;
 import java.awt.Image;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
-import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.RegionDecoder;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
@@ -36,46 +40,86 @@ public class PicLayerFromFile extends PicLayerAbstract {
     // Tooltip text
     private String m_tooltiptext;
 
+    // Extensions of the world files which may belong to pictures with the given extensions
+    private static final String[][] IMG_EXTENSIONS = new String[][]{
+            {".jpg", ".jpeg"},
+            {".png"},
+            {".tif", ".tiff"},
+            {".bmp"},
+    };
+    private static final String[][] WLD_EXTENSIONS = new String[][]{
+            {".wld", ".jgw", ".jpgw"},
+            {".wld", ".pgw", ".pngw"},
+            {".wld", ".tfw", ".tifw"},
+            {".wld", ".bmpw", ".bpw"},
+    };
+
     public PicLayerFromFile(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Constructor for a picture in a zip archive.
+     *
+     * @param file         the zip archive or the picture file
+     * @param imgNameInZip name of the picture in the archive, {@code null} for the first picture
+     */
+    public PicLayerFromFile(File file, String imgNameInZip) {
         // Remember the file
         m_file = file;
         super.imageFile = m_file;
 
         if ("zip".equalsIgnoreCase(getFileExtension(file))) {
             isZip = true;
+            this.imgNameInZip = imgNameInZip;
         }
 
         // Generate tooltip text
         m_tooltiptext = m_file.getAbsolutePath();
 
         // Set the name of the layer as the base name of the file
-        setName(m_file.getName());
+        if (isZip && imgNameInZip != null) {
+            m_tooltiptext += File.separator + imgNameInZip;
+            setName(m_file.getName() + File.separator + new File(imgNameInZip).getName());
+        } else {
+            setName(m_file.getName());
+        }
     }
 
     @Override
     protected Image createImage() throws IOException {
+        return createImage(NullProgressMonitor.INSTANCE);
+    }
+
+    @Override
+    protected Image createImage(ProgressMonitor progressMonitor) throws IOException {
+        return decode(0, progressMonitor);
+    }
+
+    @Override
+    protected Image createSubsampledImage(int level, ProgressMonitor progressMonitor) throws IOException {
+        return decode(level, progressMonitor);
+    }
+
+    @Override
+    protected boolean canReloadImage() {
+        return true;
+    }
+
+    @Override
+    protected RegionDecoder createRegionDecoder(long cacheBytes) {
+        // entries of zip files cannot be read with random access
+        if (isZip)
+            return null;
+        return new RegionDecoder(m_file, imageWidth, imageHeight, cacheBytes);
+    }
+
+    private Image decode(int level, ProgressMonitor progressMonitor) throws IOException {
         // Try to load file
         if (isZip) {
-            try (ZipFile zipFile = new ZipFile(m_file)) {
-                ZipEntry imgEntry = null;
-                Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                String[] supportedImageExtensions = ImageIO.getReaderFormatNames();
-
-                while_loop:
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    for (String extension : supportedImageExtensions) {
-                        if (entry.getName().endsWith("." + extension)) {
-                            imgEntry = entry;
-                            break while_loop;
-                        }
-                    }
-                }
-                if (imgEntry != null) {
-                    imgNameInZip = imgEntry.getName();
-                    try (InputStream is = zipFile.getInputStream(imgEntry)) {
-                        return ImageIO.read(is);
-                    }
+            try (InputStream is = openImageInZip()) {
+                if (is != null) {
+                    return ImageDecoder.read(is, level, isMappedStorage(level), progressMonitor);
                 }
                 Logging.warn("Warning: no image in zip file found");
                 return null;
@@ -84,10 +128,62 @@ public class PicLayerFromFile extends PicLayerAbstract {
                 return null;
             }
         } else {
-            return ImageIO.read(m_file);
+            return ImageDecoder.read(m_file, level, isMappedStorage(level), progressMonitor);
         }
     }
 
+    @Override
+    protected Dimension readImageSize() throws IOException {
+        if (isZip) {
+            try (InputStream is = openImageInZip()) {
+                return is != null ? ImageDecoder.readSize(is) : null;
+            }
+        } else {
+            return ImageDecoder.readSize(m_file);
+        }
+    }
+
+    /**
+     * Opens the picture in the archive, remembering which one was taken if none was selected.
+     * The archive is kept open by the {@link ZipImageIndex}.
+     */
+    private InputStream openImageInZip() throws IOException {
+        ZipImageIndex index = ZipImageIndex.of(m_file);
+        ZipImageIndex.Picture picture = index.getPicture(imgNameInZip);
+        if (picture == null)
+            return null;
+        imgNameInZip = picture.getName();
+        return index.getInputStream(picture.getName());
+    }
+
+    /**
+     * Returns the name of the picture in the zip archive.
+     *
+     * @return the name of the entry, {@code null} if the file is no zip archive or the picture is not known yet
+     */
+    public String getImageNameInZip() {
+        return imgNameInZip;
+    }
+
+    /**
+     * Returns the extensions of the world files which may belong to a picture.
+     *
+     * @param fileName name of the picture file
+     * @return the extensions including the dot, empty for pictures without world files
+     */
+    static List<String> getWorldFileExtensions(String fileName) {
+        int dotIdx = fileName.lastIndexOf('.');
+        if (dotIdx != -1) {
+            String extension = fileName.substring(dotIdx).toLowerCase(Locale.ROOT);
+            for (int i = 0; i < IMG_EXTENSIONS.length; ++i) {
+                if (Arrays.asList(IMG_EXTENSIONS[i]).contains(extension)) {
+                    return Arrays.asList(WLD_EXTENSIONS[i]);
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
     public enum CalibrationType {CAL, WORLDFILE}
 
     public static class CalData {
@@ -106,48 +202,24 @@ public class PicLayerFromFile extends PicLayerAbstract {
     protected void lookForCalibration() throws IOException {
         // Manage a potential existing calibration file
 
-        String[][] imgExtensions = new String[][]{
-                {".jpg", ".jpeg"},
-                {".png"},
-                {".tif", ".tiff"},
-                {".bmp"},
-        };
-        String[][] wldExtensions = new String[][]{
-                {".wld", ".jgw", ".jpgw"},
-                {".wld", ".pgw", ".pngw"},
-                {".wld", ".tfw", ".tifw"},
-                {".wld", ".bmpw", ".bpw"},
-        };
-
         if (isZip) {
-            try (ZipFile zipFile = new ZipFile(m_file)) {
-                String calFileStr = imgNameInZip + CalibrationFileFilter.EXTENSION;
-                ZipEntry calEntry = zipFile.getEntry(calFileStr);
-                if (calEntry != null) {
-                    if (confirmCalibrationLoading(calFileStr)) {
-                        InputStream is = zipFile.getInputStream(calEntry);
+            try {
+                ZipImageIndex index = ZipImageIndex.of(m_file);
+                ZipImageIndex.Picture picture = index.getPicture(imgNameInZip);
+                if (picture == null) return;
+                if (picture.getCalibrationName() != null && confirmCalibrationLoading(picture.getCalibrationName())) {
+                    try (InputStream is = index.getInputStream(picture.getCalibrationName())) {
                         loadCalibration(is);
-                        return;
                     }
-                } else {
-                    int dotIdx = imgNameInZip.lastIndexOf(".");
-                    if (dotIdx == -1) return;
-                    String extension = imgNameInZip.substring(dotIdx);
-                    String namepart = imgNameInZip.substring(0, dotIdx);
-                    for (int i = 0; i < imgExtensions.length; ++i) {
-                        if (Arrays.asList(imgExtensions[i]).contains(extension.toLowerCase())) {
-                            for (String wldExtension : wldExtensions[i]) {
-                                String wldName = namepart + wldExtension;
-                                ZipEntry wldEntry = zipFile.getEntry(wldName);
-                                if (wldEntry != null) {
-                                    if (confirmCalibrationLoading(wldName)) {
-                                        InputStream is = zipFile.getInputStream(wldEntry);
-                                        loadWorldFile(is);
-                                        return;
-                                    }
-                                }
-                            }
+                    return;
+                }
+                // declined calibration files fall back to the world files, which are offered one after the other
+                for (String wldName : picture.getWorldFileNames()) {
+                    if (confirmCalibrationLoading(wldName)) {
+                        try (InputStream is = index.getInputStream(wldName)) {
+                            loadWorldFile(is);
                         }
+                        return;
                     }
                 }
             } catch (Exception e) {
@@ -156,25 +228,18 @@ public class PicLayerFromFile extends PicLayerAbstract {
             }
         } else {
             File calFile = new File(m_file + CalibrationFileFilter.EXTENSION);
-            if (calFile.exists()) {
-                if (confirmCalibrationLoading(calFile.getName())) {
-                    loadCalibration(new FileInputStream(calFile));
-                }
-            } else {
-                int dotIdx = m_file.getName().lastIndexOf(".");
-                if (dotIdx == -1) return;
-                String extension = m_file.getName().substring(dotIdx);
-                String namepart = m_file.getName().substring(0, dotIdx);
-                for (int i = 0; i < imgExtensions.length; ++i) {
-                    if (Arrays.asList(imgExtensions[i]).contains(extension.toLowerCase())) {
-                        for (String wldExtension : wldExtensions[i]) {
-                            File wldFile = new File(m_file.getParentFile(), namepart + wldExtension);
-                            if (wldFile.exists()) {
-                                loadWorldFile(new FileInputStream(wldFile));
-                                return;
-                            }
-                        }
-                    }
+            if (calFile.exists() && confirmCalibrationLoading(calFile.getName())) {
+                loadCalibration(new FileInputStream(calFile));
+                return;
+            }
+            int dotIdx = m_file.getName().lastIndexOf(".");
+            if (dotIdx == -1) return;
+            String namepart = m_file.getName().substring(0, dotIdx);
+            for (String wldExtension : getWorldFileExtensions(m_file.getName())) {
+                File wldFile = new File(m_file.getParentFile(), namepart + wldExtension);
+                if (wldFile.exists()) {
+                    loadWorldFile(new FileInputStream(wldFile));
+                    return;
                 }
             }
         }
@@ -1,6 +1,7 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.layer;
 
+import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.geom.AffineTransform;
 import java.io.File;
@@ -10,6 +11,9 @@ import javax.imageio.ImageIO;
 
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.RegionDecoder;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLGroundOverlay;
 
 public class PicLayerFromKML extends PicLayerAbstract {
@@ -37,6 +41,31 @@ public class PicLayerFromKML extends PicLayerAbstract {
         return image;
     }
 
+    @Override
+    protected Image createImage(ProgressMonitor progressMonitor) throws IOException {
+        return ImageDecoder.read(picture, 0, isMappedStorage(0), progressMonitor);
+    }
+
+    @Override
+    protected Image createSubsampledImage(int level, ProgressMonitor progressMonitor) throws IOException {
+        return ImageDecoder.read(picture, level, isMappedStorage(level), progressMonitor);
+    }
+
+    @Override
+    protected boolean canReloadImage() {
+        return true;
+    }
+
+    @Override
+    protected RegionDecoder createRegionDecoder(long cacheBytes) {
+        return new RegionDecoder(picture, imageWidth, imageHeight, cacheBytes);
+    }
+
+    @Override
+    protected Dimension readImageSize() throws IOException {
+        return ImageDecoder.readSize(picture);
+    }
+
     @Override
     protected void lookForCalibration() throws IOException {
         if (calibration != null)
@@ -50,8 +79,8 @@ public class PicLayerFromKML extends PicLayerAbstract {
     }
 
     public void loadCalibration(KMLGroundOverlay cal) {
-        int w = image.getWidth(null);
-        int h = image.getHeight(null);
+        int w = imageWidth;
+        int h = imageHeight;
         LatLon coord1 = new LatLon(cal.getNorth(), cal.getEast());
         LatLon coord2 = new LatLon(cal.getSouth(), cal.getWest());
 
@@ -68,7 +97,7 @@ public class PicLayerFromKML extends PicLayerAbstract {
         transform.rotate(cal.getRotate() / 180.0 * Math.PI);
 
         transformer.resetCalibration();
-        transformer.getTransform().concatenate(transform);
+        transformer.setTransform(transform);
     }
 
 }
@@ -0,0 +1,269 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Graphics2D;
+import java.awt.Toolkit;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.swing.Action;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+
+import org.openstreetmap.josm.actions.RenameLayerAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.PicLayerPlugin;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Layer displaying many calibrated pictures at once, e.g. the sheets of a map series.
+ * <p>
+ * Each picture keeps its own calibration. The pictures are indexed by their bounding boxes in a
+ * {@link QuadTree}, so painting only touches the pictures intersecting the view. A picture is decoded
+ * the first time it becomes visible, subsampled for the current scale. Its memory is then managed
+ * together with all other pictures by the {@link ImageMemoryManager}.
+ */
+public class PicLayerMosaic extends Layer {
+
+    // Preference for the number of pictures decoded at the same time
+    private static final String THREADS_PREF = "piclayer.mosaic-threads";
+
+    private final List<PicLayerFromFile> entries;
+    private final Icon layerIcon;
+    private final ExecutorService loader;
+
+    // spatial index of the entry numbers, rebuilt after the calibrations changed
+    private QuadTree<Integer> index;
+    // entries without a bounding box, always painted
+    private final List<Integer> unindexed = new ArrayList<>();
+    // entries whose picture was requested and those visible at the last paint
+    private final Set<PicLayerFromFile> requested = new HashSet<>();
+    private volatile Set<PicLayerFromFile> visible = Collections.emptySet();
+    // whether the pictures were placed, nothing is decoded before
+    private boolean calibrated = false;
+
+    /**
+     * Constructor
+     *
+     * @param name    name of the layer
+     * @param entries the pictures, initialized by {@link PicLayerAbstract#initializeForLoading()}, painted in this order
+     */
+    public PicLayerMosaic(String name, List<PicLayerFromFile> entries) {
+        super(name);
+        this.entries = new ArrayList<>(entries);
+        for (PicLayerFromFile entry : entries) {
+            entry.setDrawOriginPoints(false);
+        }
+        layerIcon = new ImageIcon(Toolkit.getDefaultToolkit().createImage(getClass().getResource("/images/layericon.png")));
+        int threads = Config.getPref().getInt(THREADS_PREF, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        loader = Executors.newFixedThreadPool(Math.max(1, threads), Utils.newThreadFactory("piclayer-mosaic-%d", Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Reads the sizes of all pictures, which is needed to place them. May be called in any thread.
+     *
+     * @param progressMonitor the progress monitor
+     */
+    public void readImageSizes(ProgressMonitor progressMonitor) {
+        progressMonitor.beginTask(tr("Reading picture sizes"), entries.size());
+        try {
+            for (PicLayerFromFile entry : entries) {
+                if (progressMonitor.isCanceled())
+                    break;
+                try {
+                    entry.readSize();
+                } catch (IOException e) {
+                    Logging.warn(e);
+                }
+                progressMonitor.worked(1);
+            }
+        } finally {
+            progressMonitor.finishTask();
+        }
+    }
+
+    /**
+     * Loads the calibration files of all pictures. Must be called in the EDT, after {@link #readImageSizes}.
+     */
+    public void loadCalibrations() {
+        for (PicLayerFromFile entry : entries) {
+            try {
+                entry.lookForCalibration();
+            } catch (IOException e) {
+                Logging.warn(e);
+            }
+        }
+        index = null;
+        calibrated = true;
+        invalidate();
+    }
+
+    /**
+     * Returns the pictures of the mosaic.
+     *
+     * @return the pictures, in painting order
+     */
+    public List<PicLayerFromFile> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    private QuadTree<Integer> getIndex() {
+        if (index == null) {
+            unindexed.clear();
+            List<ProjectionBounds> boxes = new ArrayList<>(entries.size());
+            ProjectionBounds all = null;
+            for (PicLayerFromFile entry : entries) {
+                ProjectionBounds box = entry.getEastNorthBounds();
+                boxes.add(box);
+                if (box != null) {
+                    if (all == null) {
+                        all = new ProjectionBounds(box.getMin(), box.getMax());
+                    } else {
+                        all.extend(box);
+                    }
+                }
+            }
+            QuadTree<Integer> tree = new QuadTree<>(all != null ? all : new ProjectionBounds(0, 0, 0, 0));
+            for (int i = 0; i < boxes.size(); i++) {
+                if (boxes.get(i) != null) {
+                    tree.add(i, boxes.get(i));
+                } else {
+                    unindexed.add(i);
+                }
+            }
+            index = tree;
+        }
+        return index;
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mv, Bounds bounds) {
+        List<Integer> found = getIndex().search(mv.getProjectionBounds());
+        found.addAll(unindexed);
+        Collections.sort(found);
+
+        Set<PicLayerFromFile> nowVisible = new HashSet<>();
+        for (int i : found) {
+            nowVisible.add(entries.get(i));
+        }
+        visible = nowVisible;
+
+        for (int i : found) {
+            PicLayerFromFile entry = entries.get(i);
+            if (calibrated && entry.getImage() == null && requested.add(entry)) {
+                // only as fine as the current scale needs, zooming in refines the picture
+                int level = entry.getLevelForScale(mv.getScale());
+                loader.submit(() -> load(entry, level));
+            }
+            entry.paint(g, mv, bounds);
+        }
+    }
+
+    private void load(PicLayerFromFile entry, int level) {
+        if (!visible.contains(entry)) {
+            // scrolled out of view before its turn, decode it when it becomes visible again
+            GuiHelper.runInEDT(() -> requested.remove(entry));
+            return;
+        }
+        try {
+            entry.loadImage(level, NullProgressMonitor.INSTANCE);
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+        GuiHelper.runInEDT(() -> {
+            entry.finishLoading(false);
+            invalidate();
+        });
+    }
+
+    @Override
+    public void visitBoundingBox(BoundingXYVisitor v) {
+        for (PicLayerFromFile entry : entries) {
+            entry.visitBoundingBox(v);
+        }
+    }
+
+    /**
+     * Moves the calibrations of all pictures into the new projection, the pictures are not layers on their own.
+     */
+    @Override
+    public void projectionChanged(Projection oldValue, Projection newValue) {
+        super.projectionChanged(oldValue, newValue);
+        for (PicLayerFromFile entry : entries) {
+            entry.projectionChanged(oldValue, newValue);
+        }
+        index = null;
+        invalidate();
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        loader.shutdownNow();
+        for (PicLayerFromFile entry : entries) {
+            entry.destroy();
+        }
+    }
+
+    @Override
+    public Icon getIcon() {
+        return layerIcon;
+    }
+
+    @Override
+    public Object getInfoComponent() {
+        int loaded = 0;
+        long bytes = 0;
+        for (PicLayerFromFile entry : entries) {
+            if (entry.getImage() != null) {
+                loaded++;
+                bytes += entry.getImageBytes();
+            }
+        }
+        return tr("Mosaic of {0} pictures, {1} decoded, memory used: {2}", entries.size(), loaded,
+                Utils.getSizeString(bytes, Locale.getDefault())) + "\n"
+                + tr("All PicLayers: {0} of {1}",
+                Utils.getSizeString(PicLayerPlugin.getMemoryManager().getUsedBytes(), Locale.getDefault()),
+                Utils.getSizeString(PicLayerPlugin.getMemoryManager().getBudget(), Locale.getDefault()));
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        return new Action[]{
+                new RenameLayerAction(null, this),
+        };
+    }
+
+    @Override
+    public String getToolTipText() {
+        return tr("Mosaic of {0} pictures", entries.size());
+    }
+
+    @Override
+    public boolean isMergable(Layer other) {
+        return false;
+    }
+
+    @Override
+    public void mergeFrom(Layer from) {
+    }
+}
@@ -0,0 +1,139 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openstreetmap.josm.data.ProjectionBounds;
+
+/**
+ * Quadtree of items with a bounding box in east/north coordinates.
+ * <p>
+ * Each item is stored in the smallest node which contains its box completely,
+ * a node is split into four children when it holds too many items.
+ *
+ * @param <T> type of the items
+ */
+class QuadTree<T> {
+
+    private static final int MAX_ITEMS = 8;
+    private static final int MAX_DEPTH = 16;
+
+    private final Node root;
+    private int size = 0;
+
+    private class Node {
+        private final double minEast;
+        private final double minNorth;
+        private final double maxEast;
+        private final double maxNorth;
+        private final int depth;
+        private final List<T> items = new ArrayList<>();
+        private final List<ProjectionBounds> boxes = new ArrayList<>();
+        private List<Node> children;
+
+        Node(double minEast, double minNorth, double maxEast, double maxNorth, int depth) {
+            this.minEast = minEast;
+            this.minNorth = minNorth;
+            this.maxEast = maxEast;
+            this.maxNorth = maxNorth;
+            this.depth = depth;
+        }
+
+        void add(T item, ProjectionBounds box) {
+            if (children != null) {
+                for (Node child : children) {
+                    if (child.contains(box)) {
+                        child.add(item, box);
+                        return;
+                    }
+                }
+            }
+            items.add(item);
+            boxes.add(box);
+            if (children == null && items.size() > MAX_ITEMS && depth < MAX_DEPTH) {
+                split();
+            }
+        }
+
+        private void split() {
+            double midEast = (minEast + maxEast) / 2;
+            double midNorth = (minNorth + maxNorth) / 2;
+            children = new ArrayList<>(4);
+            children.add(new Node(minEast, minNorth, midEast, midNorth, depth + 1));
+            children.add(new Node(midEast, minNorth, maxEast, midNorth, depth + 1));
+            children.add(new Node(minEast, midNorth, midEast, maxNorth, depth + 1));
+            children.add(new Node(midEast, midNorth, maxEast, maxNorth, depth + 1));
+            List<T> oldItems = new ArrayList<>(items);
+            List<ProjectionBounds> oldBoxes = new ArrayList<>(boxes);
+            items.clear();
+            boxes.clear();
+            for (int i = 0; i < oldItems.size(); i++) {
+                add(oldItems.get(i), oldBoxes.get(i));
+            }
+        }
+
+        boolean contains(ProjectionBounds box) {
+            return box.minEast >= minEast && box.maxEast <= maxEast && box.minNorth >= minNorth && box.maxNorth <= maxNorth;
+        }
+
+        boolean intersects(ProjectionBounds area) {
+            return area.minEast <= maxEast && area.maxEast >= minEast && area.minNorth <= maxNorth && area.maxNorth >= minNorth;
+        }
+
+        void search(ProjectionBounds area, List<T> result) {
+            for (int i = 0; i < items.size(); i++) {
+                if (QuadTree.intersects(boxes.get(i), area)) {
+                    result.add(items.get(i));
+                }
+            }
+            if (children != null) {
+                for (Node child : children) {
+                    if (child.intersects(area)) {
+                        child.search(area, result);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bounds area covered by the tree, items outside of it are kept in the root node
+     */
+    QuadTree(ProjectionBounds bounds) {
+        root = new Node(bounds.minEast, bounds.minNorth, bounds.maxEast, bounds.maxNorth, 0);
+    }
+
+    /**
+     * Adds an item.
+     *
+     * @param item the item
+     * @param box  bounding box of the item
+     */
+    void add(T item, ProjectionBounds box) {
+        root.add(item, box);
+        size++;
+    }
+
+    /**
+     * Finds the items whose bounding box intersects an area.
+     *
+     * @param area the area
+     * @return the items, in no particular order
+     */
+    List<T> search(ProjectionBounds area) {
+        List<T> result = new ArrayList<>();
+        root.search(area, result);
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean intersects(ProjectionBounds a, ProjectionBounds b) {
+        return a.minEast <= b.maxEast && a.maxEast >= b.minEast && a.minNorth <= b.maxNorth && a.maxNorth >= b.minNorth;
+    }
+}
@@ -0,0 +1,241 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Index of the pictures in a zip archive together with their calibration files.
+ * <p>
+ * The index is built by a single pass over the entries of the archive and is kept for
+ * every archive which was opened recently, as long as the archive is not modified.
+ * Entries are then looked up by name, which {@link ZipFile#getEntry(String)} does with a hash table.
+ * <p>
+ * The archive is open only while streams read from it, which share the open archive, and is closed
+ * with the last of them. A cached index does not lock the archive against editing or deleting it.
+ */
+public final class ZipImageIndex {
+
+    // number of archives whose index is kept
+    private static final int CACHE_SIZE = 16;
+    private static final Map<File, ZipImageIndex> CACHE = new LinkedHashMap<File, ZipImageIndex>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, ZipImageIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * A picture in the archive.
+     */
+    public static final class Picture {
+        private final String name;
+        private final String calibrationName;
+        private final List<String> worldFileNames;
+
+        Picture(String name, String calibrationName, List<String> worldFileNames) {
+            this.name = name;
+            this.calibrationName = calibrationName;
+            this.worldFileNames = worldFileNames;
+        }
+
+        /**
+         * @return name of the entry of the picture
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return name of the entry of the {@code .cal} file of the picture, {@code null} if there is none
+         */
+        public String getCalibrationName() {
+            return calibrationName;
+        }
+
+        /**
+         * @return names of the entries of the world files of the picture, in the order they are tried
+         */
+        public List<String> getWorldFileNames() {
+            return worldFileNames;
+        }
+    }
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final List<Picture> pictures;
+    private final Map<String, Picture> byName;
+
+    // the archive while streams read from it, null otherwise; both guarded by this
+    private ZipFile zipFile;
+    private int openStreams = 0;
+
+    private ZipImageIndex(File file) throws IOException {
+        this.file = file;
+        lastModified = file.lastModified();
+        length = file.length();
+
+        Set<String> imageSuffixes = new HashSet<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            imageSuffixes.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        for (String format : ImageIO.getReaderFormatNames()) {
+            imageSuffixes.add(format.toLowerCase(Locale.ROOT));
+        }
+
+        List<String> imageNames = new ArrayList<>();
+        Set<String> otherNames = new HashSet<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory())
+                    continue;
+                String name = entry.getName();
+                int dotIdx = name.lastIndexOf('.');
+                if (dotIdx != -1 && imageSuffixes.contains(name.substring(dotIdx + 1).toLowerCase(Locale.ROOT))) {
+                    imageNames.add(name);
+                } else {
+                    otherNames.add(name);
+                }
+            }
+        }
+
+        pictures = new ArrayList<>(imageNames.size());
+        byName = new HashMap<>();
+        for (String name : imageNames) {
+            String calibrationName = name + CalibrationFileFilter.EXTENSION;
+            if (!otherNames.contains(calibrationName)) {
+                calibrationName = null;
+            }
+            List<String> worldFileNames = new ArrayList<>();
+            String namepart = name.substring(0, name.lastIndexOf('.'));
+            for (String wldExtension : PicLayerFromFile.getWorldFileExtensions(name)) {
+                if (otherNames.contains(namepart + wldExtension)) {
+                    worldFileNames.add(namepart + wldExtension);
+                }
+            }
+            Picture picture = new Picture(name, calibrationName, worldFileNames);
+            pictures.add(picture);
+            byName.put(name, picture);
+        }
+    }
+
+    /**
+     * Returns the index of an archive, building it if the archive was not indexed yet or has changed since.
+     *
+     * @param file the zip archive
+     * @return the index
+     * @throws IOException if the archive cannot be read
+     */
+    public static ZipImageIndex of(File file) throws IOException {
+        File key = file.getAbsoluteFile();
+        synchronized (CACHE) {
+            ZipImageIndex index = CACHE.get(key);
+            if (index != null && index.lastModified == key.lastModified() && index.length == key.length())
+                return index;
+        }
+        // build outside of the lock, indexing a big archive takes a while
+        ZipImageIndex index = new ZipImageIndex(key);
+        synchronized (CACHE) {
+            CACHE.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Opens an entry of the archive for reading. The stream must be closed, the archive stays open until then.
+     * Streams opened while others are still open share the open archive.
+     *
+     * @param name name of the entry
+     * @return the stream, {@code null} if there is no such entry
+     * @throws IOException if the archive cannot be read
+     */
+    public InputStream getInputStream(String name) throws IOException {
+        ZipFile zip;
+        synchronized (this) {
+            if (zipFile == null) {
+                zipFile = new ZipFile(file);
+            }
+            zip = zipFile;
+            openStreams++;
+        }
+        try {
+            ZipEntry entry = zip.getEntry(name);
+            if (entry == null) {
+                release();
+                return null;
+            }
+            return new FilterInputStream(zip.getInputStream(entry)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed)
+                        return;
+                    closed = true;
+                    try {
+                        super.close();
+                    } finally {
+                        release();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private synchronized void release() {
+        openStreams--;
+        if (openStreams > 0 || zipFile == null)
+            return;
+        try {
+            zipFile.close();
+        } catch (IOException e) {
+            Logging.warn(e);
+        }
+        zipFile = null;
+    }
+
+    /**
+     * Returns the pictures in the order of the archive.
+     *
+     * @return the pictures
+     */
+    public List<Picture> getPictures() {
+        return Collections.unmodifiableList(pictures);
+    }
+
+    /**
+     * Returns a picture of the archive.
+     *
+     * @param name name of the entry of the picture, {@code null} for the first picture
+     * @return the picture, {@code null} if there is no such picture
+     */
+    public Picture getPicture(String name) {
+        if (name == null)
+            return pictures.isEmpty() ? null : pictures.get(0);
+        return byName.get(name);
+    }
+}
@@ -0,0 +1,58 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+
+/**
+ * Converts decoded pictures to the pixel format of the screen.
+ * <p>
+ * Image readers often return formats like {@link BufferedImage#TYPE_3BYTE_BGR} or
+ * {@link BufferedImage#TYPE_CUSTOM}, which Java2D converts pixel by pixel on every draw.
+ * Converting once after decoding lets Java2D use its fast blit loops.
+ */
+public final class CompatibleImage {
+
+    private CompatibleImage() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Converts an image to the format of the default screen, unless it has that format already.
+     *
+     * @param image the image, fully loaded
+     * @return the converted image or {@code image} itself
+     */
+    public static Image convert(Image image) {
+        if (image == null || GraphicsEnvironment.isHeadless())
+            return image;
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration();
+        int transparency = image instanceof BufferedImage ? ((BufferedImage) image).getTransparency() : Transparency.TRANSLUCENT;
+        ColorModel target = gc.getColorModel(transparency);
+        if (image instanceof BufferedImage) {
+            BufferedImage bi = (BufferedImage) image;
+            if (bi.getType() != BufferedImage.TYPE_CUSTOM && target.equals(bi.getColorModel()))
+                return image;
+            if (MappedImage.isMapped(bi))
+                return image;
+        }
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width <= 0 || height <= 0)
+            return image;
+        BufferedImage converted = gc.createCompatibleImage(width, height, transparency);
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+}
@@ -0,0 +1,209 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Decodes pictures with an {@link ImageReader}, like {@link ImageIO#read(java.io.File)} does,
+ * but reporting the progress to a {@link ProgressMonitor} and supporting cancellation.
+ */
+public final class ImageDecoder {
+
+    // pixels of a strip decoded for a memory-mapped picture, 64 MB as ARGB
+    private static final int STRIP_PIXELS = 16 << 20;
+
+    private ImageDecoder() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Reads only the size of the picture from its header, without decoding the pixels.
+     *
+     * @param input a {@link java.io.File} or an {@link java.io.InputStream}
+     * @return the size of the first image, {@code null} if no reader supports the input
+     * @throws IOException in case of error
+     */
+    public static Dimension readSize(Object input) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = getReader(iis);
+            if (reader == null)
+                return null;
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the picture.
+     *
+     * @param input           a {@link java.io.File} or an {@link java.io.InputStream}
+     * @param progressMonitor monitor to report the progress to, decoding is aborted when it gets canceled
+     * @return the decoded image, {@code null} if no reader supports the input or decoding was canceled
+     * @throws IOException in case of error
+     */
+    public static BufferedImage read(Object input, ProgressMonitor progressMonitor) throws IOException {
+        return read(input, 0, progressMonitor);
+    }
+
+    /**
+     * Decodes the picture subsampled by a power of two, which is much faster and needs much less
+     * memory than decoding the full resolution. The result has the size of the given {@link ImagePyramid} level.
+     *
+     * @param input           a {@link java.io.File} or an {@link java.io.InputStream}
+     * @param level           subsampling level, the picture is subsampled by 2<sup>level</sup>
+     * @param progressMonitor monitor to report the progress to, decoding is aborted when it gets canceled
+     * @return the decoded image, {@code null} if no reader supports the input or decoding was canceled
+     * @throws IOException in case of error
+     */
+    public static BufferedImage read(Object input, int level, ProgressMonitor progressMonitor) throws IOException {
+        return read(input, level, false, progressMonitor);
+    }
+
+    /**
+     * Decodes the picture subsampled by a power of two, see {@link #read(Object, int, ProgressMonitor)}.
+     * <p>
+     * A picture for the {@link MappedImage} storage is decoded in strips of rows, which are written into the
+     * memory-mapped file one after the other, so that the full picture is never on the heap. Readers which
+     * decode sequentially, e.g. for JPEG, read the file up to the strip for each strip, so strips are large.
+     *
+     * @param input           a {@link java.io.File} or an {@link java.io.InputStream}
+     * @param level           subsampling level, the picture is subsampled by 2<sup>level</sup>
+     * @param mapped          whether to decode into a {@link MappedImage}
+     * @param progressMonitor monitor to report the progress to, decoding is aborted when it gets canceled
+     * @return the decoded image, {@code null} if no reader supports the input or decoding was canceled
+     * @throws IOException in case of error, or if the level has more pixels than an image can hold
+     */
+    public static BufferedImage read(Object input, int level, boolean mapped, ProgressMonitor progressMonitor) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            ImageReader reader = getReader(iis);
+            if (reader == null)
+                return null;
+            try {
+                reader.setInput(iis, true, true);
+                progressMonitor.beginTask(tr("Decoding picture"), 100);
+                MappedImage.checkSize(((reader.getWidth(0) - 1L) >> level) + 1, ((reader.getHeight(0) - 1L) >> level) + 1);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (level > 0) {
+                    param.setSourceSubsampling(1 << level, 1 << level, 0, 0);
+                }
+                if (mapped)
+                    return readStrips(reader, param, level, progressMonitor);
+                reader.addIIOReadProgressListener(new MonitorProgressListener(progressMonitor));
+                BufferedImage image = reader.read(0, param);
+                return progressMonitor.isCanceled() ? null : image;
+            } finally {
+                reader.dispose();
+                progressMonitor.finishTask();
+            }
+        }
+    }
+
+    private static BufferedImage readStrips(ImageReader reader, ImageReadParam param, int level, ProgressMonitor progressMonitor)
+            throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int levelWidth = ((width - 1) >> level) + 1;
+        int levelHeight = ((height - 1) >> level) + 1;
+        BufferedImage image = MappedImage.create(levelWidth, levelHeight);
+        int rows = Math.max(1, STRIP_PIXELS / levelWidth);
+        int[] pixels = null;
+        for (int y = 0; y < levelHeight; y += rows) {
+            if (progressMonitor.isCanceled())
+                return null;
+            int h = Math.min(rows, levelHeight - y);
+            // source rows of the strip, the subsampling grid starts at the first row of the region
+            int sourceY = y << level;
+            param.setSourceRegion(new Rectangle(0, sourceY, width, Math.min(h << level, height - sourceY)));
+            BufferedImage strip = reader.read(0, param);
+            pixels = strip.getRGB(0, 0, levelWidth, h, pixels, 0, levelWidth);
+            MappedImage.setRows(image, y, h, pixels);
+            progressMonitor.setTicks((int) (100L * (y + h) / levelHeight));
+        }
+        return image;
+    }
+
+    static ImageReader getReader(ImageInputStream iis) throws IOException {
+        if (iis == null)
+            throw new IOException(tr("Cannot create an input stream for the picture"));
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        return readers.hasNext() ? readers.next() : null;
+    }
+
+    /**
+     * Forwards the decoding progress to a {@link ProgressMonitor} and aborts decoding on cancel.
+     */
+    static class MonitorProgressListener implements IIOReadProgressListener {
+
+        private final ProgressMonitor progressMonitor;
+
+        MonitorProgressListener(ProgressMonitor progressMonitor) {
+            this.progressMonitor = progressMonitor;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            progressMonitor.setTicks((int) percentageDone);
+            if (progressMonitor.isCanceled()) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+            // do nothing
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+            // do nothing
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            // do nothing
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+            // do nothing
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            // do nothing
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            // do nothing
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+            // do nothing
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+            // do nothing
+        }
+    }
+}
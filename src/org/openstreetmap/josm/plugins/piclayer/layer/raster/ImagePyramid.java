@@ -0,0 +1,314 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Multi-resolution pyramid of a picture, split into tiles of {@link #TILE_SIZE} pixels.
+ * <p>
+ * Level 0 is the picture itself, every further level halves the size of the previous one
+ * until the picture fits into a single tile. Levels are computed lazily the first time
+ * they are needed, so a picture that is never zoomed out only costs its level 0. Painting does
+ * not wait for them: they are computed in the background and the nearest finer level which
+ * is available is drawn meanwhile.
+ * <p>
+ * A pyramid can also be built from a subsampled preview of the picture. The preview then is
+ * the base level and the finer levels are not available, painting falls back to the base level.
+ */
+public class ImagePyramid {
+
+    public static final int TILE_SIZE = 256;
+
+    private final int width;
+    private final int height;
+    private final Image[] levels;
+    private final int baseLevel;
+    // whether a background thread is computing levels, guarded by this
+    private boolean building;
+    // first level which could not be computed for lack of memory, the coarser ones are computed from it; guarded by this
+    private int unbuildableLevel = Integer.MAX_VALUE;
+
+    private static ExecutorService builder;
+
+    /**
+     * Constructor
+     *
+     * @param image the fully loaded picture, used as level 0
+     */
+    public ImagePyramid(Image image) {
+        this(image, image.getWidth(null), image.getHeight(null), 0);
+    }
+
+    /**
+     * Constructor for a pyramid whose finest levels are missing.
+     *
+     * @param image     the picture at level {@code baseLevel}, i.e. subsampled by 2<sup>baseLevel</sup>
+     * @param width     width of the full resolution picture
+     * @param height    height of the full resolution picture
+     * @param baseLevel level of {@code image}
+     */
+    public ImagePyramid(Image image, int width, int height, int baseLevel) {
+        this.width = width;
+        this.height = height;
+
+        int count = 1;
+        while (getLevelWidth(count - 1) > TILE_SIZE || getLevelHeight(count - 1) > TILE_SIZE) {
+            count++;
+        }
+        levels = new Image[Math.max(count, baseLevel + 1)];
+        levels[baseLevel] = image;
+        this.baseLevel = baseLevel;
+    }
+
+    private static synchronized ExecutorService getBuilder() {
+        if (builder == null) {
+            builder = Executors.newSingleThreadExecutor(Utils.newThreadFactory("piclayer-pyramid-%d", Thread.NORM_PRIORITY));
+        }
+        return builder;
+    }
+
+    /**
+     * Stops the thread computing levels in the background, when the plugin is unloaded.
+     */
+    public static synchronized void shutdown() {
+        if (builder != null) {
+            builder.shutdownNow();
+            builder = null;
+        }
+    }
+
+    /**
+     * Returns the finest level which is available.
+     *
+     * @return 0 for a pyramid of the full resolution picture, the subsampling level for a preview
+     */
+    public int getBaseLevel() {
+        return baseLevel;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getLevelWidth(int level) {
+        return ((width - 1) >> level) + 1;
+    }
+
+    public int getLevelHeight(int level) {
+        return ((height - 1) >> level) + 1;
+    }
+
+    /**
+     * Returns the memory used by the levels computed so far, including the base level.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (Image level : levels) {
+            if (level != null) {
+                bytes += TileCache.sizeOf(level);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Selects the coarsest level which still has at least one picture pixel per screen pixel.
+     *
+     * @param scale screen pixels per level 0 picture pixel
+     * @return the level to draw
+     */
+    public int getLevelForScale(double scale) {
+        if (!(scale > 0))
+            return 0;
+        int level = (int) Math.floor(-Math.log(scale) / Math.log(2));
+        return Math.max(0, Math.min(levels.length - 1, level));
+    }
+
+    /**
+     * Returns the picture at the given level, computing it from the previous level if necessary.
+     * This may take long for a large picture, painting uses {@link #getAvailableLevel} instead.
+     *
+     * @param level pyramid level, 0 is the full resolution
+     * @return picture of size {@link #getLevelWidth(int)} x {@link #getLevelHeight(int)},
+     * the base level for levels finer than it
+     */
+    public synchronized Image getLevel(int level) {
+        if (level <= baseLevel)
+            return levels[baseLevel];
+        if (levels[level] == null) {
+            levels[level] = scale(getLevel(level - 1), getLevelWidth(level), getLevelHeight(level));
+        }
+        return levels[level];
+    }
+
+    /**
+     * Returns the given level if it is computed already. Otherwise it is computed in the background
+     * and the nearest finer level which is available is returned meanwhile.
+     *
+     * @param level   pyramid level
+     * @param onBuilt called from the background thread when the level is computed, e.g. to repaint
+     * @return the level to draw now, the base level for levels finer than it
+     */
+    public synchronized int getAvailableLevel(int level, Runnable onBuilt) {
+        if (level <= baseLevel)
+            return baseLevel;
+        if (levels[level] != null)
+            return level;
+        if (!building && level < unbuildableLevel) {
+            building = true;
+            getBuilder().submit(() -> build(level, onBuilt));
+        }
+        // the levels are computed one after the other, so the computed ones have no gaps
+        int available = level - 1;
+        while (levels[available] == null) {
+            available--;
+        }
+        return available;
+    }
+
+    private void build(int level, Runnable onBuilt) {
+        try {
+            for (int l = baseLevel + 1; l <= level; l++) {
+                Image previous;
+                synchronized (this) {
+                    if (levels[l] != null)
+                        continue;
+                    previous = levels[l - 1];
+                }
+                // scale without holding the lock, painting goes on meanwhile
+                BufferedImage scaled = scale(previous, getLevelWidth(l), getLevelHeight(l));
+                synchronized (this) {
+                    levels[l] = scaled;
+                }
+            }
+        } catch (RuntimeException e) {
+            Logging.error(e);
+            return;
+        } catch (OutOfMemoryError e) {
+            // otherwise painting would submit the same level again and again, the finer level which exists is drawn instead
+            Logging.error(e);
+            synchronized (this) {
+                int failed = baseLevel + 1;
+                while (levels[failed] != null) {
+                    failed++;
+                }
+                unbuildableLevel = Math.min(unbuildableLevel, failed);
+            }
+            return;
+        } finally {
+            synchronized (this) {
+                building = false;
+            }
+        }
+        onBuilt.run();
+    }
+
+    /**
+     * Scales a picture with bilinear interpolation.
+     *
+     * @param source the picture
+     * @param width  width of the result
+     * @param height height of the result
+     * @return the scaled picture
+     */
+    public static BufferedImage scale(Image source, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Draws the picture centered at the origin of the user space of {@code g}, the same way
+     * {@code g.drawImage(image, -width / 2, -height / 2, null)} would do.
+     * Only the tiles of the level matching the current scale which intersect {@code visible} are drawn.
+     *
+     * @param g         graphics, transformed to picture pixel coordinates
+     * @param visible   visible part of the picture, in the user space of {@code g}
+     * @param levelBias number of levels to go coarser than the current scale needs, 0 for full quality
+     * @param onBuilt   called from a background thread when a missing level is computed
+     */
+    public void paint(Graphics2D g, Rectangle2D visible, int levelBias, Runnable onBuilt) {
+        AffineTransform at = g.getTransform();
+        int level = getLevelForScale(Math.sqrt(Math.abs(at.getDeterminant())));
+        level = getAvailableLevel(Math.max(baseLevel, Math.min(levels.length - 1, level + levelBias)), onBuilt);
+        Rectangle tiles = getTileRange(visible, level);
+        if (tiles == null)
+            return;
+        int levelWidth = getLevelWidth(level);
+        int levelHeight = getLevelHeight(level);
+
+        Graphics2D gl = (Graphics2D) g.create();
+        try {
+            toLevel(gl, level);
+
+            // draw the visible tiles in one go, separate draws would show seams when interpolating
+            int x1 = tiles.x * TILE_SIZE;
+            int y1 = tiles.y * TILE_SIZE;
+            int x2 = Math.min(levelWidth, (tiles.x + tiles.width) * TILE_SIZE);
+            int y2 = Math.min(levelHeight, (tiles.y + tiles.height) * TILE_SIZE);
+            gl.drawImage(getLevel(level), x1, y1, x2, y2, x1, y1, x2, y2, null);
+        } finally {
+            gl.dispose();
+        }
+    }
+
+    /**
+     * Computes the tiles of a level which intersect the visible part of the picture.
+     *
+     * @param visible visible part of the picture, in picture pixel coordinates centered at the origin
+     * @param level   pyramid level
+     * @return the range of tile columns and rows, {@code null} if no tile is visible
+     */
+    public Rectangle getTileRange(Rectangle2D visible, int level) {
+        int levelWidth = getLevelWidth(level);
+        int levelHeight = getLevelHeight(level);
+        double toLevelX = (double) levelWidth / width;
+        double toLevelY = (double) levelHeight / height;
+        int minCol = Math.max(0, (int) Math.floor((visible.getMinX() + width / 2) * toLevelX / TILE_SIZE));
+        int minRow = Math.max(0, (int) Math.floor((visible.getMinY() + height / 2) * toLevelY / TILE_SIZE));
+        int maxCol = Math.min((levelWidth - 1) / TILE_SIZE, (int) Math.floor((visible.getMaxX() + width / 2) * toLevelX / TILE_SIZE));
+        int maxRow = Math.min((levelHeight - 1) / TILE_SIZE, (int) Math.floor((visible.getMaxY() + height / 2) * toLevelY / TILE_SIZE));
+        if (minCol > maxCol || minRow > maxRow)
+            return null;
+        return new Rectangle(minCol, minRow, maxCol - minCol + 1, maxRow - minRow + 1);
+    }
+
+    /**
+     * Transforms a graphics from picture pixel coordinates centered at the origin
+     * to the pixel coordinates of a level, with the origin at its top left corner.
+     *
+     * @param g     graphics to transform
+     * @param level pyramid level
+     */
+    public void toLevel(Graphics2D g, int level) {
+        g.translate(-(width / 2), -(height / 2));
+        g.scale((double) width / getLevelWidth(level), (double) height / getLevelHeight(level));
+    }
+}
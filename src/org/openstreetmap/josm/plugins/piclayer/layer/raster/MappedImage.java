@@ -0,0 +1,176 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Images whose pixels are stored in a memory-mapped temporary file instead of the Java heap.
+ * <p>
+ * The operating system pages the pixels in and out as needed, so big pictures do not compete with
+ * the data layers for the heap. Drawing such an image is slower than drawing a heap image,
+ * which does not matter much as only the visible part of the full resolution is drawn.
+ */
+public final class MappedImage {
+
+    // a single mapping cannot be larger than 2 GB
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    // pixels of the strips the pixels are copied in
+    private static final int STRIP_PIXELS = 1 << 20;
+
+    private MappedImage() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Checks that an image of the given size can be created at all: the elements of a {@link DataBuffer}
+     * are counted by an {@code int}, also for the memory-mapped storage.
+     *
+     * @param width  width of the image
+     * @param height height of the image
+     * @throws IOException if the image has more than {@link Integer#MAX_VALUE} pixels
+     */
+    static void checkSize(long width, long height) throws IOException {
+        if (width * height > Integer.MAX_VALUE)
+            throw new IOException(tr("The picture of {0} x {1} pixels is too big to be decoded at once", width, height));
+    }
+
+    /**
+     * Copies an image into a memory-mapped temporary file.
+     *
+     * @param image the image to copy
+     * @return an ARGB image backed by the file
+     * @throws IOException if the temporary file cannot be created
+     */
+    public static BufferedImage copyOf(BufferedImage image) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage copy = create(width, height);
+        // copy in strips, a copy of the whole image on the heap is what we want to avoid
+        int rows = Math.max(1, STRIP_PIXELS / width);
+        int[] strip = new int[width * rows];
+        for (int y = 0; y < height; y += rows) {
+            int h = Math.min(rows, height - y);
+            image.getRGB(0, y, width, h, strip, 0, width);
+            setRows(copy, y, h, strip);
+        }
+        return copy;
+    }
+
+    /**
+     * Creates an image backed by a memory-mapped temporary file, all pixels transparent.
+     *
+     * @param width  width of the image
+     * @param height height of the image
+     * @return an ARGB image backed by the file
+     * @throws IOException if the temporary file cannot be created or the image is too big, see {@link #checkSize}
+     */
+    static BufferedImage create(int width, int height) throws IOException {
+        checkSize(width, height);
+        MappedDataBuffer buffer = new MappedDataBuffer(width, height);
+        ColorModel cm = ColorModel.getRGBdefault();
+        // a generic raster, the optimized ones require their own data buffers
+        WritableRaster raster = Raster.createWritableRaster(new SinglePixelPackedSampleModel(
+                DataBuffer.TYPE_INT, width, height, ((DirectColorModel) cm).getMasks()), buffer, null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Writes whole rows of ARGB pixels into an image created by {@link #create(int, int)}.
+     *
+     * @param image  the image
+     * @param y      first row to write
+     * @param rows   number of rows
+     * @param pixels the pixels, row by row without gaps
+     */
+    static void setRows(BufferedImage image, int y, int rows, int[] pixels) {
+        int width = image.getWidth();
+        ((MappedDataBuffer) image.getRaster().getDataBuffer()).put(y * width, pixels, rows * width);
+    }
+
+    /**
+     * Tells whether the pixels of an image are stored outside of the heap.
+     *
+     * @param image the image
+     * @return {@code true} if the image was created by {@link #copyOf(BufferedImage)}
+     */
+    public static boolean isMapped(BufferedImage image) {
+        return image.getRaster().getDataBuffer() instanceof MappedDataBuffer;
+    }
+
+    /**
+     * Integer pixel buffer backed by memory-mapped chunks of a temporary file.
+     */
+    static class MappedDataBuffer extends DataBuffer {
+
+        private final IntBuffer[] chunks;
+        private final int chunkSize;
+
+        MappedDataBuffer(int width, int height) throws IOException {
+            // at most Integer.MAX_VALUE pixels, see checkSize, so element indices do not overflow
+            super(TYPE_INT, width * height);
+            long size = (long) width * height;
+            // whole rows per chunk
+            chunkSize = (int) Math.max(width, MAX_CHUNK_BYTES / 4 / width * width);
+            chunks = new IntBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+
+            File file = File.createTempFile("piclayer", ".raster");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size * 4);
+                FileChannel channel = raf.getChannel();
+                for (int i = 0; i < chunks.length; i++) {
+                    long offset = (long) i * chunkSize;
+                    long length = Math.min(chunkSize, size - offset);
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset * 4, length * 4).asIntBuffer();
+                }
+            } finally {
+                // the mappings stay valid, the file is gone once they are garbage collected
+                if (!file.delete()) {
+                    Logging.debug("Cannot delete {0} while it is mapped", file);
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return chunks[i / chunkSize].get(i % chunkSize);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            chunks[i / chunkSize].put(i % chunkSize, val);
+        }
+
+        /**
+         * Copies consecutive elements in bulk, across the borders of the chunks.
+         */
+        void put(int index, int[] src, int length) {
+            int done = 0;
+            while (done < length) {
+                int i = index + done;
+                int offset = i % chunkSize;
+                int n = Math.min(length - done, chunkSize - offset);
+                // a view of its own, the position of the chunk is shared with other threads
+                IntBuffer chunk = chunks[i / chunkSize].duplicate();
+                chunk.position(offset);
+                chunk.put(src, done, n);
+                done += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Decodes the tiles of a picture file on demand, so that pictures which are much bigger
+ * than the available memory can be displayed at full resolution.
+ * <p>
+ * Only the tiles of the {@link ImagePyramid} grid which are visible get decoded, with
+ * {@link ImageReadParam#setSourceRegion} and subsampling for the coarser levels. Readers of tiled
+ * formats like tiled TIFF only decode the tiles of the file which intersect the region.
+ * Decoded tiles are kept in a {@link TileCache}.
+ * <p>
+ * A tile which cannot be decoded is tried again a few times when it is painted again. If tiles fail
+ * one after the other, the file is most likely broken or gone and decoding stops, see {@link #isFailed()}.
+ */
+public class RegionDecoder {
+
+    // attempts to decode a tile, and failing tiles in a row after which the file is given up
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_FAILURES_IN_A_ROW = 8;
+
+    private final File file;
+    private final ImagePyramid grid;
+    private final TileCache<TileKey> cache;
+    private final ExecutorService executor;
+    private final Set<TileKey> queued = ConcurrentHashMap.newKeySet();
+    // tiles requested by the last paint, tiles which scrolled out of view meanwhile are not decoded
+    private volatile Set<TileKey> wanted = new HashSet<>();
+    private final Map<TileKey, Integer> failedAttempts = new ConcurrentHashMap<>();
+    private volatile boolean failed = false;
+    private volatile boolean closed = false;
+
+    // accessed by the decoding thread only
+    private ImageInputStream iis;
+    private ImageReader reader;
+    private int failuresInARow = 0;
+
+    /**
+     * Constructor
+     *
+     * @param file       the picture file
+     * @param width      width of the picture
+     * @param height     height of the picture
+     * @param cacheBytes memory the decoded tiles may use at most
+     */
+    public RegionDecoder(File file, int width, int height, long cacheBytes) {
+        this.file = file;
+        this.grid = new ImagePyramid(null, width, height, 0);
+        this.cache = new TileCache<>(cacheBytes);
+        this.executor = Executors.newSingleThreadExecutor(Utils.newThreadFactory("piclayer-region-decoder-%d", Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Draws the decoded tiles of a level which intersect {@code visible}, the same way as {@link ImagePyramid#paint} does.
+     * Missing tiles are decoded in the background.
+     *
+     * @param g             graphics, transformed to picture pixel coordinates
+     * @param visible       visible part of the picture, in the user space of {@code g}
+     * @param level         pyramid level to draw
+     * @param onTileDecoded called from the decoding thread when a missing tile is available, or when decoding
+     *                      failed for good
+     * @return {@code true} if all visible tiles were drawn
+     */
+    public boolean paint(Graphics2D g, Rectangle2D visible, int level, Runnable onTileDecoded) {
+        Rectangle tiles = grid.getTileRange(visible, level);
+        if (tiles == null)
+            return true;
+        boolean complete = true;
+        Set<TileKey> missing = new HashSet<>();
+        Graphics2D gl = (Graphics2D) g.create();
+        try {
+            grid.toLevel(gl, level);
+            for (int row = tiles.y; row < tiles.y + tiles.height; row++) {
+                for (int col = tiles.x; col < tiles.x + tiles.width; col++) {
+                    TileKey key = new TileKey(level, col, row);
+                    BufferedImage tile = cache.get(key);
+                    if (tile != null) {
+                        gl.drawImage(tile, col * ImagePyramid.TILE_SIZE, row * ImagePyramid.TILE_SIZE, null);
+                    } else {
+                        complete = false;
+                        missing.add(key);
+                    }
+                }
+            }
+        } finally {
+            gl.dispose();
+        }
+        wanted = missing;
+        if (!failed && !closed) {
+            for (TileKey key : missing) {
+                if (failedAttempts.getOrDefault(key, 0) < MAX_ATTEMPTS && queued.add(key)) {
+                    executor.submit(() -> decode(key, onTileDecoded));
+                }
+            }
+        }
+        return complete;
+    }
+
+    private void decode(TileKey key, Runnable onTileDecoded) {
+        try {
+            if (!wanted.contains(key) || failed || closed)
+                return;
+            BufferedImage tile = readTile(key);
+            failuresInARow = 0;
+            failedAttempts.remove(key);
+            if (tile != null) {
+                cache.put(key, tile);
+                onTileDecoded.run();
+            }
+        } catch (IOException | RuntimeException e) {
+            Logging.warn(e);
+            failedAttempts.merge(key, 1, Integer::sum);
+            // the reader may be left in a bad state, the next tile opens the file again
+            closeReader();
+            if (++failuresInARow >= MAX_FAILURES_IN_A_ROW) {
+                // most likely the file is broken or gone, do not try every tile
+                failed = true;
+                onTileDecoded.run();
+            }
+        } finally {
+            queued.remove(key);
+        }
+    }
+
+    /**
+     * Tells whether decoding stopped because tile after tile could not be decoded.
+     *
+     * @return {@code true} if no more tiles are decoded
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            reader.dispose();
+            reader = null;
+        }
+        Utils.close(iis);
+        iis = null;
+    }
+
+    private BufferedImage readTile(TileKey key) throws IOException {
+        if (reader == null) {
+            iis = ImageIO.createImageInputStream(file);
+            reader = ImageDecoder.getReader(iis);
+            if (reader == null)
+                throw new IOException("No image reader for " + file);
+            reader.setInput(iis, false, true);
+        }
+        int size = ImagePyramid.TILE_SIZE << key.level;
+        int x = key.col * size;
+        int y = key.row * size;
+        Rectangle region = new Rectangle(x, y, Math.min(size, grid.getWidth() - x), Math.min(size, grid.getHeight() - y));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        if (key.level > 0) {
+            param.setSourceSubsampling(1 << key.level, 1 << key.level, 0, 0);
+        }
+        return reader.read(0, param);
+    }
+
+    /**
+     * Returns the memory used by the decoded tiles.
+     *
+     * @return the size in bytes
+     */
+    public long getCachedBytes() {
+        return cache.getBytes();
+    }
+
+    /**
+     * Drops the decoded tiles and closes the file.
+     */
+    public void close() {
+        closed = true;
+        cache.clear();
+        executor.submit(this::closeReader);
+        executor.shutdown();
+    }
+
+    private static final class TileKey {
+        private final int level;
+        private final int col;
+        private final int row;
+
+        TileKey(int level, int col, int row) {
+            this.level = level;
+            this.col = col;
+            this.row = row;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey other = (TileKey) obj;
+            return level == other.level && col == other.col && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(level, col, row);
+        }
+    }
+}
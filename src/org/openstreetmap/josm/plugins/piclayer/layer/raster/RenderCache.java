@@ -0,0 +1,105 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * Screen-space cache of a rendered picture.
+ * <p>
+ * When a layer is repainted because something else on the map changed, the picture is not
+ * resampled again as long as the key of the cache did not change. The key is the complete
+ * picture to device transform, the viewport size, the picture itself and the version of its calibration.
+ */
+public class RenderCache {
+
+    private BufferedImage buffer;
+    private final AffineTransform cachedTransform = new AffineTransform();
+    private Object cachedSource;
+    private long cachedVersion;
+    private boolean valid = false;
+
+    /**
+     * Draws the picture from the cache, rendering it into the cache first if the key changed.
+     *
+     * @param g             graphics of the map view
+     * @param pictureToView transform from picture pixel coordinates to view coordinates
+     * @param viewWidth     width of the view
+     * @param viewHeight    height of the view
+     * @param source        the picture, compared by identity
+     * @param version       version of the calibration of the picture
+     * @param renderer      renders the picture into a graphics transformed to picture pixel coordinates
+     */
+    public void paint(Graphics2D g, AffineTransform pictureToView, int viewWidth, int viewHeight,
+                      Object source, long version, Consumer<Graphics2D> renderer) {
+        // render in device pixels, so that the cache is not blurry on HiDPI screens
+        AffineTransform base = g.getTransform();
+        double dpiScaleX = base.getScaleX() > 0 ? base.getScaleX() : 1;
+        double dpiScaleY = base.getScaleY() > 0 ? base.getScaleY() : 1;
+        int width = (int) Math.ceil(viewWidth * dpiScaleX);
+        int height = (int) Math.ceil(viewHeight * dpiScaleY);
+        if (width <= 0 || height <= 0)
+            return;
+
+        AffineTransform device = AffineTransform.getScaleInstance(dpiScaleX, dpiScaleY);
+        device.concatenate(pictureToView);
+
+        if (buffer == null || buffer.getWidth() != width || buffer.getHeight() != height) {
+            buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            valid = false;
+        }
+        if (!valid || source != cachedSource || version != cachedVersion || !device.equals(cachedTransform)) {
+            Graphics2D gb = buffer.createGraphics();
+            try {
+                gb.setComposite(AlphaComposite.Clear);
+                gb.fillRect(0, 0, width, height);
+                gb.setComposite(AlphaComposite.SrcOver);
+                gb.transform(device);
+                renderer.accept(gb);
+            } finally {
+                gb.dispose();
+            }
+            cachedTransform.setTransform(device);
+            cachedSource = source;
+            cachedVersion = version;
+            valid = true;
+        }
+
+        Graphics2D gd = (Graphics2D) g.create();
+        try {
+            gd.scale(1 / dpiScaleX, 1 / dpiScaleY);
+            gd.drawImage(buffer, 0, 0, null);
+        } finally {
+            gd.dispose();
+        }
+    }
+
+    /**
+     * Marks the cached rendering as outdated.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Returns the memory used by the cached rendering.
+     *
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        BufferedImage b = buffer;
+        return b == null ? 0 : TileCache.sizeOf(b);
+    }
+
+    /**
+     * Drops the cached rendering and its memory.
+     */
+    public void clear() {
+        buffer = null;
+        cachedSource = null;
+        valid = false;
+    }
+}
@@ -0,0 +1,95 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded tiles, bounded by the memory of the tiles.
+ * The least recently used tiles are dropped first when the cache is full.
+ *
+ * @param <K> type of the tile keys
+ */
+public class TileCache<K> {
+
+    private final LinkedHashMap<K, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final long maxBytes;
+    private long bytes = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxBytes memory the tiles may use at most
+     */
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a tile and marks it as recently used.
+     *
+     * @param key key of the tile
+     * @return the tile, {@code null} if it is not cached
+     */
+    public synchronized BufferedImage get(K key) {
+        return tiles.get(key);
+    }
+
+    /**
+     * Adds a tile, dropping the least recently used tiles if the cache gets too big.
+     *
+     * @param key  key of the tile
+     * @param tile the tile
+     */
+    public synchronized void put(K key, BufferedImage tile) {
+        BufferedImage old = tiles.put(key, tile);
+        if (old != null) {
+            bytes -= sizeOf(old);
+        }
+        bytes += sizeOf(tile);
+        Iterator<Map.Entry<K, BufferedImage>> it = tiles.entrySet().iterator();
+        // always keep the tile just added
+        while (bytes > maxBytes && tiles.size() > 1) {
+            Map.Entry<K, BufferedImage> eldest = it.next();
+            bytes -= sizeOf(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops all tiles.
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns the memory used by the cached tiles.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap memory used by the pixels of an image.
+     *
+     * @param image the image
+     * @return the size in bytes, 4 bytes per pixel for images which are not {@link BufferedImage}s
+     */
+    public static long sizeOf(Image image) {
+        if (image instanceof BufferedImage) {
+            if (MappedImage.isMapped((BufferedImage) image))
+                return 0;
+            DataBuffer buffer = ((BufferedImage) image).getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        }
+        return 4L * Math.max(0, image.getWidth(null)) * Math.max(0, image.getHeight(null));
+    }
+}
@@ -0,0 +1,414 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureWarp;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Draws a picture through a non-affine {@link PictureWarp}, which {@link Graphics2D} cannot do.
+ * <p>
+ * The view is split into tiles which are resampled in parallel. Within a tile the inverse mapping
+ * from view to picture pixels is computed exactly only at the nodes of a grid of {@link #GRID_STEP}
+ * pixels and interpolated in between, so the warp is evaluated for a small fraction of the pixels.
+ * The pixels are read from the pyramid level matching the scale, copied once into a plain int array.
+ * Like the {@link RenderCache}, the result is kept for repaints which do not change the view.
+ */
+public class WarpRenderer {
+
+    private static final int TILE = 128;
+    private static final int GRID_STEP = 16;
+    // number of pixels of the largest pyramid level used as source
+    private static final long MAX_SOURCE_PIXELS = 16L * 1024 * 1024;
+    // points per edge of the picture for its outline
+    private static final int OUTLINE_SAMPLES = 32;
+
+    private static ExecutorService pool;
+
+    // source pixels of one pyramid level
+    private Image sourceLevel;
+    private int[] source;
+    private int sourceWidth;
+    private int sourceHeight;
+
+    // rendering in device pixels and its key
+    private BufferedImage target;
+    private int[] targetData;
+    private final AffineTransform renderedTransform = new AffineTransform();
+    private PictureWarp renderedWarp;
+    private Rectangle renderedRect;
+    private boolean renderedFast;
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, Utils.newThreadFactory("piclayer-warp-%d", Thread.NORM_PRIORITY));
+        }
+        return pool;
+    }
+
+    /**
+     * Stops the threads resampling the pictures, when the plugin is unloaded.
+     */
+    public static synchronized void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    /**
+     * Returns the outline of a warped picture, its edges sampled at regular intervals.
+     *
+     * @param warp   the warp
+     * @param width  width of the picture
+     * @param height height of the picture
+     * @return the outline in the space the warp maps the centered picture coordinates to
+     */
+    public static Path2D getOutline(PictureWarp warp, int width, int height) {
+        double x0 = -(width / 2);
+        double y0 = -(height / 2);
+        double[] p = new double[8 * OUTLINE_SAMPLES];
+        for (int i = 0; i < OUTLINE_SAMPLES; i++) {
+            double t = (double) i / OUTLINE_SAMPLES;
+            int k = 2 * i;
+            p[k] = x0 + t * width;
+            p[k + 1] = y0;
+            k += 2 * OUTLINE_SAMPLES;
+            p[k] = x0 + width;
+            p[k + 1] = y0 + t * height;
+            k += 2 * OUTLINE_SAMPLES;
+            p[k] = x0 + (1 - t) * width;
+            p[k + 1] = y0 + height;
+            k += 2 * OUTLINE_SAMPLES;
+            p[k] = x0;
+            p[k + 1] = y0 + (1 - t) * height;
+        }
+        warp.transform(p, 0, p, 0, 4 * OUTLINE_SAMPLES);
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo(p[0], p[1]);
+        for (int i = 2; i < p.length; i += 2) {
+            path.lineTo(p[i], p[i + 1]);
+        }
+        path.closePath();
+        return path;
+    }
+
+    private static double getArea(Shape shape) {
+        double area = 0;
+        double[] c = new double[6];
+        double startX = 0, startY = 0, lastX = 0, lastY = 0;
+        for (PathIterator it = shape.getPathIterator(null, 1); !it.isDone(); it.next()) {
+            int type = it.currentSegment(c);
+            if (type == PathIterator.SEG_MOVETO) {
+                startX = c[0];
+                startY = c[1];
+            } else {
+                if (type == PathIterator.SEG_CLOSE) {
+                    c[0] = startX;
+                    c[1] = startY;
+                }
+                area += lastX * c[1] - c[0] * lastY;
+            }
+            lastX = c[0];
+            lastY = c[1];
+        }
+        return Math.abs(area) / 2;
+    }
+
+    /**
+     * Draws the warped picture.
+     *
+     * @param g             graphics of the map view
+     * @param pyramid       pyramid of the picture
+     * @param warp          the warp, applied to the centered picture coordinates
+     * @param pictureToView transform from the warped picture coordinates to view coordinates
+     * @param viewRect      part of the view to draw
+     * @param levelBias     number of levels to go coarser than the scale needs, 0 for full quality
+     * @param fast          nearest neighbour instead of bilinear sampling, for dragging
+     * @param onBuilt       called from a background thread when a missing pyramid level is computed
+     */
+    public void paint(Graphics2D g, ImagePyramid pyramid, PictureWarp warp, AffineTransform pictureToView,
+                      Rectangle viewRect, int levelBias, boolean fast, Runnable onBuilt) {
+        // render in device pixels, so that the picture is not blurry on HiDPI screens
+        AffineTransform base = g.getTransform();
+        double dpiScaleX = base.getScaleX() > 0 ? base.getScaleX() : 1;
+        double dpiScaleY = base.getScaleY() > 0 ? base.getScaleY() : 1;
+        AffineTransform device = AffineTransform.getScaleInstance(dpiScaleX, dpiScaleY);
+        device.concatenate(pictureToView);
+        AffineTransform deviceInverse;
+        try {
+            deviceInverse = device.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            // degenerated picture, nothing to see
+            return;
+        }
+
+        int width = pyramid.getWidth();
+        int height = pyramid.getHeight();
+        Shape deviceOutline = device.createTransformedShape(getOutline(warp, width, height));
+        Rectangle2D outline = deviceOutline.getBounds2D();
+        Rectangle rect = new Rectangle(
+                (int) Math.floor(viewRect.x * dpiScaleX), (int) Math.floor(viewRect.y * dpiScaleY),
+                (int) Math.ceil(viewRect.width * dpiScaleX), (int) Math.ceil(viewRect.height * dpiScaleY))
+                .intersection(outline.getBounds());
+        rect = rect.intersection(new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        if (rect.isEmpty())
+            return;
+
+        // mean scale from the area of the outline
+        int level = pyramid.getLevelForScale(Math.sqrt(getArea(deviceOutline) / ((double) width * height)));
+        level = Math.max(pyramid.getBaseLevel(), Math.min(pyramid.getLevelCount() - 1, level + levelBias));
+        while (level < pyramid.getLevelCount() - 1
+                && (long) pyramid.getLevelWidth(level) * pyramid.getLevelHeight(level) > MAX_SOURCE_PIXELS) {
+            level++;
+        }
+        level = pyramid.getAvailableLevel(level, onBuilt);
+        // the available level may be too large to copy, then the picture is drawn once the coarser one is computed
+        if ((long) pyramid.getLevelWidth(level) * pyramid.getLevelHeight(level) > MAX_SOURCE_PIXELS)
+            return;
+        Image levelImage = pyramid.getLevel(level);
+        boolean sourceChanged = levelImage != sourceLevel;
+        if (sourceChanged) {
+            loadSource(levelImage);
+        }
+
+        ensureTarget(rect.x + rect.width, rect.y + rect.height);
+        boolean upToDate = !sourceChanged && warp == renderedWarp && fast == renderedFast
+                && device.equals(renderedTransform) && renderedRect != null && renderedRect.contains(rect);
+        if (!upToDate) {
+            render(rect, deviceInverse, warp, width, height, fast);
+            renderedTransform.setTransform(device);
+            renderedWarp = warp;
+            renderedRect = rect;
+            renderedFast = fast;
+        }
+
+        Graphics2D gd = (Graphics2D) g.create();
+        try {
+            gd.scale(1 / dpiScaleX, 1 / dpiScaleY);
+            gd.drawImage(target, rect.x, rect.y, rect.x + rect.width, rect.y + rect.height,
+                    rect.x, rect.y, rect.x + rect.width, rect.y + rect.height, null);
+        } finally {
+            gd.dispose();
+        }
+    }
+
+    private void loadSource(Image levelImage) {
+        int w = levelImage.getWidth(null);
+        int h = levelImage.getHeight(null);
+        BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D gc = copy.createGraphics();
+        try {
+            gc.drawImage(levelImage, 0, 0, null);
+        } finally {
+            gc.dispose();
+        }
+        source = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        sourceWidth = w;
+        sourceHeight = h;
+        sourceLevel = levelImage;
+        renderedRect = null;
+    }
+
+    private void ensureTarget(int minWidth, int minHeight) {
+        if (target == null || target.getWidth() < minWidth || target.getHeight() < minHeight) {
+            int w = Math.max(minWidth, target != null ? target.getWidth() : 0);
+            int h = Math.max(minHeight, target != null ? target.getHeight() : 0);
+            target = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            targetData = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            renderedRect = null;
+        }
+    }
+
+    private void render(Rectangle rect, AffineTransform deviceInverse, PictureWarp warp, int width, int height, boolean fast) {
+        List<Callable<Void>> tiles = new ArrayList<>();
+        for (int y = rect.y; y < rect.y + rect.height; y += TILE) {
+            for (int x = rect.x; x < rect.x + rect.width; x += TILE) {
+                Rectangle tile = new Rectangle(x, y, Math.min(TILE, rect.x + rect.width - x), Math.min(TILE, rect.y + rect.height - y));
+                tiles.add(() -> {
+                    renderTile(tile, deviceInverse, warp, width, height, fast);
+                    return null;
+                });
+            }
+        }
+        try {
+            for (Future<Void> f : getPool().invokeAll(tiles)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logging.error(e);
+        }
+    }
+
+    /**
+     * Resamples one tile of the view.
+     */
+    private void renderTile(Rectangle tile, AffineTransform deviceInverse, PictureWarp warp, int width, int height, boolean fast) {
+        // source pixel coordinates at the grid nodes, NaN where the warp cannot be inverted
+        int nx = (tile.width + GRID_STEP - 1) / GRID_STEP + 1;
+        int ny = (tile.height + GRID_STEP - 1) / GRID_STEP + 1;
+        double[] gridX = new double[nx * ny];
+        double[] gridY = new double[nx * ny];
+        double fx = (double) sourceWidth / width;
+        double fy = (double) sourceHeight / height;
+        double[] p = new double[2];
+        for (int j = 0; j < ny; j++) {
+            for (int i = 0; i < nx; i++) {
+                p[0] = tile.x + Math.min(i * GRID_STEP, tile.width);
+                p[1] = tile.y + Math.min(j * GRID_STEP, tile.height);
+                toSource(p, deviceInverse, warp, width, height, fx, fy);
+                gridX[j * nx + i] = p[0];
+                gridY[j * nx + i] = p[1];
+            }
+        }
+
+        int stride = target.getWidth();
+        for (int j = 0; j < ny - 1; j++) {
+            int cy0 = j * GRID_STEP;
+            int cy1 = Math.min(cy0 + GRID_STEP, tile.height);
+            for (int i = 0; i < nx - 1; i++) {
+                int cx0 = i * GRID_STEP;
+                int cx1 = Math.min(cx0 + GRID_STEP, tile.width);
+                int n00 = j * nx + i;
+                double x00 = gridX[n00], x10 = gridX[n00 + 1], x01 = gridX[n00 + nx], x11 = gridX[n00 + nx + 1];
+                double y00 = gridY[n00], y10 = gridY[n00 + 1], y01 = gridY[n00 + nx], y11 = gridY[n00 + nx + 1];
+                boolean exact = Double.isNaN(x00 + x10 + x01 + x11);
+                double cw = cx1 - cx0;
+                double ch = cy1 - cy0;
+                for (int y = cy0; y < cy1; y++) {
+                    double v = (y + 0.5 - cy0) / ch;
+                    int row = (tile.y + y) * stride + tile.x;
+                    for (int x = cx0; x < cx1; x++) {
+                        double sx;
+                        double sy;
+                        if (exact) {
+                            // near the border of the region where the warp can be inverted
+                            p[0] = tile.x + x + 0.5;
+                            p[1] = tile.y + y + 0.5;
+                            toSource(p, deviceInverse, warp, width, height, fx, fy);
+                            sx = p[0];
+                            sy = p[1];
+                        } else {
+                            double u = (x + 0.5 - cx0) / cw;
+                            sx = (1 - v) * ((1 - u) * x00 + u * x10) + v * ((1 - u) * x01 + u * x11);
+                            sy = (1 - v) * ((1 - u) * y00 + u * y10) + v * ((1 - u) * y01 + u * y11);
+                        }
+                        targetData[row + x] = fast ? sampleNearest(sx, sy) : sampleBilinear(sx, sy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a device point to source pixel coordinates, with pixel centers at integer positions.
+     */
+    private static void toSource(double[] p, AffineTransform deviceInverse, PictureWarp warp,
+                                 int width, int height, double fx, double fy) {
+        deviceInverse.transform(p, 0, p, 0, 1);
+        Point2D q = warp.inverseTransform(new Point2D.Double(p[0], p[1]));
+        if (q == null) {
+            p[0] = Double.NaN;
+            p[1] = Double.NaN;
+            return;
+        }
+        p[0] = (q.getX() + (width / 2)) * fx - 0.5;
+        p[1] = (q.getY() + (height / 2)) * fy - 0.5;
+    }
+
+    private int sampleNearest(double sx, double sy) {
+        long ix = Math.round(sx);
+        long iy = Math.round(sy);
+        if (ix < 0 || iy < 0 || ix >= sourceWidth || iy >= sourceHeight)
+            return 0;
+        return source[(int) iy * sourceWidth + (int) ix];
+    }
+
+    private int sampleBilinear(double sx, double sy) {
+        // NaN fails both comparisons
+        if (!(sx >= -0.5 && sy >= -0.5 && sx < sourceWidth - 0.5 && sy < sourceHeight - 0.5))
+            return 0;
+        int x0 = (int) Math.floor(sx);
+        int y0 = (int) Math.floor(sy);
+        double u = sx - x0;
+        double v = sy - y0;
+        int xa = Math.max(0, x0);
+        int xb = Math.min(sourceWidth - 1, x0 + 1);
+        int ya = Math.max(0, y0) * sourceWidth;
+        int yb = Math.min(sourceHeight - 1, y0 + 1) * sourceWidth;
+        int c00 = source[ya + xa];
+        int c10 = source[ya + xb];
+        int c01 = source[yb + xa];
+        int c11 = source[yb + xb];
+        double w00 = (1 - u) * (1 - v);
+        double w10 = u * (1 - v);
+        double w01 = (1 - u) * v;
+        double w11 = u * v;
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double c = ((c00 >>> shift) & 0xFF) * w00 + ((c10 >>> shift) & 0xFF) * w10
+                    + ((c01 >>> shift) & 0xFF) * w01 + ((c11 >>> shift) & 0xFF) * w11;
+            result |= ((int) (c + 0.5) & 0xFF) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the memory used by the source pixels and the rendering.
+     *
+     * @return the size in bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        int[] s = source;
+        if (s != null) {
+            bytes += 4L * s.length;
+        }
+        BufferedImage t = target;
+        if (t != null) {
+            bytes += TileCache.sizeOf(t);
+        }
+        return bytes;
+    }
+
+    /**
+     * Marks the rendering as outdated.
+     */
+    public void invalidate() {
+        renderedRect = null;
+    }
+
+    /**
+     * Drops the source pixels and the rendering.
+     */
+    public void clear() {
+        sourceLevel = null;
+        source = null;
+        target = null;
+        targetData = null;
+        renderedRect = null;
+    }
+}
@@ -0,0 +1,183 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.List;
+
+/**
+ * Least squares fit of an affine transform to any number of point pairs.
+ * <p>
+ * The points are centered on their centroids, the linear part is then solved by the Householder
+ * QR decomposition of {@link LeastSquares}, which stays accurate where the normal equations lose
+ * half of the digits.
+ * Configurations which do not determine an affine transform are fitted with fewer degrees of freedom:
+ * points on a line give a similarity transform (shift, rotation and uniform scale), a single
+ * point or identical points give a shift.
+ */
+public final class AffineFit {
+
+    /**
+     * The kind of transform which could be fitted.
+     */
+    public enum Model {
+        /** only a shift, from a single point or identical points */
+        TRANSLATION,
+        /** shift, rotation and uniform scale, from two points or points on a line */
+        SIMILARITY,
+        /** full affine transform, from three or more points not on a line */
+        AFFINE
+    }
+
+    // relative size of a diagonal element of R below which the points are taken to be on a line
+    private static final double COLLINEAR_TOLERANCE = 1e-9;
+
+    private final AffineTransform transform;
+    private final Model model;
+    private final double[] residuals;
+    private final double rms;
+
+    private AffineFit(AffineTransform transform, Model model, double[] src, double[] dst, int n) {
+        this.transform = transform;
+        this.model = model;
+        this.residuals = new double[n];
+        double sum = 0;
+        double[] p = new double[2];
+        for (int i = 0; i < n; i++) {
+            transform.transform(src, 2 * i, p, 0, 1);
+            double r = Math.hypot(p[0] - dst[2 * i], p[1] - dst[2 * i + 1]);
+            residuals[i] = r;
+            sum += r * r;
+        }
+        this.rms = Math.sqrt(sum / n);
+    }
+
+    /**
+     * Fits a transform to point pairs.
+     *
+     * @param src    source points x0, y0, x1, y1, ...
+     * @param dst    destination points, in the same order
+     * @param n      number of point pairs, at least 1
+     * @return the fit
+     * @throws IllegalArgumentException if there is no point pair
+     */
+    public static AffineFit fit(double[] src, double[] dst, int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("No control points");
+
+        double sx = 0, sy = 0, dx = 0, dy = 0;
+        for (int i = 0; i < n; i++) {
+            sx += src[2 * i];
+            sy += src[2 * i + 1];
+            dx += dst[2 * i];
+            dy += dst[2 * i + 1];
+        }
+        sx /= n;
+        sy /= n;
+        dx /= n;
+        dy /= n;
+
+        // centered design matrix (two columns, stored column by column) and right hand sides
+        double[] a = new double[2 * n];
+        double[] b0 = new double[n];
+        double[] b1 = new double[n];
+        double spread = 0;
+        for (int i = 0; i < n; i++) {
+            a[i] = src[2 * i] - sx;
+            a[n + i] = src[2 * i + 1] - sy;
+            b0[i] = dst[2 * i] - dx;
+            b1[i] = dst[2 * i + 1] - dy;
+            spread += a[i] * a[i] + a[n + i] * a[n + i];
+        }
+        if (spread == 0) {
+            return new AffineFit(AffineTransform.getTranslateInstance(dx - sx, dy - sy), Model.TRANSLATION, src, dst, n);
+        }
+
+        double[][] m = n < 3 ? null : LeastSquares.solve(a, n, 2, COLLINEAR_TOLERANCE, b0, b1);
+        if (m == null) {
+            return fitSimilarity(src, dst, n, sx, sy, dx, dy);
+        }
+        // the solution for the x coordinates is the first row of the linear part, for the y coordinates the second
+        AffineTransform t = new AffineTransform(m[0][0], m[1][0], m[0][1], m[1][1],
+                dx - m[0][0] * sx - m[0][1] * sy, dy - m[1][0] * sx - m[1][1] * sy);
+        return new AffineFit(t, Model.AFFINE, src, dst, n);
+    }
+
+    /**
+     * Fits a transform to point pairs.
+     *
+     * @param src source points
+     * @param dst destination points, in the same order
+     * @return the fit
+     * @throws IllegalArgumentException if the lists are empty or of different size
+     */
+    public static AffineFit fit(List<? extends Point2D> src, List<? extends Point2D> dst) {
+        if (src.size() != dst.size())
+            throw new IllegalArgumentException("Different number of source and destination points");
+        int n = src.size();
+        double[] s = new double[2 * n];
+        double[] d = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            s[2 * i] = src.get(i).getX();
+            s[2 * i + 1] = src.get(i).getY();
+            d[2 * i] = dst.get(i).getX();
+            d[2 * i + 1] = dst.get(i).getY();
+        }
+        return fit(s, d, n);
+    }
+
+    /**
+     * Least squares similarity transform (Helmert transform) of the centered points.
+     */
+    private static AffineFit fitSimilarity(double[] src, double[] dst, int n, double sx, double sy, double dx, double dy) {
+        double num1 = 0, num2 = 0, den = 0;
+        for (int i = 0; i < n; i++) {
+            double x = src[2 * i] - sx;
+            double y = src[2 * i + 1] - sy;
+            double u = dst[2 * i] - dx;
+            double v = dst[2 * i + 1] - dy;
+            num1 += x * u + y * v;
+            num2 += x * v - y * u;
+            den += x * x + y * y;
+        }
+        double a = num1 / den;
+        double b = num2 / den;
+        AffineTransform t = new AffineTransform(a, b, -b, a, dx - a * sx + b * sy, dy - b * sx - a * sy);
+        return new AffineFit(t, Model.SIMILARITY, src, dst, n);
+    }
+
+    /**
+     * @return the fitted transform, mapping source to destination points
+     */
+    public AffineTransform getTransform() {
+        return new AffineTransform(transform);
+    }
+
+    /**
+     * @return the kind of transform which was fitted
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @return the distance of each transformed source point to its destination point
+     */
+    public double[] getResiduals() {
+        return residuals.clone();
+    }
+
+    /**
+     * @return the root mean square of the residuals
+     */
+    public double getRms() {
+        return rms;
+    }
+
+    /**
+     * @return the number of point pairs
+     */
+    public int getPointCount() {
+        return residuals.length;
+    }
+}
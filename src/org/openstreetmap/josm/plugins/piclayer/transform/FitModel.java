@@ -0,0 +1,99 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.util.Locale;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * The kinds of transforms a calibration can be fitted with.
+ */
+public enum FitModel {
+    /** affine transform, the default */
+    AFFINE(3),
+    /** projective transform (homography), for photos of flat maps taken at an angle */
+    PROJECTIVE(4),
+    /** polynomial of 2nd order, for slightly bent or unevenly shrunk paper */
+    POLYNOMIAL2(6),
+    /** polynomial of 3rd order */
+    POLYNOMIAL3(10),
+    /** thin plate spline, matching every control point exactly, for old maps with many known points */
+    THIN_PLATE_SPLINE(4);
+
+    // Preference for the model used when fitting more than three control points
+    private static final String FIT_MODEL_PREF = "piclayer.fit-model";
+
+    private final int minPoints;
+
+    FitModel(int minPoints) {
+        this.minPoints = minPoints;
+    }
+
+    /**
+     * @return the number of control points needed to fit the model
+     */
+    public int getMinPoints() {
+        return minPoints;
+    }
+
+    /**
+     * Returns the model selected in the preferences, or the affine one if there are not enough points for it.
+     *
+     * @param points number of control points
+     * @return the model to fit
+     */
+    public static FitModel forPoints(int points) {
+        FitModel model = AFFINE;
+        try {
+            model = valueOf(Config.getPref().get(FIT_MODEL_PREF, "affine").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            model = AFFINE;
+        }
+        return points >= model.minPoints ? model : AFFINE;
+    }
+
+    /**
+     * Fits a warp of this model to point pairs.
+     *
+     * @param src source points x0, y0, x1, y1, ...
+     * @param dst destination points, in the same order
+     * @param n   number of point pairs
+     * @return the warp, {@code null} for the affine model, if there are too few points or if they do not determine the warp
+     */
+    public PictureWarp fit(double[] src, double[] dst, int n) {
+        if (n < minPoints)
+            return null;
+        switch (this) {
+            case PROJECTIVE:
+                return ProjectiveWarp.fit(src, dst, n);
+            case POLYNOMIAL2:
+                return PolynomialWarp.fit(2, src, dst, n);
+            case POLYNOMIAL3:
+                return PolynomialWarp.fit(3, src, dst, n);
+            case THIN_PLATE_SPLINE:
+                return ThinPlateSplineWarp.fit(src, dst, n);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Restores a warp of this model.
+     *
+     * @param parameters the parameters returned by {@link PictureWarp#getParameters()}
+     * @return the warp, {@code null} for the affine model or invalid parameters
+     */
+    public PictureWarp createWarp(double[] parameters) {
+        switch (this) {
+            case PROJECTIVE:
+                return ProjectiveWarp.create(parameters);
+            case POLYNOMIAL2:
+            case POLYNOMIAL3:
+                return PolynomialWarp.create(parameters);
+            case THIN_PLATE_SPLINE:
+                return ThinPlateSplineWarp.create(parameters);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+/**
+ * Linear least squares by Householder QR decomposition, on primitive arrays.
+ */
+final class LeastSquares {
+
+    // relative size of a diagonal element of R below which the columns are taken to be dependent
+    private static final double RANK_TOLERANCE = 1e-12;
+
+    private LeastSquares() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Solves {@code a * x = b} in the least squares sense, for several right hand sides.
+     *
+     * @param a   matrix of {@code m} rows and {@code k} columns, stored column by column, overwritten
+     * @param m   number of rows, at least {@code k}
+     * @param k   number of columns
+     * @param rhs right hand sides of length {@code m}, overwritten
+     * @return the solutions of length {@code k}, one for each right hand side,
+     * {@code null} if the columns of {@code a} are linearly dependent
+     */
+    static double[][] solve(double[] a, int m, int k, double[]... rhs) {
+        return solve(a, m, k, RANK_TOLERANCE, rhs);
+    }
+
+    /**
+     * Solves {@code a * x = b} in the least squares sense, for several right hand sides.
+     *
+     * @param a         matrix of {@code m} rows and {@code k} columns, stored column by column, overwritten
+     * @param m         number of rows, at least {@code k}
+     * @param k         number of columns
+     * @param tolerance relative size of a diagonal element of R, compared to the largest one,
+     *                  below which the columns are taken to be dependent
+     * @param rhs       right hand sides of length {@code m}, overwritten
+     * @return the solutions of length {@code k}, one for each right hand side,
+     * {@code null} if the columns of {@code a} are linearly dependent
+     */
+    static double[][] solve(double[] a, int m, int k, double tolerance, double[]... rhs) {
+        if (m < k)
+            return null;
+        double[] diagonal = new double[k];
+        double maxDiagonal = 0;
+        for (int j = 0; j < k; j++) {
+            int col = j * m;
+            double norm = 0;
+            for (int i = j; i < m; i++) {
+                norm += a[col + i] * a[col + i];
+            }
+            norm = Math.sqrt(norm);
+            double alpha = a[col + j] > 0 ? -norm : norm;
+            diagonal[j] = alpha;
+            maxDiagonal = Math.max(maxDiagonal, norm);
+            if (norm == 0)
+                continue;
+            // reflection vector v = column - alpha * e_j, stored in the column
+            a[col + j] -= alpha;
+            double vv = 0;
+            for (int i = j; i < m; i++) {
+                vv += a[col + i] * a[col + i];
+            }
+            for (int jj = j + 1; jj < k; jj++) {
+                reflect(a, col, a, jj * m, j, m, vv);
+            }
+            for (double[] b : rhs) {
+                reflect(a, col, b, 0, j, m, vv);
+            }
+        }
+        for (int j = 0; j < k; j++) {
+            if (Math.abs(diagonal[j]) <= tolerance * maxDiagonal)
+                return null;
+        }
+
+        double[][] solutions = new double[rhs.length][];
+        for (int r = 0; r < rhs.length; r++) {
+            double[] b = rhs[r];
+            double[] x = new double[k];
+            for (int j = k - 1; j >= 0; j--) {
+                double sum = b[j];
+                for (int jj = j + 1; jj < k; jj++) {
+                    sum -= a[jj * m + j] * x[jj];
+                }
+                x[j] = sum / diagonal[j];
+            }
+            solutions[r] = x;
+        }
+        return solutions;
+    }
+
+    private static void reflect(double[] v, int vOffset, double[] c, int cOffset, int from, int m, double vv) {
+        double dot = 0;
+        for (int i = from; i < m; i++) {
+            dot += v[vOffset + i] * c[cOffset + i];
+        }
+        double f = 2 * dot / vv;
+        for (int i = from; i < m; i++) {
+            c[cOffset + i] -= f * v[vOffset + i];
+        }
+    }
+}
@@ -2,87 +2,96 @@
 package org.openstreetmap.josm.plugins.piclayer.transform;
 
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Point2D;
-import java.util.List;
 
+/**
+ * 3x3 matrix stored row by row in a flat array. All operations write into an existing matrix,
+ * so that the same instances can be reused as scratch buffers.
+ */
 class Matrix3D {
-    double[][] a;
+    final double[] a = new double[9];
 
     Matrix3D() {
-        a = new double[3][];
-        a[0] = new double[3];
-        a[1] = new double[3];
-        a[2] = new double[3];
     }
 
-    Matrix3D(PictureTransform pictureTransform, double b11, double b12, double b13, double b21, double b22, double b23, double b31, double b32, double b33) {
-        this();
-
-        a[0][0] = b11;
-        a[0][1] = b12;
-        a[0][2] = b13;
-        a[1][0] = b21;
-        a[1][1] = b22;
-        a[1][2] = b23;
-        a[2][0] = b31;
-        a[2][1] = b32;
-        a[2][2] = b33;
+    Matrix3D(double b11, double b12, double b13, double b21, double b22, double b23, double b31, double b32, double b33) {
+        set(b11, b12, b13, b21, b22, b23, b31, b32, b33);
     }
 
-    Matrix3D(List<? extends Point2D> list) {
-        this();
-
-        for (int i = 0; i < 3; i++) {
-            Point2D p = list.get(i);
-            a[0][i] = p.getX();
-            a[1][i] = p.getY();
-            a[2][i] = 1;
-        }
+    void set(double b11, double b12, double b13, double b21, double b22, double b23, double b31, double b32, double b33) {
+        a[0] = b11;
+        a[1] = b12;
+        a[2] = b13;
+        a[3] = b21;
+        a[4] = b22;
+        a[5] = b23;
+        a[6] = b31;
+        a[7] = b32;
+        a[8] = b33;
     }
 
-    public Matrix3D multiply(Matrix3D m) {
-        Matrix3D result = new Matrix3D();
-        for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                double sum = 0;
-                for (int k = 0; k < 3; k++) {
-                    sum += a[i][k] * m.a[k][j];
-                }
-                result.a[i][j] = sum;
-            }
-        }
+    /**
+     * Computes {@code this * m} into {@code result}, which may be {@code this} or {@code m}.
+     */
+    Matrix3D multiply(Matrix3D m, Matrix3D result) {
+        double[] b = m.a;
+        result.set(
+                a[0] * b[0] + a[1] * b[3] + a[2] * b[6], a[0] * b[1] + a[1] * b[4] + a[2] * b[7], a[0] * b[2] + a[1] * b[5] + a[2] * b[8],
+                a[3] * b[0] + a[4] * b[3] + a[5] * b[6], a[3] * b[1] + a[4] * b[4] + a[5] * b[7], a[3] * b[2] + a[4] * b[5] + a[5] * b[8],
+                a[6] * b[0] + a[7] * b[3] + a[8] * b[6], a[6] * b[1] + a[7] * b[4] + a[8] * b[7], a[6] * b[2] + a[7] * b[5] + a[8] * b[8]);
         return result;
     }
 
-    private double determinant() {
-        return a[0][0] * (a[1][1] * a[2][2] - a[1][2] * a[2][1]) - a[0][1] * (a[1][0] * a[2][2] - a[1][2] * a[2][0])
-                + a[0][2] * (a[1][0] * a[2][1] - a[1][1] * a[2][0]);
+    double determinant() {
+        return a[0] * (a[4] * a[8] - a[5] * a[7]) - a[1] * (a[3] * a[8] - a[5] * a[6])
+                + a[2] * (a[3] * a[7] - a[4] * a[6]);
     }
 
-    public Matrix3D inverse() throws NoSolutionException {
-        Matrix3D invert = new Matrix3D();
+    /**
+     * Computes the inverse into {@code result}, which may be {@code this}.
+     */
+    Matrix3D inverse(Matrix3D result) throws NoSolutionException {
         double det = determinant();
         if (Math.abs(det) <= Double.MIN_VALUE)
             throw new NoSolutionException("Determinant = 0");
 
         double s = 1 / det;
-
-        invert.a[0][0] = s * (a[1][1] * a[2][2] - a[1][2] * a[2][1]);
-        invert.a[1][0] = s * (a[1][2] * a[2][0] - a[1][0] * a[2][2]);
-        invert.a[2][0] = s * (a[1][0] * a[2][1] - a[1][1] * a[2][0]);
-        invert.a[0][1] = s * (a[0][2] * a[2][1] - a[0][1] * a[2][2]);
-        invert.a[1][1] = s * (a[0][0] * a[2][2] - a[0][2] * a[2][0]);
-        invert.a[2][1] = s * (a[0][1] * a[2][0] - a[0][0] * a[2][1]);
-        invert.a[0][2] = s * (a[0][1] * a[1][2] - a[0][2] * a[1][1]);
-        invert.a[1][2] = s * (a[0][2] * a[1][0] - a[0][0] * a[1][2]);
-        invert.a[2][2] = s * (a[0][0] * a[1][1] - a[0][1] * a[1][0]);
-
-        return invert;
+        result.set(
+                s * (a[4] * a[8] - a[5] * a[7]), s * (a[2] * a[7] - a[1] * a[8]), s * (a[1] * a[5] - a[2] * a[4]),
+                s * (a[5] * a[6] - a[3] * a[8]), s * (a[0] * a[8] - a[2] * a[6]), s * (a[2] * a[3] - a[0] * a[5]),
+                s * (a[3] * a[7] - a[4] * a[6]), s * (a[1] * a[6] - a[0] * a[7]), s * (a[0] * a[4] - a[1] * a[3]));
+        return result;
     }
 
-    public AffineTransform toAffineTransform() throws NoSolutionException {
-        if (!(Math.abs(a[2][0]) <= 1e-2 && Math.abs(a[2][1]) <= 1e-2 && Math.abs(a[2][2] - 1) <= 1e-2))
-            throw new NoSolutionException("Resulted matrix is not AF");
-        return new AffineTransform(a[0][0], a[1][0], a[0][1], a[1][1], a[0][2], a[1][2]);
+    /**
+     * Solves the affine transform mapping three points to three other points, in closed form.
+     *
+     * @param src    x0, y0, x1, y1, x2, y2 of the source points
+     * @param dst    the same for the destination points
+     * @param result receives the transform
+     * @return {@code result}
+     * @throws NoSolutionException if the source points are on a line
+     */
+    static AffineTransform solveAffine(double[] src, double[] dst, AffineTransform result) throws NoSolutionException {
+        // edges of the source triangle, relative to the first point
+        double ux = src[2] - src[0];
+        double uy = src[3] - src[1];
+        double vx = src[4] - src[0];
+        double vy = src[5] - src[1];
+        double det = ux * vy - uy * vx;
+        if (Math.abs(det) <= Double.MIN_VALUE)
+            throw new NoSolutionException("Determinant = 0");
+        double du0 = dst[2] - dst[0];
+        double du1 = dst[3] - dst[1];
+        double dv0 = dst[4] - dst[0];
+        double dv1 = dst[5] - dst[1];
+        // linear part L with L * (u v) = (du dv), i.e. L = (du dv) * (u v)^-1
+        double m00 = (du0 * vy - dv0 * uy) / det;
+        double m01 = (dv0 * ux - du0 * vx) / det;
+        double m10 = (du1 * vy - dv1 * uy) / det;
+        double m11 = (dv1 * ux - du1 * vx) / det;
+        result.setTransform(m00, m10, m01, m11,
+                dst[0] - m00 * src[0] - m01 * src[1],
+                dst[1] - m10 * src[0] - m11 * src[1]);
+        return result;
     }
 }
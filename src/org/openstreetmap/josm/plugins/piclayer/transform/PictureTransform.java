@@ -2,20 +2,40 @@
 package org.openstreetmap.josm.plugins.piclayer.transform;
 
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.ObservableArrayList;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
 public class PictureTransform {
 
+    // Preference for the number of origin points, more than 3 are fitted by least squares
+    private static final String MAX_POINTS_PREF = "piclayer.max-control-points";
+
     private AffineTransform cachedTransform;
     private EastNorth imagePosition;
 
     private boolean modified = false;
+    // incremented on every change of the transform or the image position
+    private long version = 0;
+
+    // scratch buffers of updatePair: x0, y0, x1, y1, x2, y2 and the solved transform
+    private final double[] solveSource = new double[6];
+    private final double[] solveDestination = new double[6];
+    private final AffineTransform solved = new AffineTransform();
+    // result of the last least squares fit, null if the transform was solved exactly
+    private AffineFit lastFit;
+    private double[] residuals;
+    // calibration at the start of dragging an origin point, for fitting more than three points
+    private AffineTransform dragBase;
+    private PictureWarp dragBaseWarp;
+    // non-affine correction applied before cachedTransform, null for an affine calibration
+    private PictureWarp warp;
 
     private List<Point2D> originPoints;
     private ObservableArrayList<Point2D> latLonOriginPoints;    // data for AutoCalibration action
@@ -28,18 +48,13 @@ public class PictureTransform {
         latLonRefPoints = new ObservableArrayList<>(3);
     }
 
-    private AffineTransform solveEquation(List<Point2D> desiredPoints) throws NoSolutionException {
-        Matrix3D X = new Matrix3D(originPoints);
-        Matrix3D Y = new Matrix3D(desiredPoints);
-        Matrix3D result = Y.multiply(X.inverse());
-
-        return result.toAffineTransform();
-    }
-
     /**
      * updates pair of points (suppose that other pairs are (origin=&gt;origin) points are the same),
      * solves equation,
      * applies transform matrix to the existing cachedTransform
+     * <p>
+     * Called for every mouse event while a point is dragged, so it works on primitive scratch buffers
+     * and does not allocate for up to three points of an affine calibration.
      *
      * @param originPoint  - should be one of origin points, otherwise - no transform applied
      * @param desiredPoint - new place for the point
@@ -50,81 +65,256 @@ public class PictureTransform {
 
         switch (originPoints.size()) {
             case 1: {
-                cachedTransform.concatenate(AffineTransform.getTranslateInstance(desiredPoint.getX() - originPoint.getX(),
-                        desiredPoint.getY() - originPoint.getY()));
+                toWarped(originPoint, solveSource, 0);
+                toWarped(desiredPoint, solveDestination, 0);
+                cachedTransform.translate(solveDestination[0] - solveSource[0], solveDestination[1] - solveSource[1]);
+                version++;
                 break;
             }
             case 2: {
                 // find triangle and move it
-                List<Point2D> desiredPoints = new ArrayList<>(3);
                 Point2D o1 = originPoints.get(0);
                 Point2D o2 = originPoints.get(1);
-                Point2D d1, d2;
+                Point2D d1 = o1;
+                Point2D d2 = o2;
                 if (o2 == originPoint) {
                     d2 = desiredPoint;
-                    d1 = (Point2D) o1.clone();
                 } else {
                     d1 = desiredPoint;
-                    d2 = (Point2D) o2.clone();
                 }
-                Point2D o3 = calculateTrianglePoint(o1, o2);
-                Point2D d3 = calculateTrianglePoint(d1, d2);
-                originPoints.add(o3);
-                desiredPoints.add(d1);
-                desiredPoints.add(d2);
-                desiredPoints.add(d3);
-                trySolve(desiredPoints);
-                originPoints.remove(2);
+                toWarped(o1, solveSource, 0);
+                toWarped(o2, solveSource, 2);
+                toWarped(d1, solveDestination, 0);
+                toWarped(d2, solveDestination, 2);
+                completeTriangle(solveSource);
+                completeTriangle(solveDestination);
+                trySolve();
                 break;
             }
             case 3: {
-                List<Point2D> desiredPoints = new ArrayList<>(3);
-
-                for (Point2D origin : originPoints) {
-                    if (origin.equals(originPoint))
-                        desiredPoints.add(desiredPoint);
-                    else
-                        desiredPoints.add(origin);
+                for (int i = 0; i < 3; i++) {
+                    Point2D origin = originPoints.get(i);
+                    Point2D desired = origin.equals(originPoint) ? desiredPoint : origin;
+                    toWarped(origin, solveSource, 2 * i);
+                    toWarped(desired, solveDestination, 2 * i);
                 }
-                trySolve(desiredPoints);
+                trySolve();
                 break;
             }
-            default:
+            default: {
+                // fit relative to the calibration at the start of the drag, otherwise the
+                // residuals of the other points would add up with every mouse event
+                if (dragBase == null) {
+                    dragBase = new AffineTransform(cachedTransform);
+                    dragBaseWarp = warp;
+                }
+                double[] desired = new double[2];
+                toWarped(desiredPoint, desired, 0);
+                cachedTransform.transform(desired, 0, desired, 0, 1);
+                try {
+                    dragBase.inverseTransform(desired, 0, desired, 0, 1);
+                } catch (NoninvertibleTransformException e) {
+                    Logging.error(e);
+                    return;
+                }
+                int n = originPoints.size();
+                double[] src = new double[2 * n];
+                for (int i = 0; i < n; i++) {
+                    src[2 * i] = originPoints.get(i).getX();
+                    src[2 * i + 1] = originPoints.get(i).getY();
+                }
+                double[] dst = src.clone();
+                if (dragBaseWarp != null) {
+                    dragBaseWarp.transform(dst, 0, dst, 0, n);
+                }
+                int index = originPoints.indexOf(originPoint);
+                if (index >= 0) {
+                    dst[2 * index] = desired[0];
+                    dst[2 * index + 1] = desired[1];
+                }
+                cachedTransform.setTransform(dragBase);
+                warp = dragBaseWarp;
+                fit(src, dst, n);
+            }
 
         }
 
     }
 
-    private Point2D calculateTrianglePoint(Point2D d1, Point2D d2) {
-        Point2D result;
-        if (d1 instanceof Point2D.Double) {
-            result = new Point2D.Double();
-        } else {
-            result = new Point2D.Float();
+    /**
+     * Stores the coordinates of a picture point after the warp, the space the affine transform applies to.
+     */
+    private void toWarped(Point2D p, double[] out, int offset) {
+        out[offset] = p.getX();
+        out[offset + 1] = p.getY();
+        if (warp != null) {
+            warp.transform(out, offset, out, offset, 1);
         }
-        result.setLocation((d1.getX() + d2.getX() - d2.getY() + d1.getY()) / 2, (d1.getY() + d2.getY() + d2.getX() - d1.getX()) / 2);
-        return result;
-    }
-
-    private void trySolve(List<Point2D> desiredPoints) {
-        if (desiredPoints.size() == 3 && originPoints.size() == 3) {
-            try {
-                cachedTransform.concatenate(solveEquation(desiredPoints));
-                modified = true;
-                desiredPoints.clear();
-            } catch (NoSolutionException e) {
-                Logging.error(e.getMessage());
+    }
+
+    /**
+     * Completes two points by a third one forming an isosceles right triangle.
+     */
+    private static void completeTriangle(double[] points) {
+        double x1 = points[0];
+        double y1 = points[1];
+        double x2 = points[2];
+        double y2 = points[3];
+        points[4] = (x1 + x2 - y2 + y1) / 2;
+        points[5] = (y1 + y2 + x2 - x1) / 2;
+    }
+
+    private void trySolve() {
+        try {
+            cachedTransform.concatenate(Matrix3D.solveAffine(solveSource, solveDestination, solved));
+            lastFit = null;
+            residuals = null;
+            modified = true;
+            version++;
+        } catch (NoSolutionException e) {
+            Logging.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the start of dragging an origin point by {@link #updatePair(Point2D, Point2D)}.
+     */
+    public void startUpdatePairs() {
+        dragBase = null;
+        dragBaseWarp = null;
+    }
+
+    /**
+     * Moves all origin points to the given places at once, by a least squares fit.
+     * Three points not on a line are matched exactly by an affine transform, more points as well as possible
+     * by the {@link FitModel} selected in the preferences.
+     *
+     * @param desiredPoints new places of the origin points, in the same order
+     * @return the affine fit with the residuals in picture pixels, {@code null} if there are no origin points
+     * or if a warp was fitted, see {@link #getResiduals()}
+     */
+    public AffineFit fitOriginPoints(List<? extends Point2D> desiredPoints) {
+        if (originPoints.isEmpty() || desiredPoints.size() != originPoints.size())
+            return null;
+        int n = originPoints.size();
+        double[] src = new double[2 * n];
+        double[] dst = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            src[2 * i] = originPoints.get(i).getX();
+            src[2 * i + 1] = originPoints.get(i).getY();
+            toWarped(desiredPoints.get(i), dst, 2 * i);
+        }
+        return fit(src, dst, n);
+    }
+
+    /**
+     * Fits the calibration to control points.
+     *
+     * @param src origin points in picture coordinates
+     * @param dst their new places, in the space the affine transform applies to
+     * @param n   number of points
+     */
+    private AffineFit fit(double[] src, double[] dst, int n) {
+        FitModel model = FitModel.forPoints(n);
+        PictureWarp newWarp = model.fit(src, dst, n);
+        if (newWarp != null) {
+            // the warp replaces the previous one, the affine transform stays
+            double[] mapped = new double[2 * n];
+            newWarp.transform(src, 0, mapped, 0, n);
+            residuals = new double[n];
+            for (int i = 0; i < n; i++) {
+                residuals[i] = Math.hypot(mapped[2 * i] - dst[2 * i], mapped[2 * i + 1] - dst[2 * i + 1]);
             }
+            warp = newWarp;
+            lastFit = null;
+            modified = true;
+            version++;
+            return null;
+        }
+        if (model != FitModel.AFFINE) {
+            Logging.warn("PicLayer: cannot fit a {0} transform to the control points, fitting an affine one", model);
+        }
+        double[] warpedSrc = src;
+        if (warp != null) {
+            warpedSrc = new double[2 * n];
+            warp.transform(src, 0, warpedSrc, 0, n);
+        }
+        AffineFit fit = AffineFit.fit(warpedSrc, dst, n);
+        if (fit.getModel() != AffineFit.Model.AFFINE && n >= 3) {
+            Logging.warn("PicLayer: control points are on a line, fitted " + fit.getModel());
         }
+        cachedTransform.concatenate(fit.getTransform());
+        lastFit = fit;
+        residuals = fit.getResiduals();
+        modified = true;
+        version++;
+        return fit;
+    }
+
+    /**
+     * Returns the affine least squares fit done by the last change of the origin points.
+     *
+     * @return the fit, {@code null} if the calibration was not fitted to control points since or a warp was fitted
+     */
+    public AffineFit getLastFit() {
+        return lastFit;
+    }
+
+    /**
+     * Returns the residuals of the last least squares fit of the control points, to judge the quality of the calibration.
+     *
+     * @return the distance of each origin point to its desired place in picture pixels,
+     * {@code null} if the calibration was not fitted to control points since
+     */
+    public double[] getResiduals() {
+        return residuals != null ? residuals.clone() : null;
+    }
+
+    /**
+     * Returns the non-affine correction applied to the picture before the affine transform.
+     *
+     * @return the warp, {@code null} if the calibration is affine
+     */
+    public PictureWarp getWarp() {
+        return warp;
+    }
+
+    public void setWarp(PictureWarp warp) {
+        this.warp = warp;
+        version++;
+    }
+
+    /**
+     * Maps a point from picture coordinates to the space the affine transform applies to.
+     *
+     * @param p picture point
+     * @return the warped point, {@code p} itself for an affine calibration
+     */
+    public Point2D warpPoint(Point2D p) {
+        return warp != null ? warp.transform(p) : p;
+    }
+
+    /**
+     * Inverse of {@link #warpPoint(Point2D)}.
+     *
+     * @param p point in the space the affine transform applies to
+     * @return the picture point, {@code p} itself for an affine calibration or if the warp cannot be inverted there
+     */
+    public Point2D unwarpPoint(Point2D p) {
+        if (warp == null)
+            return p;
+        Point2D q = warp.inverseTransformExact(p);
+        return q != null ? q : p;
     }
 
     public void concatenateTransformPoint(AffineTransform transform, Point2D trans) {
 
         if (trans != null) {
-            AffineTransform centered = AffineTransform.getTranslateInstance(trans.getX(), trans.getY());
-            centered.concatenate(transform);
-            centered.translate(-trans.getX(), -trans.getY());
-            cachedTransform.concatenate(centered);
+            // the affine transform applies to the warped picture
+            Point2D anchor = warpPoint(trans);
+            cachedTransform.translate(anchor.getX(), anchor.getY());
+            cachedTransform.concatenate(transform);
+            cachedTransform.translate(-anchor.getX(), -anchor.getY());
         } else {
             cachedTransform.concatenate(transform);
         }
@@ -133,6 +323,7 @@ public class PictureTransform {
             transform.transform(point, point);
         }
         modified = true;
+        version++;
     }
 
     public AffineTransform getTransform() {
@@ -141,6 +332,7 @@ public class PictureTransform {
 
     public void setTransform(AffineTransform newTransform) {
         cachedTransform = new AffineTransform(newTransform);
+        version++;
     }
 
     public EastNorth getImagePosition() {
@@ -149,6 +341,17 @@ public class PictureTransform {
 
     public void setImagePosition(EastNorth imagePosition) {
         this.imagePosition = imagePosition;
+        version++;
+    }
+
+    /**
+     * Returns a counter which changes whenever the transform or the image position is changed
+     * through this class, so that derived data like render caches can tell whether they are outdated.
+     *
+     * @return the current version
+     */
+    public long getVersion() {
+        return version;
     }
 
 
@@ -181,10 +384,20 @@ public class PictureTransform {
     }
 
     public void addOriginPoint(Point2D originPoint) {
-        if (originPoints.size() < 3)
+        if (originPoints.size() < getMaxOriginPoints())
             originPoints.add(originPoint);
     }
 
+    /**
+     * Returns how many origin points can be set. Three give an exact solution,
+     * with more points the transform is the least squares fit.
+     *
+     * @return the maximum number of origin points, at least 3
+     */
+    public static int getMaxOriginPoints() {
+        return Math.max(3, Config.getPref().getInt(MAX_POINTS_PREF, 3));
+    }
+
     public void setOriginPoints(List<Point2D> list) {
         if (originPoints == null) originPoints = new ArrayList<>(list);
         else {
@@ -240,5 +453,9 @@ public class PictureTransform {
         latLonRefPoints.clear();
         modified = false;
         cachedTransform = new AffineTransform();
+        warp = null;
+        lastFit = null;
+        residuals = null;
+        version++;
     }
 }
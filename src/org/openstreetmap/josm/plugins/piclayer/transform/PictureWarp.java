@@ -0,0 +1,70 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.awt.geom.Point2D;
+
+/**
+ * Non-affine correction of a picture, e.g. for scanned maps or photos of paper.
+ * <p>
+ * A warp maps picture pixel coordinates, centered at the middle of the picture, to the coordinates
+ * the affine calibration of {@link PictureTransform} is applied to. Implementations are immutable.
+ */
+public interface PictureWarp {
+
+    /**
+     * Maps points from picture pixel coordinates.
+     *
+     * @param src       x0, y0, x1, y1, ... of the points
+     * @param srcOffset index of the first coordinate in {@code src}
+     * @param dst       receives the mapped points, may be {@code src}
+     * @param dstOffset index of the first coordinate in {@code dst}
+     * @param n         number of points
+     */
+    void transform(double[] src, int srcOffset, double[] dst, int dstOffset, int n);
+
+    /**
+     * Maps a point back to picture pixel coordinates.
+     *
+     * @param p the mapped point
+     * @return the picture point, {@code null} if there is none
+     */
+    Point2D inverseTransform(Point2D p);
+
+    /**
+     * Maps a single point back to picture pixel coordinates as exactly as possible, e.g. a point picked
+     * by the user. {@link #inverseTransform(Point2D)} may approximate the inverse to resample the picture
+     * quickly, the default returns its result.
+     *
+     * @param p the mapped point
+     * @return the picture point, {@code null} if there is none
+     */
+    default Point2D inverseTransformExact(Point2D p) {
+        return inverseTransform(p);
+    }
+
+    /**
+     * Returns the model of the warp, to store and restore it with {@link #getParameters()}.
+     *
+     * @return the model
+     */
+    FitModel getModel();
+
+    /**
+     * Returns the parameters defining the warp, see {@link FitModel#createWarp(double[])}.
+     *
+     * @return the parameters
+     */
+    double[] getParameters();
+
+    /**
+     * Maps a single point from picture pixel coordinates.
+     *
+     * @param p the picture point
+     * @return the mapped point
+     */
+    default Point2D transform(Point2D p) {
+        double[] c = {p.getX(), p.getY()};
+        transform(c, 0, c, 0, 1);
+        return new Point2D.Double(c[0], c[1]);
+    }
+}
@@ -0,0 +1,237 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.awt.geom.Point2D;
+
+/**
+ * Polynomial transform of 2nd or 3rd order, for pictures which are bent or unevenly shrunk.
+ * <p>
+ * The picture coordinates are normalized before the polynomials are evaluated, which keeps the
+ * fit well conditioned. The inverse has no closed form, it is found by Newton's method.
+ */
+public final class PolynomialWarp implements PictureWarp {
+
+    private static final int MAX_ITERATIONS = 20;
+    private static final double TOLERANCE = 1e-6;
+
+    private final int order;
+    private final int terms;
+    // normalization of the picture coordinates: (x - cx) * scale
+    private final double cx;
+    private final double cy;
+    private final double scale;
+    private final double[] cu;
+    private final double[] cv;
+    // inverse of the linear part at the center, for the first guess of the inverse
+    private final double[] linearInverse;
+
+    private PolynomialWarp(int order, double cx, double cy, double scale, double[] cu, double[] cv) {
+        this.order = order;
+        this.terms = termCount(order);
+        this.cx = cx;
+        this.cy = cy;
+        this.scale = scale;
+        this.cu = cu;
+        this.cv = cv;
+        // terms 1 and 2 are x and y
+        double a = cu[1] * scale;
+        double b = cu[2] * scale;
+        double c = cv[1] * scale;
+        double d = cv[2] * scale;
+        double det = a * d - b * c;
+        linearInverse = det != 0 ? new double[]{d / det, -b / det, -c / det, a / det} : null;
+    }
+
+    private static int termCount(int order) {
+        return (order + 1) * (order + 2) / 2;
+    }
+
+    /**
+     * Fits polynomials to point pairs by least squares.
+     *
+     * @param order order of the polynomials, 2 or 3
+     * @param src   source points x0, y0, x1, y1, ...
+     * @param dst   destination points, in the same order
+     * @param n     number of point pairs, at least as many as the polynomials have terms
+     * @return the warp, {@code null} if the points do not determine the polynomials
+     */
+    static PolynomialWarp fit(int order, double[] src, double[] dst, int n) {
+        int k = termCount(order);
+        if (n < k)
+            return null;
+        double cx = 0, cy = 0;
+        for (int i = 0; i < n; i++) {
+            cx += src[2 * i];
+            cy += src[2 * i + 1];
+        }
+        cx /= n;
+        cy /= n;
+        double spread = 0;
+        for (int i = 0; i < n; i++) {
+            double dx = src[2 * i] - cx;
+            double dy = src[2 * i + 1] - cy;
+            spread += dx * dx + dy * dy;
+        }
+        if (spread == 0)
+            return null;
+        double scale = 1 / Math.sqrt(spread / n);
+
+        double[] a = new double[n * k];
+        double[] u = new double[n];
+        double[] v = new double[n];
+        double[] row = new double[k];
+        for (int i = 0; i < n; i++) {
+            monomials(order, (src[2 * i] - cx) * scale, (src[2 * i + 1] - cy) * scale, row);
+            for (int j = 0; j < k; j++) {
+                a[j * n + i] = row[j];
+            }
+            u[i] = dst[2 * i];
+            v[i] = dst[2 * i + 1];
+        }
+        double[][] solution = LeastSquares.solve(a, n, k, u, v);
+        if (solution == null)
+            return null;
+        PolynomialWarp warp = new PolynomialWarp(order, cx, cy, scale, solution[0], solution[1]);
+        return warp.linearInverse != null ? warp : null;
+    }
+
+    /**
+     * Restores a warp from the values of {@link #getParameters()}.
+     *
+     * @param p the parameters
+     * @return the warp, {@code null} if the parameters are invalid
+     */
+    static PolynomialWarp create(double[] p) {
+        if (p.length < 4)
+            return null;
+        int order = (int) p[0];
+        if (order < 2 || order > 3)
+            return null;
+        int k = termCount(order);
+        if (p.length != 4 + 2 * k || p[3] == 0)
+            return null;
+        double[] cu = new double[k];
+        double[] cv = new double[k];
+        System.arraycopy(p, 4, cu, 0, k);
+        System.arraycopy(p, 4 + k, cv, 0, k);
+        PolynomialWarp warp = new PolynomialWarp(order, p[1], p[2], p[3], cu, cv);
+        return warp.linearInverse != null ? warp : null;
+    }
+
+    /**
+     * Computes x^i y^j for i + j &lt;= order, by increasing degree.
+     */
+    private static void monomials(int order, double x, double y, double[] out) {
+        int t = 0;
+        for (int d = 0; d <= order; d++) {
+            for (int j = 0; j <= d; j++) {
+                out[t++] = pow(x, d - j) * pow(y, j);
+            }
+        }
+    }
+
+    private static double pow(double x, int e) {
+        double r = 1;
+        for (int i = 0; i < e; i++) {
+            r *= x;
+        }
+        return r;
+    }
+
+    @Override
+    public void transform(double[] src, int srcOffset, double[] dst, int dstOffset, int n) {
+        double[] m = new double[terms];
+        for (int i = 0; i < n; i++) {
+            evaluate(src[srcOffset + 2 * i], src[srcOffset + 2 * i + 1], m, dst, dstOffset + 2 * i);
+        }
+    }
+
+    private void evaluate(double x, double y, double[] m, double[] dst, int dstOffset) {
+        monomials(order, (x - cx) * scale, (y - cy) * scale, m);
+        double u = 0;
+        double v = 0;
+        for (int j = 0; j < terms; j++) {
+            u += cu[j] * m[j];
+            v += cv[j] * m[j];
+        }
+        dst[dstOffset] = u;
+        dst[dstOffset + 1] = v;
+    }
+
+    @Override
+    public Point2D inverseTransform(Point2D p) {
+        double tu = p.getX();
+        double tv = p.getY();
+        // first guess from the linear part
+        double du = tu - cu[0];
+        double dv = tv - cv[0];
+        double x = cx + linearInverse[0] * du + linearInverse[1] * dv;
+        double y = cy + linearInverse[2] * du + linearInverse[3] * dv;
+
+        double[] m = new double[terms];
+        double[] c = new double[2];
+        double[] jac = new double[4];
+        for (int it = 0; it < MAX_ITERATIONS; it++) {
+            evaluate(x, y, m, c, 0);
+            double ru = c[0] - tu;
+            double rv = c[1] - tv;
+            if (Math.abs(ru) < TOLERANCE && Math.abs(rv) < TOLERANCE)
+                return new Point2D.Double(x, y);
+            jacobian(x, y, jac);
+            double det = jac[0] * jac[3] - jac[1] * jac[2];
+            if (det == 0 || !Double.isFinite(det))
+                return null;
+            x -= (jac[3] * ru - jac[1] * rv) / det;
+            y -= (jac[0] * rv - jac[2] * ru) / det;
+        }
+        // no convergence, the point is probably outside of the region where the warp can be inverted
+        return null;
+    }
+
+    /**
+     * Computes the Jacobian of the polynomials at a picture point.
+     *
+     * @param x   x of the picture point
+     * @param y   y of the picture point
+     * @param out receives du/dx, du/dy, dv/dx, dv/dy
+     */
+    void jacobian(double x, double y, double[] out) {
+        double xn = (x - cx) * scale;
+        double yn = (y - cy) * scale;
+        double ux = 0, uy = 0, vx = 0, vy = 0;
+        int t = 0;
+        for (int d = 0; d <= order; d++) {
+            for (int j = 0; j <= d; j++) {
+                int i = d - j;
+                double dx = i > 0 ? i * pow(xn, i - 1) * pow(yn, j) * scale : 0;
+                double dy = j > 0 ? j * pow(xn, i) * pow(yn, j - 1) * scale : 0;
+                ux += cu[t] * dx;
+                uy += cu[t] * dy;
+                vx += cv[t] * dx;
+                vy += cv[t] * dy;
+                t++;
+            }
+        }
+        out[0] = ux;
+        out[1] = uy;
+        out[2] = vx;
+        out[3] = vy;
+    }
+
+    @Override
+    public FitModel getModel() {
+        return order == 2 ? FitModel.POLYNOMIAL2 : FitModel.POLYNOMIAL3;
+    }
+
+    @Override
+    public double[] getParameters() {
+        double[] p = new double[4 + 2 * terms];
+        p[0] = order;
+        p[1] = cx;
+        p[2] = cy;
+        p[3] = scale;
+        System.arraycopy(cu, 0, p, 4, terms);
+        System.arraycopy(cv, 0, p, 4 + terms, terms);
+        return p;
+    }
+}
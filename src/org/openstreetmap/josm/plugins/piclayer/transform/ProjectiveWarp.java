@@ -0,0 +1,152 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.awt.geom.Point2D;
+
+/**
+ * Projective transform (homography), mapping straight lines to straight lines.
+ * This is what a photo of a flat map taken at an angle needs.
+ */
+public final class ProjectiveWarp implements PictureWarp {
+
+    // row by row, h[8] is 1
+    private final double[] h;
+    private final double[] inverse;
+
+    /**
+     * Restores a homography.
+     *
+     * @param h the nine elements of the matrix, row by row
+     * @return the warp, {@code null} if the matrix is singular
+     */
+    static ProjectiveWarp create(double[] h) {
+        if (h.length != 9)
+            return null;
+        ProjectiveWarp warp = new ProjectiveWarp(h);
+        return warp.inverse != null ? warp : null;
+    }
+
+    private ProjectiveWarp(double[] h) {
+        this.h = h.clone();
+        Matrix3D m = new Matrix3D(h[0], h[1], h[2], h[3], h[4], h[5], h[6], h[7], h[8]);
+        double[] inv;
+        try {
+            inv = m.inverse(m).a.clone();
+        } catch (NoSolutionException e) {
+            inv = null;
+        }
+        this.inverse = inv;
+    }
+
+    /**
+     * Fits a homography to four or more point pairs. The points are normalized first (Hartley),
+     * the eight unknowns are then solved by least squares.
+     *
+     * @param src source points x0, y0, x1, y1, ...
+     * @param dst destination points, in the same order
+     * @param n   number of point pairs, at least 4
+     * @return the warp, {@code null} if the points do not determine a homography
+     */
+    static ProjectiveWarp fit(double[] src, double[] dst, int n) {
+        if (n < 4)
+            return null;
+        double[] ns = normalization(src, n);
+        double[] nd = normalization(dst, n);
+        if (ns == null || nd == null)
+            return null;
+
+        int m = 2 * n;
+        double[] a = new double[m * 8];
+        double[] b = new double[m];
+        for (int i = 0; i < n; i++) {
+            double x = (src[2 * i] - ns[0]) * ns[2];
+            double y = (src[2 * i + 1] - ns[1]) * ns[2];
+            double u = (dst[2 * i] - nd[0]) * nd[2];
+            double v = (dst[2 * i + 1] - nd[1]) * nd[2];
+            int r = 2 * i;
+            // u * (h6 x + h7 y + 1) = h0 x + h1 y + h2
+            set(a, m, r, x, y, 1, 0, 0, 0, -u * x, -u * y);
+            b[r] = u;
+            // v * (h6 x + h7 y + 1) = h3 x + h4 y + h5
+            set(a, m, r + 1, 0, 0, 0, x, y, 1, -v * x, -v * y);
+            b[r + 1] = v;
+        }
+        double[][] solution = LeastSquares.solve(a, m, 8, b);
+        if (solution == null)
+            return null;
+        double[] hn = solution[0];
+
+        // undo the normalizations: H = Td^-1 * Hn * Ts
+        Matrix3D hm = new Matrix3D(hn[0], hn[1], hn[2], hn[3], hn[4], hn[5], hn[6], hn[7], 1);
+        Matrix3D ts = new Matrix3D(ns[2], 0, -ns[2] * ns[0], 0, ns[2], -ns[2] * ns[1], 0, 0, 1);
+        Matrix3D tdInverse = new Matrix3D(1 / nd[2], 0, nd[0], 0, 1 / nd[2], nd[1], 0, 0, 1);
+        tdInverse.multiply(hm.multiply(ts, hm), hm);
+        double[] r = hm.a;
+        if (r[8] == 0 || !Double.isFinite(r[8]))
+            return null;
+        double[] result = new double[9];
+        for (int i = 0; i < 9; i++) {
+            result[i] = r[i] / r[8];
+        }
+        return create(result);
+    }
+
+    private static void set(double[] a, int m, int row, double... values) {
+        for (int j = 0; j < values.length; j++) {
+            a[j * m + row] = values[j];
+        }
+    }
+
+    /**
+     * Returns the centroid and the factor scaling the mean distance to it to sqrt(2).
+     */
+    private static double[] normalization(double[] p, int n) {
+        double cx = 0, cy = 0;
+        for (int i = 0; i < n; i++) {
+            cx += p[2 * i];
+            cy += p[2 * i + 1];
+        }
+        cx /= n;
+        cy /= n;
+        double dist = 0;
+        for (int i = 0; i < n; i++) {
+            dist += Math.hypot(p[2 * i] - cx, p[2 * i + 1] - cy);
+        }
+        dist /= n;
+        if (dist == 0)
+            return null;
+        return new double[]{cx, cy, Math.sqrt(2) / dist};
+    }
+
+    @Override
+    public void transform(double[] src, int srcOffset, double[] dst, int dstOffset, int n) {
+        apply(h, src, srcOffset, dst, dstOffset, n);
+    }
+
+    private static void apply(double[] h, double[] src, int srcOffset, double[] dst, int dstOffset, int n) {
+        for (int i = 0; i < n; i++) {
+            double x = src[srcOffset + 2 * i];
+            double y = src[srcOffset + 2 * i + 1];
+            double w = h[6] * x + h[7] * y + h[8];
+            dst[dstOffset + 2 * i] = (h[0] * x + h[1] * y + h[2]) / w;
+            dst[dstOffset + 2 * i + 1] = (h[3] * x + h[4] * y + h[5]) / w;
+        }
+    }
+
+    @Override
+    public Point2D inverseTransform(Point2D p) {
+        double[] c = {p.getX(), p.getY()};
+        apply(inverse, c, 0, c, 0, 1);
+        return Double.isFinite(c[0]) && Double.isFinite(c[1]) ? new Point2D.Double(c[0], c[1]) : null;
+    }
+
+    @Override
+    public FitModel getModel() {
+        return FitModel.PROJECTIVE;
+    }
+
+    @Override
+    public double[] getParameters() {
+        return h.clone();
+    }
+}
@@ -0,0 +1,397 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import java.awt.geom.Point2D;
+import java.util.stream.IntStream;
+
+/**
+ * Thin plate spline, the rubber sheeting which matches every control point exactly and bends
+ * the picture as little as possible in between. This is what old cadastre maps with many
+ * known points need.
+ * <p>
+ * Evaluating the spline costs one logarithm per control point, which is far too slow for
+ * resampling the picture. The inverse mapping, which the renderer needs, is therefore computed
+ * once on a grid of {@link #GRID_NODES} x {@link #GRID_NODES} nodes around the control points
+ * and interpolated bilinearly, beyond the grid the cells at its border are extrapolated.
+ * The grid is built the first time it is needed; as warps are immutable, it is rebuilt only
+ * when the control points change and a new warp is fitted. Single points, e.g. picked by the
+ * user, are inverted exactly by {@link #inverseTransformExact(Point2D)}.
+ */
+public final class ThinPlateSplineWarp implements PictureWarp {
+
+    private static final int GRID_NODES = 129;
+    private static final int MAX_ITERATIONS = 20;
+    private static final double TOLERANCE = 1e-6;
+
+    // control points, kept to store and restore the warp
+    private final double[] src;
+    private final double[] dst;
+    private final int n;
+    // normalization of the picture coordinates: (x - cx) * scale
+    private final double cx;
+    private final double cy;
+    private final double scale;
+    // kernel weights and affine part (constant, x, y) of both coordinates
+    private final double[] wu;
+    private final double[] wv;
+    private final double[] au;
+    private final double[] av;
+    // inverse of the linear part, for the first guess of the inverse
+    private final double[] linearInverse;
+
+    private volatile InverseGrid inverseGrid;
+
+    /**
+     * Picture coordinates at the nodes of a regular grid in the warped space.
+     */
+    private static final class InverseGrid {
+        final double x0;
+        final double y0;
+        final double step;
+        final double[] nodes;
+
+        InverseGrid(double x0, double y0, double step, double[] nodes) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.step = step;
+            this.nodes = nodes;
+        }
+    }
+
+    private ThinPlateSplineWarp(double[] src, double[] dst, int n, double cx, double cy, double scale, double[] u, double[] v) {
+        this.src = src;
+        this.dst = dst;
+        this.n = n;
+        this.cx = cx;
+        this.cy = cy;
+        this.scale = scale;
+        this.wu = new double[n];
+        this.wv = new double[n];
+        System.arraycopy(u, 0, wu, 0, n);
+        System.arraycopy(v, 0, wv, 0, n);
+        this.au = new double[]{u[n], u[n + 1], u[n + 2]};
+        this.av = new double[]{v[n], v[n + 1], v[n + 2]};
+        double a = au[1] * scale;
+        double b = au[2] * scale;
+        double c = av[1] * scale;
+        double d = av[2] * scale;
+        double det = a * d - b * c;
+        linearInverse = det != 0 ? new double[]{d / det, -b / det, -c / det, a / det} : null;
+    }
+
+    /**
+     * Fits a thin plate spline through point pairs.
+     *
+     * @param src source points x0, y0, x1, y1, ...
+     * @param dst destination points, in the same order
+     * @param n   number of point pairs, at least 3 not on a line
+     * @return the warp, {@code null} if the points do not determine a spline, e.g. if two source points are equal
+     * or all destination points are
+     */
+    static ThinPlateSplineWarp fit(double[] src, double[] dst, int n) {
+        if (n < 3)
+            return null;
+        boolean distinct = false;
+        for (int i = 1; i < n && !distinct; i++) {
+            distinct = dst[2 * i] != dst[0] || dst[2 * i + 1] != dst[1];
+        }
+        // the grid of the inverse spans the destination points
+        if (!distinct)
+            return null;
+        double cx = 0, cy = 0;
+        for (int i = 0; i < n; i++) {
+            cx += src[2 * i];
+            cy += src[2 * i + 1];
+        }
+        cx /= n;
+        cy /= n;
+        double spread = 0;
+        for (int i = 0; i < n; i++) {
+            double dx = src[2 * i] - cx;
+            double dy = src[2 * i + 1] - cy;
+            spread += dx * dx + dy * dy;
+        }
+        if (spread == 0)
+            return null;
+        double scale = 1 / Math.sqrt(spread / n);
+
+        // [K P; P^T 0] * [w; a] = [dst; 0], column by column
+        int m = n + 3;
+        double[] a = new double[m * m];
+        double[] u = new double[m];
+        double[] v = new double[m];
+        for (int i = 0; i < n; i++) {
+            double xi = (src[2 * i] - cx) * scale;
+            double yi = (src[2 * i + 1] - cy) * scale;
+            for (int j = 0; j < n; j++) {
+                double xj = (src[2 * j] - cx) * scale;
+                double yj = (src[2 * j + 1] - cy) * scale;
+                a[j * m + i] = kernel((xi - xj) * (xi - xj) + (yi - yj) * (yi - yj));
+            }
+            a[n * m + i] = 1;
+            a[(n + 1) * m + i] = xi;
+            a[(n + 2) * m + i] = yi;
+            a[i * m + n] = 1;
+            a[i * m + n + 1] = xi;
+            a[i * m + n + 2] = yi;
+            u[i] = dst[2 * i];
+            v[i] = dst[2 * i + 1];
+        }
+        double[][] solution = LeastSquares.solve(a, m, m, u, v);
+        if (solution == null)
+            return null;
+        ThinPlateSplineWarp warp = new ThinPlateSplineWarp(copy(src, n), copy(dst, n), n, cx, cy, scale, solution[0], solution[1]);
+        return warp.linearInverse != null ? warp : null;
+    }
+
+    private static double[] copy(double[] points, int n) {
+        double[] c = new double[2 * n];
+        System.arraycopy(points, 0, c, 0, 2 * n);
+        return c;
+    }
+
+    /**
+     * Restores a warp from the values of {@link #getParameters()}.
+     *
+     * @param p the parameters
+     * @return the warp, {@code null} if the parameters are invalid
+     */
+    static ThinPlateSplineWarp create(double[] p) {
+        if (p.length < 1)
+            return null;
+        int n = (int) p[0];
+        if (n < 3 || p.length != 1 + 4 * n)
+            return null;
+        double[] s = new double[2 * n];
+        double[] d = new double[2 * n];
+        System.arraycopy(p, 1, s, 0, 2 * n);
+        System.arraycopy(p, 1 + 2 * n, d, 0, 2 * n);
+        return fit(s, d, n);
+    }
+
+    /**
+     * The radial basis function r^2 log r, of the squared distance.
+     */
+    private static double kernel(double r2) {
+        return r2 > 0 ? 0.5 * r2 * Math.log(r2) : 0;
+    }
+
+    @Override
+    public void transform(double[] srcPoints, int srcOffset, double[] dstPoints, int dstOffset, int count) {
+        for (int i = 0; i < count; i++) {
+            evaluate(srcPoints[srcOffset + 2 * i], srcPoints[srcOffset + 2 * i + 1], dstPoints, dstOffset + 2 * i, null);
+        }
+    }
+
+    /**
+     * Evaluates the spline and optionally its Jacobian ux, uy, vx, vy.
+     */
+    private void evaluate(double x, double y, double[] out, int offset, double[] jacobian) {
+        double xn = (x - cx) * scale;
+        double yn = (y - cy) * scale;
+        double u = au[0] + au[1] * xn + au[2] * yn;
+        double v = av[0] + av[1] * xn + av[2] * yn;
+        double ux = au[1], uy = au[2], vx = av[1], vy = av[2];
+        for (int i = 0; i < n; i++) {
+            double dx = xn - (src[2 * i] - cx) * scale;
+            double dy = yn - (src[2 * i + 1] - cy) * scale;
+            double r2 = dx * dx + dy * dy;
+            if (r2 > 0) {
+                double log = Math.log(r2);
+                double k = 0.5 * r2 * log;
+                u += wu[i] * k;
+                v += wv[i] * k;
+                if (jacobian != null) {
+                    // d/dx (r^2 log r) = x (2 log r + 1)
+                    double f = log + 1;
+                    ux += wu[i] * dx * f;
+                    uy += wu[i] * dy * f;
+                    vx += wv[i] * dx * f;
+                    vy += wv[i] * dy * f;
+                }
+            }
+        }
+        out[offset] = u;
+        out[offset + 1] = v;
+        if (jacobian != null) {
+            jacobian[0] = ux * scale;
+            jacobian[1] = uy * scale;
+            jacobian[2] = vx * scale;
+            jacobian[3] = vy * scale;
+        }
+    }
+
+    /**
+     * Computes the Jacobian of the spline at a picture point, which Newton's method inverts with.
+     *
+     * @param x   x of the picture point
+     * @param y   y of the picture point
+     * @param out receives du/dx, du/dy, dv/dx, dv/dy
+     */
+    void jacobian(double x, double y, double[] out) {
+        evaluate(x, y, new double[2], 0, out);
+    }
+
+    @Override
+    public Point2D inverseTransform(Point2D p) {
+        double tu = p.getX();
+        double tv = p.getY();
+        double[] c = interpolateInverse(tu, tv);
+        if (c != null)
+            return new Point2D.Double(c[0], c[1]);
+        if (!isInGrid(tu, tv))
+            return null;
+        // a node of the cell could not be inverted, e.g. where the spline folds over
+        c = solveInverse(tu, tv, Double.NaN, Double.NaN);
+        return c != null ? new Point2D.Double(c[0], c[1]) : null;
+    }
+
+    @Override
+    public Point2D inverseTransformExact(Point2D p) {
+        double tu = p.getX();
+        double tv = p.getY();
+        // the grid gives a close first guess, Newton's method then converges in a few steps
+        double[] guess = interpolateInverse(tu, tv);
+        double[] c = guess != null ? solveInverse(tu, tv, guess[0], guess[1]) : null;
+        if (c == null) {
+            c = solveInverse(tu, tv, Double.NaN, Double.NaN);
+        }
+        if (c == null) {
+            c = guess;
+        }
+        return c != null ? new Point2D.Double(c[0], c[1]) : null;
+    }
+
+    private boolean isInGrid(double tu, double tv) {
+        InverseGrid grid = getInverseGrid();
+        double gx = (tu - grid.x0) / grid.step;
+        double gy = (tv - grid.y0) / grid.step;
+        return gx >= 0 && gy >= 0 && gx <= GRID_NODES - 1 && gy <= GRID_NODES - 1;
+    }
+
+    /**
+     * Interpolates the inverse from the grid, or extrapolates it beyond the grid.
+     *
+     * @return the picture point, {@code null} if a node of the cell could not be inverted
+     */
+    private double[] interpolateInverse(double tu, double tv) {
+        InverseGrid grid = getInverseGrid();
+        double gx = (tu - grid.x0) / grid.step;
+        double gy = (tv - grid.y0) / grid.step;
+        // beyond the grid the nearest cell is extrapolated, as the renderer inverts the warp for every
+        // pixel of the view and Newton's method costs a logarithm per control point in each step
+        int i = (int) Math.max(0, Math.min(GRID_NODES - 2, Math.floor(gx)));
+        int j = (int) Math.max(0, Math.min(GRID_NODES - 2, Math.floor(gy)));
+        double fx = gx - i;
+        double fy = gy - j;
+        int k = 2 * (j * GRID_NODES + i);
+        int below = 2 * GRID_NODES;
+        double[] g = grid.nodes;
+        double x = (1 - fy) * ((1 - fx) * g[k] + fx * g[k + 2]) + fy * ((1 - fx) * g[k + below] + fx * g[k + below + 2]);
+        double y = (1 - fy) * ((1 - fx) * g[k + 1] + fx * g[k + 3]) + fy * ((1 - fx) * g[k + below + 1] + fx * g[k + below + 3]);
+        return Double.isNaN(x + y) ? null : new double[]{x, y};
+    }
+
+    /**
+     * Inverts the spline at a point by Newton's method.
+     *
+     * @param guessX first guess, NaN to start from the inverse of the affine part
+     * @return the picture point, {@code null} if there is no convergence
+     */
+    private double[] solveInverse(double tu, double tv, double guessX, double guessY) {
+        double x = guessX;
+        double y = guessY;
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            double du = tu - au[0];
+            double dv = tv - av[0];
+            x = cx + linearInverse[0] * du + linearInverse[1] * dv;
+            y = cy + linearInverse[2] * du + linearInverse[3] * dv;
+        }
+        double[] c = new double[2];
+        double[] j = new double[4];
+        for (int it = 0; it < MAX_ITERATIONS; it++) {
+            evaluate(x, y, c, 0, j);
+            double ru = c[0] - tu;
+            double rv = c[1] - tv;
+            if (Math.abs(ru) < TOLERANCE && Math.abs(rv) < TOLERANCE) {
+                c[0] = x;
+                c[1] = y;
+                return c;
+            }
+            double det = j[0] * j[3] - j[1] * j[2];
+            if (det == 0 || !Double.isFinite(det))
+                return null;
+            x -= (j[3] * ru - j[1] * rv) / det;
+            y -= (j[0] * rv - j[2] * ru) / det;
+        }
+        return null;
+    }
+
+    private InverseGrid getInverseGrid() {
+        InverseGrid grid = inverseGrid;
+        if (grid == null) {
+            synchronized (this) {
+                grid = inverseGrid;
+                if (grid == null) {
+                    grid = buildInverseGrid();
+                    inverseGrid = grid;
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Inverts the spline at the grid nodes, covering the control points and as much again on each side.
+     */
+    private InverseGrid buildInverseGrid() {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, dst[2 * i]);
+            maxX = Math.max(maxX, dst[2 * i]);
+            minY = Math.min(minY, dst[2 * i + 1]);
+            maxY = Math.max(maxY, dst[2 * i + 1]);
+        }
+        double extent = Math.max(maxX - minX, maxY - minY);
+        double step = 3 * extent / (GRID_NODES - 1);
+        double x0 = (minX + maxX) / 2 - 1.5 * extent;
+        double y0 = (minY + maxY) / 2 - 1.5 * extent;
+        double[] nodes = new double[2 * GRID_NODES * GRID_NODES];
+        IntStream.range(0, GRID_NODES).parallel().forEach(j -> {
+            double guessX = Double.NaN;
+            double guessY = Double.NaN;
+            for (int i = 0; i < GRID_NODES; i++) {
+                // start from the neighbour, the spline is smooth
+                double[] c = solveInverse(x0 + i * step, y0 + j * step, guessX, guessY);
+                int k = 2 * (j * GRID_NODES + i);
+                if (c != null) {
+                    nodes[k] = c[0];
+                    nodes[k + 1] = c[1];
+                    guessX = c[0];
+                    guessY = c[1];
+                } else {
+                    nodes[k] = Double.NaN;
+                    nodes[k + 1] = Double.NaN;
+                    guessX = Double.NaN;
+                    guessY = Double.NaN;
+                }
+            }
+        });
+        return new InverseGrid(x0, y0, step, nodes);
+    }
+
+    @Override
+    public FitModel getModel() {
+        return FitModel.THIN_PLATE_SPLINE;
+    }
+
+    @Override
+    public double[] getParameters() {
+        double[] p = new double[1 + 4 * n];
+        p[0] = n;
+        System.arraycopy(src, 0, p, 1, 2 * n);
+        System.arraycopy(dst, 0, p, 1 + 2 * n, 2 * n);
+        return p;
+    }
+}
@@ -0,0 +1,94 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link GeoLine}.
+ */
+class GeoLineTest {
+
+    // the example of Vincenty's paper, as published by Geoscience Australia
+    private static final Point2D FLINDERS_PEAK = new Point2D.Double(
+            144 + 25 / 60.0 + 29.52440 / 3600, -(37 + 57 / 60.0 + 3.72030 / 3600));
+    private static final Point2D BUNINYONG = new Point2D.Double(
+            143 + 55 / 60.0 + 35.38390 / 3600, -(37 + 39 / 60.0 + 10.15610 / 3600));
+    private static final double DISTANCE = 54972.271;
+    private static final double AZIMUTH = 306 + 52 / 60.0 + 5.37 / 3600;
+
+    // a hundredth of an arc second, about 0.3 m
+    private static final double ANGLE_EPSILON = 0.01 / 3600;
+
+    private static void assertPointEquals(Point2D expected, Point2D actual, double epsilon) {
+        assertEquals(expected.getX(), actual.getX(), epsilon, "longitude");
+        assertEquals(expected.getY(), actual.getY(), epsilon, "latitude");
+    }
+
+    /**
+     * Distance and azimuth agree with the published solution of the inverse problem.
+     */
+    @Test
+    void testInverse() {
+        GeoLine line = new GeoLine(FLINDERS_PEAK, BUNINYONG);
+        assertEquals(DISTANCE, line.getDistance(), 1e-3);
+        assertEquals(AZIMUTH, line.getAzimuth() + 360, ANGLE_EPSILON);
+    }
+
+    /**
+     * The end point is found again from the start point, the azimuth and the distance.
+     */
+    @Test
+    void testDirect() {
+        assertPointEquals(BUNINYONG, GeoLine.destination(FLINDERS_PEAK, AZIMUTH, DISTANCE), ANGLE_EPSILON);
+
+        GeoLine line = new GeoLine(FLINDERS_PEAK, BUNINYONG);
+        assertPointEquals(BUNINYONG, line.pointOnLine(line.getDistance()), 1e-9);
+        List<Point2D> points = line.pointsOnLine(0, line.getDistance() / 2, line.getDistance());
+        assertEquals(3, points.size());
+        assertPointEquals(FLINDERS_PEAK, points.get(0), 1e-9);
+        GeoLine half = new GeoLine(FLINDERS_PEAK, points.get(1));
+        assertEquals(line.getDistance() / 2, half.getDistance(), 1e-6);
+        assertEquals(line.getAzimuth(), half.getAzimuth(), 1e-9);
+    }
+
+    /**
+     * A degree of longitude on the equator is a degree of the equator of the WGS84 ellipsoid.
+     */
+    @Test
+    void testEquator() {
+        GeoLine line = new GeoLine(new Point2D.Double(10, 0), new Point2D.Double(11, 0));
+        assertEquals(111319.491, line.getDistance(), 1e-3);
+        assertEquals(90, line.getAzimuth(), 1e-9);
+        assertPointEquals(new Point2D.Double(10.5, 0), line.pointOnLine(line.getDistance() / 2), 1e-9);
+    }
+
+    /**
+     * Points beyond the antimeridian get longitudes from -180 to 180.
+     */
+    @Test
+    void testAntimeridian() {
+        Point2D p = GeoLine.destination(new Point2D.Double(179.9, 0), 90, 0.2 * 111319.491);
+        assertPointEquals(new Point2D.Double(-179.9, 0), p, 1e-6);
+
+        p = GeoLine.destination(new Point2D.Double(-179.9, 10), -90, 50000);
+        assertEquals(179.644, p.getX(), 1e-3);
+        assertEquals(10, p.getY(), 0.01);
+    }
+
+    /**
+     * A line from a point to itself has no length, all its points are the start point.
+     */
+    @Test
+    void testZeroLength() {
+        Point2D start = new Point2D.Double(8.5, 47.4);
+        GeoLine line = new GeoLine(start, start);
+        assertEquals(0, line.getDistance(), 0);
+        assertPointEquals(start, line.pointOnLine(100), 0);
+        assertPointEquals(start, GeoLine.destination(start, 45, 0), 0);
+    }
+}
@@ -0,0 +1,77 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.ProjectionBounds;
+
+/**
+ * Unit tests of {@link QuadTree}.
+ */
+class QuadTreeTest {
+
+    private static boolean intersects(ProjectionBounds a, ProjectionBounds b) {
+        return a.minEast <= b.maxEast && a.maxEast >= b.minEast && a.minNorth <= b.maxNorth && a.maxNorth >= b.minNorth;
+    }
+
+    /**
+     * A search finds exactly the items a linear scan finds, also after the nodes were split.
+     */
+    @Test
+    void testSearch() {
+        QuadTree<Integer> tree = new QuadTree<>(new ProjectionBounds(0, 0, 1000, 1000));
+        List<ProjectionBounds> boxes = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            double east = random.nextDouble() * 990;
+            double north = random.nextDouble() * 990;
+            double size = random.nextDouble() * (i % 10 == 0 ? 300 : 10);
+            ProjectionBounds box = new ProjectionBounds(east, north, Math.min(1000, east + size), Math.min(1000, north + size));
+            boxes.add(box);
+            tree.add(i, box);
+        }
+        assertEquals(500, tree.size());
+
+        for (int k = 0; k < 50; k++) {
+            double east = random.nextDouble() * 1000;
+            double north = random.nextDouble() * 1000;
+            ProjectionBounds area = new ProjectionBounds(east, north, east + random.nextDouble() * 200, north + random.nextDouble() * 200);
+            Set<Integer> expected = new HashSet<>();
+            for (int i = 0; i < boxes.size(); i++) {
+                if (intersects(boxes.get(i), area)) {
+                    expected.add(i);
+                }
+            }
+            List<Integer> found = tree.search(area);
+            assertEquals(expected.size(), found.size(), "no item is found twice");
+            assertEquals(expected, new HashSet<>(found));
+        }
+    }
+
+    /**
+     * Items outside of the bounds of the tree are found as well.
+     */
+    @Test
+    void testOutside() {
+        QuadTree<String> tree = new QuadTree<>(new ProjectionBounds(0, 0, 10, 10));
+        for (int i = 0; i < 20; i++) {
+            tree.add("inside" + i, new ProjectionBounds(i / 2.0, i / 2.0, i / 2.0 + 0.1, i / 2.0 + 0.1));
+        }
+        tree.add("outside", new ProjectionBounds(20, 20, 30, 30));
+        tree.add("across", new ProjectionBounds(-5, 4, 15, 6));
+
+        assertEquals(Collections.singletonList("outside"), tree.search(new ProjectionBounds(25, 25, 26, 26)));
+        List<String> found = tree.search(new ProjectionBounds(-3, 5, -2, 5.5));
+        assertEquals(Collections.singletonList("across"), found);
+        assertTrue(tree.search(new ProjectionBounds(9.8, 0, 10, 0.5)).isEmpty());
+    }
+}
@@ -0,0 +1,86 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link TileCache}.
+ */
+class TileCacheTest {
+
+    // 16 x 16 pixels of 4 bytes
+    private static final long TILE_BYTES = 1024;
+
+    private static BufferedImage tile() {
+        return new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * The memory of the pixels is estimated from the data buffer.
+     */
+    @Test
+    void testSizeOf() {
+        assertEquals(TILE_BYTES, TileCache.sizeOf(tile()));
+        assertEquals(16 * 16, TileCache.sizeOf(new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    /**
+     * The least recently used tile is dropped first, reading a tile marks it as used.
+     */
+    @Test
+    void testLeastRecentlyUsed() {
+        TileCache<Integer> cache = new TileCache<>(3 * TILE_BYTES);
+        for (int i = 0; i < 3; i++) {
+            cache.put(i, tile());
+        }
+        assertEquals(3 * TILE_BYTES, cache.getBytes());
+        assertNotNull(cache.get(0));
+
+        cache.put(3, tile());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(0));
+        assertNotNull(cache.get(2));
+        assertNotNull(cache.get(3));
+        assertEquals(3 * TILE_BYTES, cache.getBytes());
+    }
+
+    /**
+     * Replacing a tile does not count its memory twice.
+     */
+    @Test
+    void testReplace() {
+        TileCache<String> cache = new TileCache<>(2 * TILE_BYTES);
+        cache.put("a", tile());
+        cache.put("b", tile());
+        BufferedImage replacement = tile();
+        cache.put("a", replacement);
+        assertEquals(2 * TILE_BYTES, cache.getBytes());
+        assertSame(replacement, cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    /**
+     * A tile bigger than the cache is kept until the next one comes, clearing frees all memory.
+     */
+    @Test
+    void testOversizedTileAndClear() {
+        TileCache<Integer> cache = new TileCache<>(TILE_BYTES / 2);
+        BufferedImage first = tile();
+        cache.put(0, first);
+        assertSame(first, cache.get(0));
+        cache.put(1, tile());
+        assertNull(cache.get(0));
+        assertEquals(TILE_BYTES, cache.getBytes());
+
+        cache.clear();
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getBytes());
+    }
+}
@@ -0,0 +1,50 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.plugins.piclayer.transform.FitModel;
+import org.openstreetmap.josm.plugins.piclayer.transform.PictureWarp;
+
+/**
+ * Unit tests of {@link WarpRenderer}.
+ */
+class WarpRendererTest {
+
+    /**
+     * The outline of an unchanged picture is its rectangle, centered like the picture coordinates.
+     */
+    @Test
+    void testOutlineIdentity() {
+        PictureWarp identity = FitModel.PROJECTIVE.createWarp(new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1});
+        Rectangle2D bounds = WarpRenderer.getOutline(identity, 101, 60).getBounds2D();
+        assertEquals(-50, bounds.getMinX(), 1e-9);
+        assertEquals(51, bounds.getMaxX(), 1e-9);
+        assertEquals(-30, bounds.getMinY(), 1e-9);
+        assertEquals(30, bounds.getMaxY(), 1e-9);
+    }
+
+    /**
+     * The outline follows the warp: its corners are the warped corners of the picture.
+     */
+    @Test
+    void testOutlineWarped() {
+        PictureWarp warp = FitModel.PROJECTIVE.createWarp(new double[]{1.1, 0.2, 30, -0.05, 0.9, -12, 2e-4, -1e-4, 1});
+        Path2D outline = WarpRenderer.getOutline(warp, 200, 100);
+        for (Point2D corner : new Point2D[]{new Point2D.Double(-100, -50), new Point2D.Double(100, -50),
+                new Point2D.Double(100, 50), new Point2D.Double(-100, 50)}) {
+            Point2D q = warp.transform(corner);
+            Rectangle2D near = new Rectangle2D.Double(q.getX() - 1e-6, q.getY() - 1e-6, 2e-6, 2e-6);
+            assertTrue(outline.intersects(near), "warped corner " + corner + " on the outline");
+        }
+        assertTrue(outline.contains(warp.transform(new Point2D.Double(0, 0))));
+        assertFalse(outline.contains(warp.transform(new Point2D.Double(120, 0))));
+    }
+}
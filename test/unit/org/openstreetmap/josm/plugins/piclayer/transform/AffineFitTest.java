@@ -0,0 +1,148 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link AffineFit}.
+ */
+class AffineFitTest {
+
+    private static final double EPSILON = 1e-9;
+
+    private static double[] transformAll(AffineTransform t, double[] src) {
+        double[] dst = new double[src.length];
+        t.transform(src, 0, dst, 0, src.length / 2);
+        return dst;
+    }
+
+    private static void assertTransformEquals(AffineTransform expected, AffineTransform actual, double epsilon) {
+        double[] e = new double[6];
+        double[] a = new double[6];
+        expected.getMatrix(e);
+        actual.getMatrix(a);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(e[i], a[i], epsilon * Math.max(1, Math.abs(e[i])), "matrix element " + i);
+        }
+    }
+
+    /**
+     * An exact affine transform is recovered from more points than needed.
+     */
+    @Test
+    void testExactAffine() {
+        AffineTransform expected = new AffineTransform(1.2, 0.3, -0.4, 0.9, 15, -7);
+        double[] src = {0, 0, 100, 0, 0, 80, 100, 80, 37, 51};
+        AffineFit fit = AffineFit.fit(src, transformAll(expected, src), 5);
+        assertEquals(AffineFit.Model.AFFINE, fit.getModel());
+        assertTransformEquals(expected, fit.getTransform(), EPSILON);
+        assertEquals(0, fit.getRms(), EPSILON);
+        assertEquals(5, fit.getPointCount());
+    }
+
+    /**
+     * The QR decomposition stays accurate for coordinates far from the origin, where the normal
+     * equations would lose most digits.
+     */
+    @Test
+    void testFarFromOrigin() {
+        AffineTransform expected = new AffineTransform(2e-6, 1e-7, -1e-7, 2e-6, 1.5e6, 6.2e6);
+        double[] src = {1e6, 1e6, 1e6 + 4000, 1e6, 1e6, 1e6 + 3000, 1e6 + 4000, 1e6 + 3000};
+        double[] dst = transformAll(expected, src);
+        AffineFit fit = AffineFit.fit(src, dst, 4);
+        assertEquals(AffineFit.Model.AFFINE, fit.getModel());
+        assertEquals(0, fit.getRms(), 1e-6);
+    }
+
+    /**
+     * With noise the fit minimizes the squared residuals: symmetric errors cancel out.
+     */
+    @Test
+    void testLeastSquares() {
+        AffineTransform expected = AffineTransform.getRotateInstance(0.2);
+        expected.translate(5, 3);
+        double[] src = {0, 0, 10, 0, 0, 10, 10, 10};
+        double[] dst = transformAll(expected, src);
+        // move the diagonal points in opposite directions
+        dst[0] += 0.1;
+        dst[6] -= 0.1;
+        dst[3] += 0.1;
+        dst[5] -= 0.1;
+        AffineFit fit = AffineFit.fit(src, dst, 4);
+        assertEquals(AffineFit.Model.AFFINE, fit.getModel());
+        Point2D center = fit.getTransform().transform(new Point2D.Double(5, 5), null);
+        Point2D expectedCenter = expected.transform(new Point2D.Double(5, 5), null);
+        assertEquals(expectedCenter.getX(), center.getX(), EPSILON);
+        assertEquals(expectedCenter.getY(), center.getY(), EPSILON);
+        assertEquals(4, fit.getResiduals().length);
+    }
+
+    /**
+     * Two points determine a similarity transform.
+     */
+    @Test
+    void testTwoPoints() {
+        AffineTransform expected = AffineTransform.getTranslateInstance(-3, 8);
+        expected.rotate(0.7);
+        expected.scale(1.5, 1.5);
+        double[] src = {1, 2, 11, -4};
+        AffineFit fit = AffineFit.fit(src, transformAll(expected, src), 2);
+        assertEquals(AffineFit.Model.SIMILARITY, fit.getModel());
+        assertTransformEquals(expected, fit.getTransform(), EPSILON);
+    }
+
+    /**
+     * Points on a line fall back to a similarity transform instead of a degenerated affine one.
+     */
+    @Test
+    void testCollinearPoints() {
+        AffineTransform expected = AffineTransform.getRotateInstance(-0.3);
+        expected.scale(0.8, 0.8);
+        double[] src = {0, 0, 10, 5, 20, 10, 30, 15};
+        AffineFit fit = AffineFit.fit(src, transformAll(expected, src), 4);
+        assertEquals(AffineFit.Model.SIMILARITY, fit.getModel());
+        assertTransformEquals(expected, fit.getTransform(), EPSILON);
+    }
+
+    /**
+     * A single point or identical points give a shift.
+     */
+    @Test
+    void testTranslation() {
+        AffineFit fit = AffineFit.fit(new double[]{3, 4}, new double[]{5, 1}, 1);
+        assertEquals(AffineFit.Model.TRANSLATION, fit.getModel());
+        assertTransformEquals(AffineTransform.getTranslateInstance(2, -3), fit.getTransform(), EPSILON);
+
+        fit = AffineFit.fit(new double[]{3, 4, 3, 4}, new double[]{5, 1, 7, 1}, 2);
+        assertEquals(AffineFit.Model.TRANSLATION, fit.getModel());
+        assertTransformEquals(AffineTransform.getTranslateInstance(3, -3), fit.getTransform(), EPSILON);
+        assertEquals(1, fit.getRms(), EPSILON);
+    }
+
+    /**
+     * Lists of points are fitted like arrays, lists of different size and empty ones are rejected.
+     */
+    @Test
+    void testLists() {
+        AffineTransform expected = new AffineTransform(1, 0.5, 0, 1, 2, 2);
+        List<Point2D> src = new ArrayList<>();
+        List<Point2D> dst = new ArrayList<>();
+        for (Point2D p : new Point2D[]{new Point2D.Double(0, 0), new Point2D.Double(4, 0), new Point2D.Double(0, 4)}) {
+            src.add(p);
+            dst.add(expected.transform(p, null));
+        }
+        assertTransformEquals(expected, AffineFit.fit(src, dst).getTransform(), EPSILON);
+
+        dst.remove(2);
+        assertThrows(IllegalArgumentException.class, () -> AffineFit.fit(src, dst));
+        assertThrows(IllegalArgumentException.class, () -> AffineFit.fit(new ArrayList<>(), new ArrayList<>()));
+    }
+}
@@ -0,0 +1,82 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.geom.AffineTransform;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link Matrix3D}.
+ */
+class Matrix3DTest {
+
+    private static final double EPSILON = 1e-12;
+
+    private static void assertMatrixEquals(double[] expected, Matrix3D actual) {
+        for (int i = 0; i < 9; i++) {
+            assertEquals(expected[i], actual.a[i], EPSILON, "matrix element " + i);
+        }
+    }
+
+    /**
+     * The three points and their images determine the transform exactly.
+     */
+    @Test
+    void testSolveAffine() throws NoSolutionException {
+        AffineTransform expected = new AffineTransform(1.5, -0.2, 0.3, 0.8, 12, -4);
+        double[] src = {2, 3, 40, 5, 7, 30};
+        double[] dst = new double[6];
+        expected.transform(src, 0, dst, 0, 3);
+        AffineTransform result = new AffineTransform();
+        assertSame(result, Matrix3D.solveAffine(src, dst, result));
+        double[] e = new double[6];
+        double[] a = new double[6];
+        expected.getMatrix(e);
+        result.getMatrix(a);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(e[i], a[i], 1e-9, "matrix element " + i);
+        }
+    }
+
+    /**
+     * Source points on a line do not determine the transform.
+     */
+    @Test
+    void testSolveAffineCollinear() {
+        double[] src = {0, 0, 1, 1, 2, 2};
+        double[] dst = {0, 0, 1, 0, 0, 1};
+        assertThrows(NoSolutionException.class, () -> Matrix3D.solveAffine(src, dst, new AffineTransform()));
+    }
+
+    /**
+     * The product with the inverse is the identity, also when the result is written into the matrix itself.
+     */
+    @Test
+    void testInverse() throws NoSolutionException {
+        Matrix3D m = new Matrix3D(2, 1, 0, 1, 3, 1, 0, 1, 4);
+        Matrix3D inverse = m.inverse(new Matrix3D());
+        assertMatrixEquals(new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, m.multiply(inverse, new Matrix3D()));
+        assertSame(inverse, inverse.inverse(inverse));
+        assertMatrixEquals(m.a, inverse);
+
+        assertThrows(NoSolutionException.class, () -> new Matrix3D(1, 2, 3, 2, 4, 6, 0, 0, 1).inverse(new Matrix3D()));
+    }
+
+    /**
+     * The product may be written into either factor.
+     */
+    @Test
+    void testMultiply() {
+        Matrix3D m = new Matrix3D(1, 2, 3, 4, 5, 6, 7, 8, 9);
+        Matrix3D n = new Matrix3D(0, 1, 0, 0, 0, 1, 1, 0, 0);
+        double[] product = {3, 1, 2, 6, 4, 5, 9, 7, 8};
+        assertMatrixEquals(product, m.multiply(n, new Matrix3D()));
+        assertSame(n, m.multiply(n, n));
+        assertMatrixEquals(product, n);
+        assertEquals(0, m.determinant(), EPSILON);
+    }
+}
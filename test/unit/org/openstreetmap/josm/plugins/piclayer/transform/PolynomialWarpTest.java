@@ -0,0 +1,111 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.geom.Point2D;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link PolynomialWarp}.
+ */
+class PolynomialWarpTest {
+
+    // a sheet unevenly shrunk along both axes
+    private static double[] bend(double x, double y) {
+        return new double[]{
+            5 + 1.02 * x + 0.01 * y + 2e-5 * x * x - 1e-5 * x * y,
+            -3 - 0.02 * x + 0.98 * y + 1e-5 * y * y + 3e-8 * x * x * y
+        };
+    }
+
+    private static PolynomialWarp fitBend(int order) {
+        int n = 0;
+        double[] src = new double[2 * 25];
+        double[] dst = new double[2 * 25];
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                src[2 * n] = -1000 + 500 * i;
+                src[2 * n + 1] = -800 + 400 * j;
+                double[] d = bend(src[2 * n], src[2 * n + 1]);
+                dst[2 * n] = d[0];
+                dst[2 * n + 1] = d[1];
+                n++;
+            }
+        }
+        return PolynomialWarp.fit(order, src, dst, n);
+    }
+
+    /**
+     * A polynomial of 3rd order is fitted exactly, and restored from its parameters.
+     */
+    @Test
+    void testFit() {
+        PolynomialWarp warp = fitBend(3);
+        assertNotNull(warp);
+        assertEquals(FitModel.POLYNOMIAL3, warp.getModel());
+        PolynomialWarp restored = PolynomialWarp.create(warp.getParameters());
+        for (double[] p : new double[][]{{0, 0}, {-730, 420}, {980, -790}}) {
+            double[] expected = bend(p[0], p[1]);
+            Point2D q = warp.transform(new Point2D.Double(p[0], p[1]));
+            assertEquals(expected[0], q.getX(), 1e-6);
+            assertEquals(expected[1], q.getY(), 1e-6);
+            Point2D r = restored.transform(new Point2D.Double(p[0], p[1]));
+            assertEquals(q.getX(), r.getX(), 1e-9);
+            assertEquals(q.getY(), r.getY(), 1e-9);
+        }
+    }
+
+    /**
+     * Newton's method maps the points back.
+     */
+    @Test
+    void testRoundTrip() {
+        for (int order = 2; order <= 3; order++) {
+            PolynomialWarp warp = fitBend(order);
+            for (double x = -1000; x <= 1000; x += 125) {
+                for (double y = -800; y <= 800; y += 100) {
+                    Point2D q = warp.inverseTransform(warp.transform(new Point2D.Double(x, y)));
+                    assertNotNull(q);
+                    assertEquals(x, q.getX(), 1e-5);
+                    assertEquals(y, q.getY(), 1e-5);
+                }
+            }
+        }
+    }
+
+    /**
+     * The Jacobian agrees with central differences.
+     */
+    @Test
+    void testJacobian() {
+        PolynomialWarp warp = fitBend(3);
+        double[] jacobian = new double[4];
+        double h = 1e-3;
+        for (double[] p : new double[][]{{0, 0}, {-730, 420}, {980, -790}}) {
+            warp.jacobian(p[0], p[1], jacobian);
+            Point2D xPlus = warp.transform(new Point2D.Double(p[0] + h, p[1]));
+            Point2D xMinus = warp.transform(new Point2D.Double(p[0] - h, p[1]));
+            Point2D yPlus = warp.transform(new Point2D.Double(p[0], p[1] + h));
+            Point2D yMinus = warp.transform(new Point2D.Double(p[0], p[1] - h));
+            assertEquals((xPlus.getX() - xMinus.getX()) / (2 * h), jacobian[0], 1e-6, "du/dx");
+            assertEquals((yPlus.getX() - yMinus.getX()) / (2 * h), jacobian[1], 1e-6, "du/dy");
+            assertEquals((xPlus.getY() - xMinus.getY()) / (2 * h), jacobian[2], 1e-6, "dv/dx");
+            assertEquals((yPlus.getY() - yMinus.getY()) / (2 * h), jacobian[3], 1e-6, "dv/dy");
+        }
+    }
+
+    /**
+     * Fewer points than terms and invalid parameters do not give a warp.
+     */
+    @Test
+    void testDegenerated() {
+        double[] points = {0, 0, 1, 0, 0, 1, 1, 1, 2, 2};
+        assertNull(PolynomialWarp.fit(2, points, points, 5));
+        assertNull(PolynomialWarp.create(new double[]{4, 0, 0, 1}));
+        assertNull(PolynomialWarp.create(new double[]{2, 0, 0, 1, 0}));
+    }
+}
@@ -0,0 +1,70 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.geom.Point2D;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link ProjectiveWarp}.
+ */
+class ProjectiveWarpTest {
+
+    // a photo of a sheet taken at an angle
+    private static final double[] H = {1.1, 0.2, 30, -0.05, 0.9, -12, 2e-4, -1e-4, 1};
+
+    private static double[] corners() {
+        return new double[]{-500, -400, 500, -400, 500, 400, -500, 400, 120, -80};
+    }
+
+    /**
+     * Four or more point pairs of a homography give the homography back.
+     */
+    @Test
+    void testFit() {
+        ProjectiveWarp expected = ProjectiveWarp.create(H);
+        assertNotNull(expected);
+        double[] src = corners();
+        double[] dst = new double[src.length];
+        expected.transform(src, 0, dst, 0, 5);
+
+        ProjectiveWarp warp = ProjectiveWarp.fit(src, dst, 5);
+        assertNotNull(warp);
+        double[] p = warp.getParameters();
+        for (int i = 0; i < 9; i++) {
+            assertEquals(H[i], p[i], 1e-9 * Math.max(1, Math.abs(H[i])), "matrix element " + i);
+        }
+        assertEquals(FitModel.PROJECTIVE, warp.getModel());
+    }
+
+    /**
+     * The inverse maps the points back.
+     */
+    @Test
+    void testRoundTrip() {
+        ProjectiveWarp warp = ProjectiveWarp.create(H);
+        for (double x = -1000; x <= 1000; x += 250) {
+            for (double y = -800; y <= 800; y += 200) {
+                Point2D p = new Point2D.Double(x, y);
+                Point2D q = warp.inverseTransform(warp.transform(p));
+                assertEquals(x, q.getX(), 1e-9);
+                assertEquals(y, q.getY(), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * Coincident points and singular matrices do not give a warp.
+     */
+    @Test
+    void testDegenerated() {
+        double[] same = {5, 5, 5, 5, 5, 5, 5, 5};
+        assertNull(ProjectiveWarp.fit(same, corners(), 4));
+        assertNull(ProjectiveWarp.fit(corners(), corners(), 3));
+        assertNull(ProjectiveWarp.create(new double[]{1, 2, 3, 2, 4, 6, 0, 0, 1}));
+    }
+}
@@ -0,0 +1,110 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.transform;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.geom.Point2D;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link ThinPlateSplineWarp}.
+ */
+class ThinPlateSplineWarpTest {
+
+    // control points of a sheet of 10000 x 10000 pixels, moved by up to 150 pixels
+    private static final double[] SRC = {-5000, -5000, 5000, -5000, 5000, 5000, -5000, 5000, 0, 0, 1500, -2000, -3000, 2500};
+    private static final double[] DST = {-4900, -5150, 5100, -4950, 5050, 5200, -4850, 4900, 100, 50, 1650, -1900, -2950, 2450};
+    private static final int N = 7;
+
+    private static final double[][] POINTS = {{10, 20}, {2500, -2700}, {4000, 4500}, {-4990, 4990}, {-20000, 50}};
+
+    /**
+     * The spline matches every control point exactly.
+     */
+    @Test
+    void testControlPoints() {
+        ThinPlateSplineWarp warp = ThinPlateSplineWarp.fit(SRC, DST, N);
+        assertNotNull(warp);
+        double[] mapped = new double[2 * N];
+        warp.transform(SRC, 0, mapped, 0, N);
+        for (int i = 0; i < 2 * N; i++) {
+            assertEquals(DST[i], mapped[i], 1e-6, "coordinate " + i);
+        }
+        assertEquals(FitModel.THIN_PLATE_SPLINE, warp.getModel());
+    }
+
+    /**
+     * Points affinely mapped are not bent.
+     */
+    @Test
+    void testAffine() {
+        double[] dst = new double[2 * N];
+        for (int i = 0; i < N; i++) {
+            dst[2 * i] = 3 + 1.1 * SRC[2 * i] - 0.2 * SRC[2 * i + 1];
+            dst[2 * i + 1] = -7 + 0.1 * SRC[2 * i] + 0.95 * SRC[2 * i + 1];
+        }
+        ThinPlateSplineWarp warp = ThinPlateSplineWarp.fit(SRC, dst, N);
+        Point2D q = warp.transform(new Point2D.Double(1000, 3000));
+        assertEquals(3 + 1100 - 600, q.getX(), 1e-6);
+        assertEquals(-7 + 100 + 2850, q.getY(), 1e-6);
+    }
+
+    /**
+     * Single points are inverted exactly, the interpolated inverse of the renderer is close.
+     */
+    @Test
+    void testRoundTrip() {
+        ThinPlateSplineWarp warp = ThinPlateSplineWarp.fit(SRC, DST, N);
+        for (double[] p : POINTS) {
+            Point2D q = warp.transform(new Point2D.Double(p[0], p[1]));
+            Point2D exact = warp.inverseTransformExact(q);
+            assertEquals(p[0], exact.getX(), 1e-5);
+            assertEquals(p[1], exact.getY(), 1e-5);
+            Point2D interpolated = warp.inverseTransform(q);
+            assertEquals(p[0], interpolated.getX(), 5);
+            assertEquals(p[1], interpolated.getY(), 5);
+        }
+    }
+
+    /**
+     * The Jacobian agrees with central differences.
+     */
+    @Test
+    void testJacobian() {
+        ThinPlateSplineWarp warp = ThinPlateSplineWarp.fit(SRC, DST, N);
+        double[] jacobian = new double[4];
+        double h = 1e-2;
+        for (double[] p : POINTS) {
+            warp.jacobian(p[0], p[1], jacobian);
+            Point2D xPlus = warp.transform(new Point2D.Double(p[0] + h, p[1]));
+            Point2D xMinus = warp.transform(new Point2D.Double(p[0] - h, p[1]));
+            Point2D yPlus = warp.transform(new Point2D.Double(p[0], p[1] + h));
+            Point2D yMinus = warp.transform(new Point2D.Double(p[0], p[1] - h));
+            assertEquals((xPlus.getX() - xMinus.getX()) / (2 * h), jacobian[0], 1e-6, "du/dx");
+            assertEquals((yPlus.getX() - yMinus.getX()) / (2 * h), jacobian[1], 1e-6, "du/dy");
+            assertEquals((xPlus.getY() - xMinus.getY()) / (2 * h), jacobian[2], 1e-6, "dv/dx");
+            assertEquals((yPlus.getY() - yMinus.getY()) / (2 * h), jacobian[3], 1e-6, "dv/dy");
+        }
+    }
+
+    /**
+     * The warp is restored from its parameters, degenerated control points do not give a warp.
+     */
+    @Test
+    void testParametersAndDegenerated() {
+        ThinPlateSplineWarp warp = ThinPlateSplineWarp.fit(SRC, DST, N);
+        ThinPlateSplineWarp restored = ThinPlateSplineWarp.create(warp.getParameters());
+        Point2D q = warp.transform(new Point2D.Double(123, 456));
+        Point2D r = restored.transform(new Point2D.Double(123, 456));
+        assertEquals(q.getX(), r.getX(), 1e-9);
+        assertEquals(q.getY(), r.getY(), 1e-9);
+
+        double[] same = new double[2 * N];
+        assertNull(ThinPlateSplineWarp.fit(SRC, same, N), "all destination points equal");
+        assertNull(ThinPlateSplineWarp.fit(same, DST, N), "all source points equal");
+        assertNull(ThinPlateSplineWarp.fit(SRC, DST, 2));
+    }
+}